@@ -2,6 +2,7 @@ package unimelb.bitbox;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import unimelb.bitbox.util.Configuration;
@@ -10,14 +11,15 @@ import unimelb.bitbox.util.HostPort;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 import unimelb.bitbox.util.FileSystemManager;
 
-public class ConnectFromPeer extends Thread {
+public class ConnectFromPeer implements Runnable {
 	private static Logger log = Logger.getLogger(ConnectFromPeer.class.getName());
+	// longest wait for an event before checking the connection again
+	private static final long EVENT_WAIT_MILLIS = 100;
 	private FileSystemManager fileSystemManager;
 	private HostPort localHostPort;
 	private HostPort targetPeer;
 	private Socket socket;
-	private BufferedReader myReader;
-	private PrintWriter myWriter;
+	private StreamConnection myConnection;
 	
 	private boolean isHandshake;
 	
@@ -35,27 +37,26 @@ public class ConnectFromPeer extends Thread {
 	public void run() {
 		try {
 			// Input stream Output Stream
-			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-			PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+			StreamConnection connection = new StreamConnection(socket);
 
-			Document handShakeReque = Document.parse(reader.readLine());
+			Document handShakeReque = Document.parse(connection.readLine());
 
 			if (!handShakeReque.containsKey("command")) {
 				// not exist cmd message
 				Document output = Protocol.INVALID_PROTOCOL("message must contain a command field as string");
-				writer.println(output.toJson());
+				connection.send(output);
 				socket.close();
 			}else if (!handShakeReque.containsKey("hostPort")) {
 				// Cannot Identify peer, Exit.
 				Document output = Protocol.INVALID_PROTOCOL("message must contain host and port for handshake");
-				writer.println(output.toJson());
+				connection.send(output);
 				socket.close();
 			}else {
 				// Otherwise
 				if (!handShakeReque.getString("command").equals("HANDSHAKE_REQUEST")) {
 					// Not Valid Command
 					Document output = Protocol.INVALID_PROTOCOL("handshake is required");
-					writer.println(output.toJson());
+					connection.send(output);
 					socket.close();
 				} else {
 					// HANDSHAKE_REQUEST is received
@@ -65,12 +66,12 @@ public class ConnectFromPeer extends Thread {
 					if(PeerMaster.isPeerFull()){
 						// peer full
 						Document handShakeRspon = Protocol.CONNECTION_REFUSED(PeerMaster.peerListToDoc());
-						writer.println(handShakeRspon.toJson());
+						connection.send(handShakeRspon);
 						socket.close();
 					}else if(PeerMaster.containPeer(currentClient)) {
 						// receive handshake after handshake
 						Document handShakeRspon = Protocol.INVALID_PROTOCOL("handshake request after successful handshake");
-						writer.println(handShakeRspon.toJson());
+						connection.send(handShakeRspon);
 						socket.close();
 					}
 					else {
@@ -78,13 +79,18 @@ public class ConnectFromPeer extends Thread {
 						log.info("Handshake success with client " + socket.getInetAddress().getHostAddress()
 								+ ":" + socket.getPort());
 						PeerMaster.addPeer(currentClient);
-						Document handShakeRspon = Protocol.HANDSHAKE_RESPONSE(this.localHostPort);
-						writer.println(handShakeRspon.toJson());
+						PeerMaster.setCapabilities(currentClient, handShakeReque);
+						PeerMaster.peerConnections.put(currentClient, connection);
+						Document handShakeRspon = Protocol.HANDSHAKE_RESPONSE(this.localHostPort, PeerMaster.capabilities,
+								PeerResume.describe());
+						connection.send(handShakeRspon);
+						// everything after the handshake is framed if both sides can
+						connection.setBinary(PeerMaster.peerSupports(currentClient, PeerMaster.CAP_BINARY));
 						this.targetPeer = currentClient;
 						//PeerMaster.numPeersConnection++;
 						this.isHandshake = true;
-						this.myReader = reader;
-						this.myWriter = writer;
+						this.myConnection = connection;
+						PeerResume.connected(currentClient, handShakeReque);
 					}
 				}
 			}
@@ -94,37 +100,54 @@ public class ConnectFromPeer extends Thread {
 		}
 		
 		
+		// requests from the peer are read on their own thread
+		Thread reader = null;
+		if(this.isHandshake) {
+			reader = WorkerPool.startThread(new PeerReader(this.fileSystemManager, this.targetPeer, this.myConnection),
+					"bitbox-reader " + this.targetPeer.toString());
+		}
+		
 		// if handshake success, process event
 		while(this.isHandshake) {
-			// handle request
-			try {
-				if(this.myReader.ready()) {
-					Document request = Document.parse(this.myReader.readLine());
-					if(request != null) {
-						ProcessRequest requestprocessor = 
-								new ProcessRequest(this.fileSystemManager, request, this.socket, this.myReader, this.myWriter);
-						requestprocessor.start();
-					}	
-				}
-				
-			} catch (IOException e) {
-				e.printStackTrace();
+			// the peer has gone away
+			if(!reader.isAlive()) {
+				this.isHandshake = false;
+			}
+			
+			// handle events, waiting a moment for one rather than spinning
+			FileSystemEvent newEvent = nextEvent();
+			if(newEvent != null) {
+				ProcessEvent ep = new ProcessEvent(this.fileSystemManager, newEvent, this.myConnection);
+				// events go out in the order the file system manager gave them
+				WorkerPool.execute(WorkerPool.laneOf(this.targetPeer), ep);
 			}
 			
-			// handle events
-			if(!PeerMaster.peerEventQ.isEmpty() && !PeerMaster.peerEventQ.get(this.targetPeer).isEmpty()) {
-				//FileSystemEvent newEvent = FILE_CREATE;
-				FileSystemEvent newEvent = PeerMaster.peerEventQ.get(this.targetPeer).poll();
-				ProcessEvent ep = new ProcessEvent(this.fileSystemManager, newEvent, this.socket,this.myReader, this.myWriter);
-				ep.start();
+			// disconnnect this peer if it is in disconnect list
+			if(PeerMaster.inDisconList(this.targetPeer)) {
+				this.isHandshake = false;
 			}
 		}
-		// disconnnect this peer if it is in disconnect list
-		if(PeerMaster.inDisconList(this.targetPeer)) {
-			this.isHandshake = false;
+		if(this.myConnection != null) {
+			try {
+				this.myConnection.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 		PeerMaster.removePeer(this.targetPeer);
 		log.info(this.targetPeer.toString() + " is disconnected");
 	}
+	
+	private FileSystemEvent nextEvent() {
+		EventQueue events = PeerMaster.peerEventQ.get(this.targetPeer);
+		if(events == null) {
+			return null;
+		}
+		try {
+			return events.poll(EVENT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
 
 }
\ No newline at end of file
@@ -4,8 +4,11 @@ import java.util.logging.Logger;
 import java.util.Queue;
 import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 import unimelb.bitbox.util.HostPort;
 import unimelb.bitbox.util.FileSystemManager;
@@ -13,14 +16,14 @@ import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 import unimelb.bitbox.util.Document;
 import unimelb.bitbox.Protocol;
 
-public class ConnectToPeer extends Thread {
+public class ConnectToPeer implements Runnable {
 	private static Logger log = Logger.getLogger(ConnectToPeer.class.getName());
+	// longest wait for an event before checking the connection again
+	private static final long EVENT_WAIT_MILLIS = 100;
 	private FileSystemManager fileSystemManager;
 	private HostPort targetPeer;
 	private Queue<HostPort> peersAvailable; 
-	private Socket mySocket;
-	private BufferedReader myReader;
-	private PrintWriter myWriter;
+	private StreamConnection myConnection;
 	private HostPort localHostPort;
 	
 	
@@ -38,26 +41,26 @@ public class ConnectToPeer extends Thread {
 	@Override
 	public void run() {
 		boolean result = this.Connect();
+		Thread reader = null;
+		if(result) {
+			// responses and requests from the peer are read on their own thread
+			reader = WorkerPool.startThread(new PeerReader(this.fileSystemManager, this.targetPeer, this.myConnection),
+					"bitbox-reader " + this.targetPeer.toString());
+		}
 		while(result) {
 			// if a peer is found to connect, go to handle events and request
 			
-			//handle response
-			try {
-				if(this.myReader.ready()) {
-					Document response = Document.parse(this.myReader.readLine());
-					ProcessRequest rp = 
-							new ProcessRequest(this.fileSystemManager, response, this.mySocket, this.myReader, this.myWriter);
-					rp.start();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
+			// the peer has gone away
+			if(!reader.isAlive()) {
+				result = false;
 			}
 			
-			// handle event
-			if(!PeerMaster.peerEventQ.isEmpty() && !PeerMaster.peerEventQ.get(this.targetPeer).isEmpty()) {
-				FileSystemEvent newEvent = PeerMaster.peerEventQ.get(this.targetPeer).poll();
-				ProcessEvent ep = new ProcessEvent(this.fileSystemManager, newEvent, this.mySocket, this.myReader, this.myWriter);
-				ep.start();
+			// handle event, waiting a moment for one rather than spinning
+			FileSystemEvent newEvent = nextEvent();
+			if(newEvent != null) {
+				ProcessEvent ep = new ProcessEvent(this.fileSystemManager, newEvent, this.myConnection);
+				// events go out in the order the file system manager gave them
+				WorkerPool.execute(WorkerPool.laneOf(this.targetPeer), ep);
 			}
 			
 			// disconnnect this peer if it is in disconnect list
@@ -65,25 +68,44 @@ public class ConnectToPeer extends Thread {
 				result = false;
 			}
 		}
+		if(this.myConnection != null) {
+			try {
+				this.myConnection.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		PeerMaster.removePeer(this.targetPeer);
 		log.info(this.targetPeer.toString() + " is disconnected");
 	}
 	
+	private FileSystemEvent nextEvent() {
+		EventQueue events = PeerMaster.peerEventQ.get(this.targetPeer);
+		if(events == null) {
+			return null;
+		}
+		try {
+			return events.poll(EVENT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
+	
 	public boolean Connect(){
 		while(!peersAvailable.isEmpty()){
 			// get the head of queue for the peer to connect
 			HostPort peer = peersAvailable.poll();
 			try {
-				Socket socket = new Socket(peer.host, peer.port);
-				BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF8"));
-				PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF8"),true);
+				// a channel backed socket, so that file bytes can be sent with transferTo
+				Socket socket = SocketChannel.open(new InetSocketAddress(peer.host, peer.port)).socket();
+				StreamConnection connection = new StreamConnection(socket);
 				
-				Document hskRequest = Protocol.HANDSHAKE_REQUEST(this.localHostPort);
-				writer.println(hskRequest.toJson());
-				writer.flush();
+				Document hskRequest = Protocol.HANDSHAKE_REQUEST(this.localHostPort, PeerMaster.capabilities,
+						PeerResume.describe());
+				connection.send(hskRequest);
 				log.info("Trying to Handshake with peer " + peer.host + ":" + peer.port);
 				
-				Document hskResponse = Document.parse(reader.readLine());
+				Document hskResponse = Document.parse(connection.readLine());
 				log.info("Server respond handshake with: " + hskResponse.toJson());
 
 				// parsing returned document command
@@ -94,11 +116,14 @@ public class ConnectToPeer extends Thread {
 				    	HostPort hostReturned = new HostPort(serverhost);
 				    	// this.targetPeer = new HostPort(targetHost,targetPort);
 				    	this.targetPeer = hostReturned;
-				    	this.mySocket = socket;
-				    	this.myReader = reader;
-				    	this.myWriter = writer;
+				    	this.myConnection = connection;
 				    	PeerMaster.addPeer(this.targetPeer);
+				    	PeerMaster.setCapabilities(this.targetPeer, hskResponse);
+				    	PeerMaster.peerConnections.put(this.targetPeer, connection);
+				    	// everything after the handshake is framed if both sides can
+				    	connection.setBinary(PeerMaster.peerSupports(this.targetPeer, PeerMaster.CAP_BINARY));
 				    	log.info("peer " + targetPeer.toString() + " is connected!");
+				    	PeerResume.connected(this.targetPeer, hskResponse);
 				    	return true;
 				    // Connection is denied, retrieve possible target peers
 				    case "CONNECTION_REFUSED":
@@ -0,0 +1,599 @@
+package unimelb.bitbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.EventJournal;
+import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.FileSystemManager.EVENT;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+import unimelb.bitbox.util.HostPort;
+
+/**
+ * Queue of the events still to be sent to one peer. A file event is merged with
+ * the event for the same file still waiting in the queue, if any, so that a peer
+ * that is slow to take its events gets one transfer of the latest version of a
+ * file rather than one for every change:
+ * <ul>
+ * <li>CREATE then MODIFY is a CREATE of the latest version</li>
+ * <li>MODIFY then MODIFY is a MODIFY of the latest version</li>
+ * <li>CREATE then DELETE is nothing at all, unless the CREATE came from a sync,
+ * when the peer may have the file already, which makes it a DELETE</li>
+ * <li>MODIFY then DELETE is a DELETE</li>
+ * <li>anything after a DELETE is queued as it is</li>
+ * </ul>
+ * A merged event keeps the place, and the change log sequence number, of the event
+ * it replaces, so a peer acknowledging it never acknowledges past a change it has
+ * not had. Directory events are queued as they are and no file event is merged
+ * across one, so that files and their directories are still created and deleted
+ * in order.
+ * <br/>
+ * Every event from the file system queued is also appended to the peer's
+ * {@link EventJournal} in the state directory. Only the first
+ * <code>queueMemory</code> events are kept in memory, the rest are read back from
+ * the journal as the peer takes the head, and are not merged with. The journal is
+ * reset when the peer has taken everything, and rewritten without the events sent
+ * once they outnumber those waiting. It is kept when the peer disconnects and is replayed when it connects again, after a
+ * restart too. If more than <code>queueDisk</code> events are waiting on disk the
+ * peer is too far behind for its events to be worth sending: they are dropped,
+ * all but the directory events, and the peer is synced instead.
+ * <br/>
+ * The events of a sync can be generated again, so they are only kept in memory.
+ * A sync that comes to an empty queue is queued whole. Otherwise its events are
+ * queued up to <code>queueMemory</code> and <code>queueDisk</code> events together,
+ * and none while events are waiting on disk. The rest is not queued, and the peer
+ * is synced again once its queue is empty.
+ */
+public class EventQueue {
+	private static Logger log = Logger.getLogger(EventQueue.class.getName());
+
+	private static final String JOURNAL_PREFIX = ".bitbox.queue-";
+	// least events sent to leave in a journal before rewriting it without them
+	private static final int COMPACT_RECORDS = 4096;
+
+	private static FileSystemManager fileSystemManager;
+	private static File directory;
+
+	// events and file bytes that did not have to be sent, over all peers
+	private static AtomicLong eventsSaved = new AtomicLong();
+	private static AtomicLong bytesSaved = new AtomicLong();
+
+	// an event in the queue, null once cancelled
+	private static class Pending {
+		FileSystemEvent event;
+		boolean sync;
+
+		Pending(FileSystemEvent event, boolean sync) {
+			this.event = event;
+			this.sync = sync;
+		}
+	}
+
+	private final HostPort peer;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private LinkedList<Pending> events = new LinkedList<Pending>();
+	// the last file event queued for each path name, while it can still be merged with
+	private HashMap<String, Pending> latest = new HashMap<String, Pending>();
+	// events in the queue, less the cancelled ones
+	private int size = 0;
+	// the peer's journal, null if there is none, and the events in it not loaded yet
+	private EventJournal journal;
+	private int spilled = 0;
+	// the events were dropped, and the sync of the peer is yet to be started
+	private boolean overflowed = false;
+	// a sync is under way since the events were dropped
+	private boolean resyncing = false;
+	// part of a sync was not queued, sync again once the queue is empty
+	private boolean resyncWhenDrained = false;
+	private boolean closed = false;
+
+	// where the journals are kept, called before any peer connects
+	public static void start(FileSystemManager fsm) {
+		fileSystemManager = fsm;
+		directory = new File(Configuration.getConfigurationValue("stateDirectory", PeerMaster.path));
+	}
+
+	// the queue of a peer, with the events left in its journal if any
+	public EventQueue(HostPort peer) {
+		this.peer = peer;
+		if(fileSystemManager == null) {
+			return;
+		}
+		File file = new File(directory, JOURNAL_PREFIX + peer.host + "-" + peer.port
+				+ fileSystemManager.loadingSuffix);
+		try {
+			journal = new EventJournal(file, fileSystemManager);
+			spilled = journal.records();
+			if(spilled > 0) {
+				log.info("replaying " + spilled + " events queued for " + peer.toString());
+			}
+		} catch (IOException e) {
+			log.warning("could not open " + file + ", queueing in memory only: " + e.getMessage());
+		}
+	}
+
+	// queue an event from the file system
+	public void offer(FileSystemEvent event) {
+		boolean resync;
+		lock.lock();
+		try {
+			queue(event);
+			resync = resync();
+		} finally {
+			lock.unlock();
+		}
+		if(resync) {
+			startResync();
+		}
+	}
+
+	// queue the events of a sync, as many as fit
+	public void addAll(ArrayList<FileSystemEvent> sync) {
+		boolean resync;
+		lock.lock();
+		try {
+			// a sync that comes to an empty queue is queued whole, else a sync of more
+			// than fits would never get past the part that does
+			boolean whole = size == 0 && spilled == 0;
+			int queued = 0;
+			while(queued < sync.size() && (whole || fits())) {
+				if(!closed) {
+					place(sync.get(queued), true);
+				}
+				queued++;
+			}
+			if(queued < sync.size()) {
+				log.warning("queued " + queued + " of " + sync.size() + " sync events for " + peer.toString()
+						+ ", syncing it again once it has caught up");
+				resyncWhenDrained = true;
+			}
+			resync = resync();
+		} finally {
+			lock.unlock();
+		}
+		if(resync) {
+			startResync();
+		}
+	}
+
+	// messages sent to the peer were lost, sync it, or sync it again once a sync under way is sent
+	public void messagesLost() {
+		boolean resync;
+		lock.lock();
+		try {
+			if(resyncing) {
+				resyncWhenDrained = true;
+			} else {
+				overflowed = true;
+			}
+			resync = resync();
+		} finally {
+			lock.unlock();
+		}
+		if(resync) {
+			startResync();
+		}
+	}
+
+	// the peer has connected again at the given sequence number in our change log, and missed the
+	// events given, which the journal replayed may have too: drop from the queue the logged events
+	// the peer has had or is about to, and queue the missed ones after the rest, merged with them
+	public void resume(long ack, ArrayList<FileSystemEvent> missed) {
+		lock.lock();
+		try {
+			long covered = ack;
+			for(FileSystemEvent event : missed) {
+				covered = Math.max(covered, event.sequence);
+			}
+			ArrayList<Pending> kept = new ArrayList<Pending>();
+			int queued = 0;
+			for(Pending pending : events) {
+				if(pending.event != null) {
+					queued++;
+					if(pending.event.sequence == 0 || pending.event.sequence > covered) {
+						kept.add(pending);
+					}
+				}
+			}
+			if(spilled > 0) {
+				try {
+					for(EventJournal.Record record : journal.read(spilled)) {
+						queued++;
+						if(record.event.sequence == 0 || record.event.sequence > covered) {
+							kept.add(new Pending(record.event, record.sync));
+						}
+					}
+				} catch (IOException e) {
+					log.warning("could not read events queued for " + peer.toString() + ", syncing it instead: "
+							+ e.getMessage());
+					overflowed = true;
+				}
+			}
+			if(queued > kept.size()) {
+				log.info("dropped " + (queued - kept.size()) + " events queued for " + peer.toString()
+						+ " that the change log covers");
+			}
+			events = new LinkedList<Pending>();
+			latest.clear();
+			size = 0;
+			spilled = 0;
+			if(journal != null) {
+				try {
+					journal.reset();
+				} catch (IOException e) {
+					log.warning("could not reset the events queued for " + peer.toString() + ": " + e.getMessage());
+					dropJournal();
+				}
+			}
+			for(Pending pending : kept) {
+				if(pending.sync) {
+					if(fits()) {
+						place(pending.event, true);
+					}
+				} else {
+					queue(pending.event);
+				}
+			}
+			addAll(missed);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// stop journalling, the peer has disconnected and its journal is kept for when it is back
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			if(journal != null) {
+				journal.close();
+				journal = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// next event to send, or null if there is none
+	public FileSystemEvent poll() {
+		FileSystemEvent event;
+		boolean resync;
+		lock.lock();
+		try {
+			event = take();
+			resync = resync();
+		} finally {
+			lock.unlock();
+		}
+		if(resync) {
+			startResync();
+		}
+		return event;
+	}
+
+	// next event to send, waiting up to timeout for one
+	public FileSystemEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		FileSystemEvent event;
+		boolean resync;
+		lock.lockInterruptibly();
+		try {
+			while(size == 0 && spilled == 0) {
+				if(nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			event = take();
+			resync = resync();
+		} finally {
+			lock.unlock();
+		}
+		if(resync) {
+			startResync();
+		}
+		return event;
+	}
+
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return size == 0 && spilled == 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// figures over all peers, for monitoring
+	public static Document metrics() {
+		Document doc = new Document();
+		doc.append("eventsSaved", eventsSaved.get());
+		doc.append("bytesSaved", bytesSaved.get());
+		return doc;
+	}
+
+	// queue an event from the file system, journalling it
+	private void queue(FileSystemEvent event) {
+		if(closed) {
+			return;
+		}
+		if(journal != null) {
+			try {
+				journal.append(event, false);
+			} catch (IOException e) {
+				log.warning("could not journal events for " + peer.toString() + ", queueing in memory only: "
+						+ e.getMessage());
+				dropJournal();
+			}
+		}
+		if(spilled > 0 || (journal != null && size >= PeerMaster.queueMemory)) {
+			// left in the journal until the peer has taken the head
+			spilled++;
+			latest.clear();
+			if(spilled > PeerMaster.queueDisk) {
+				overflow();
+			}
+			return;
+		}
+		if(journal != null) {
+			journal.skip();
+		}
+		place(event, false);
+	}
+	
+	// whether another event of a sync fits in memory, behind no events waiting on disk
+	private boolean fits() {
+		return spilled == 0 && size < PeerMaster.queueMemory + PeerMaster.queueDisk;
+	}
+	
+	// put an event in memory, merging it with the one queued for the file if it can be
+	private void place(FileSystemEvent event, boolean sync) {
+		if(isDirectory(event)) {
+			latest.clear();
+			append(event, false);
+			return;
+		}
+		Pending pending = latest.get(event.pathName);
+		if(pending == null) {
+			latest.put(event.pathName, append(event, sync));
+			return;
+		}
+		EVENT queued = pending.event.event;
+		if(queued == EVENT.FILE_CREATE && event.event == EVENT.FILE_MODIFY) {
+			saved(pending);
+			pending.event = merge(pending, event, EVENT.FILE_CREATE);
+		} else if(queued == EVENT.FILE_CREATE && event.event == EVENT.FILE_CREATE) {
+			saved(pending);
+			pending.event = merge(pending, event, EVENT.FILE_CREATE);
+			pending.sync = pending.sync || sync;
+		} else if(queued == EVENT.FILE_MODIFY && event.event == EVENT.FILE_MODIFY) {
+			saved(pending);
+			pending.event = merge(pending, event, EVENT.FILE_MODIFY);
+		} else if(queued == EVENT.FILE_CREATE && event.event == EVENT.FILE_DELETE && !pending.sync) {
+			// the peer never needs to hear of the file
+			saved(pending);
+			eventsSaved.incrementAndGet();
+			pending.event = null;
+			latest.remove(event.pathName);
+			size--;
+		} else if(queued != EVENT.FILE_DELETE && event.event == EVENT.FILE_DELETE) {
+			saved(pending);
+			pending.event = merge(pending, event, EVENT.FILE_DELETE);
+		} else {
+			latest.put(event.pathName, append(event, sync));
+		}
+	}
+
+	private Pending append(FileSystemEvent event, boolean sync) {
+		Pending pending = new Pending(event, sync);
+		events.add(pending);
+		size++;
+		notEmpty.signal();
+		return pending;
+	}
+
+	private FileSystemEvent take() {
+		while(true) {
+			Pending pending;
+			while((pending = events.poll()) != null) {
+				if(pending.event == null) {
+					continue;
+				}
+				size--;
+				if(latest.get(pending.event.pathName) == pending) {
+					latest.remove(pending.event.pathName);
+				}
+				if(size == 0 && spilled == 0) {
+					drained();
+				} else if(journal != null) {
+					sent();
+				}
+				return pending.event;
+			}
+			if(spilled == 0) {
+				return null;
+			}
+			load();
+		}
+	}
+
+	// read the next events from the journal into memory, which is empty
+	private void load() {
+		ArrayList<EventJournal.Record> records;
+		try {
+			records = journal.read(PeerMaster.queueMemory);
+		} catch (IOException e) {
+			log.warning("could not read events queued for " + peer.toString() + ", syncing it instead: "
+					+ e.getMessage());
+			overflow();
+			return;
+		}
+		// the journal always holds the events spilled, but should it not, stop looking for them
+		spilled = records.isEmpty() ? 0 : spilled - records.size();
+		for(EventJournal.Record record : records) {
+			place(record.event, record.sync);
+		}
+		if(spilled > 0) {
+			latest.clear();
+		}
+	}
+
+	// an event has been taken with more left, write the journal out and drop the events sent
+	// from it once they outnumber those waiting, or it grows while the peer never quite catches up
+	private void sent() {
+		try {
+			journal.flushDue();
+		} catch (IOException e) {
+			log.warning("could not journal events for " + peer.toString() + ", queueing in memory only: "
+					+ e.getMessage());
+			dropJournal();
+			return;
+		}
+		int sent = journal.records() - journal.unread() - size;
+		if(sent > Math.max(COMPACT_RECORDS, size + journal.unread())) {
+			compact();
+		}
+	}
+
+	// the journal holds more sent events than waiting ones, keep just those waiting
+	private void compact() {
+		ArrayList<EventJournal.Record> head = new ArrayList<EventJournal.Record>();
+		for(Pending pending : events) {
+			// events of a sync are not journalled
+			if(pending.event != null && !pending.sync) {
+				head.add(new EventJournal.Record(pending.event, pending.sync));
+			}
+		}
+		try {
+			journal.rewrite(head);
+		} catch (IOException e) {
+			log.warning("could not compact the events queued for " + peer.toString() + ": " + e.getMessage());
+		}
+	}
+
+	// the last event has been taken
+	private void drained() {
+		resyncing = false;
+		if(resyncWhenDrained) {
+			resyncWhenDrained = false;
+			overflowed = true;
+		}
+		if(journal != null && journal.records() > 0) {
+			try {
+				journal.reset();
+			} catch (IOException e) {
+				log.warning("could not reset the events queued for " + peer.toString() + ": " + e.getMessage());
+				dropJournal();
+			}
+		}
+	}
+
+	// too many events are waiting, drop them for a sync, all but the directory events, which
+	// the file events queued after them may need
+	private void overflow() {
+		log.warning(peer.toString() + " is more than " + PeerMaster.queueDisk + " events behind, dropping them"
+				+ (resyncing ? ", the next sync catches it up" : " and syncing it"));
+		LinkedList<Pending> kept = new LinkedList<Pending>();
+		for(Pending pending : events) {
+			if(pending.event != null && isDirectory(pending.event)) {
+				kept.add(pending);
+			} else {
+				pending.event = null;
+			}
+		}
+		if(journal != null) {
+			try {
+				while(spilled > 0) {
+					ArrayList<EventJournal.Record> records = journal.read(PeerMaster.queueMemory);
+					if(records.isEmpty()) {
+						break;
+					}
+					spilled -= records.size();
+					for(EventJournal.Record record : records) {
+						if(isDirectory(record.event)) {
+							kept.add(new Pending(record.event, record.sync));
+						}
+					}
+				}
+			} catch (IOException e) {
+				log.warning("could not read events queued for " + peer.toString() + ": " + e.getMessage());
+			}
+		}
+		events = kept;
+		latest.clear();
+		size = kept.size();
+		spilled = 0;
+		if(journal != null) {
+			try {
+				journal.reset();
+				for(Pending pending : kept) {
+					if(!pending.sync) {
+						journal.append(pending.event, false);
+						journal.skip();
+					}
+				}
+			} catch (IOException e) {
+				journal.close();
+				journal = null;
+			}
+		}
+		if(!resyncing) {
+			overflowed = true;
+		}
+	}
+	
+	private static boolean isDirectory(FileSystemEvent event) {
+		return event.event == EVENT.DIRECTORY_CREATE || event.event == EVENT.DIRECTORY_DELETE;
+	}
+
+	// whether a sync has to be started now the lock is released, only once until the peer catches up
+	private boolean resync() {
+		if(!overflowed) {
+			return false;
+		}
+		overflowed = false;
+		resyncing = true;
+		return true;
+	}
+
+	private void startResync() {
+		WorkerPool.execute(WorkerPool.laneOf(peer), () -> SyncEvent.syncPeer(fileSystemManager, peer, null));
+	}
+
+	// events already spilled can no longer be read back
+	private void dropJournal() {
+		journal.close();
+		journal = null;
+		if(spilled > 0) {
+			overflow();
+		}
+	}
+
+	// the event to send in place of a queued one
+	private static FileSystemEvent merge(Pending pending, FileSystemEvent event, EVENT type) {
+		FileSystemEvent merged = event.withEvent(type);
+		if(pending.event.sequence != 0) {
+			merged.sequence = pending.event.sequence;
+		}
+		return merged;
+	}
+	
+	// an event queued is replaced, so neither it nor its transfer is sent
+	private static void saved(Pending pending) {
+		eventsSaved.incrementAndGet();
+		if(pending.event.event != EVENT.FILE_DELETE && pending.event.fileDescriptor != null) {
+			bytesSaved.addAndGet(pending.event.fileDescriptor.fileSize);
+		}
+	}
+}
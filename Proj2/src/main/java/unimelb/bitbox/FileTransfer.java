@@ -0,0 +1,94 @@
+package unimelb.bitbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Receiving side state of a file transfer: the ranges of the file still to be
+ * requested with FILE_BYTES_REQUEST, split into blocks of at most blockSize bytes
+ * as they are requested. A whole file is a single range, a delta transfer only
+ * fetches the ranges that changed.
+ * <br/>
+ * Up to a window of block requests are kept outstanding at once, and each
+ * FILE_BYTES_RESPONSE releases the next block. Responses may arrive in any order,
+ * the file loader keeps track of which ranges have been written. A block that
+ * could not be written is requested again, a few times at most.
+ */
+public class FileTransfer {
+	// times a block is requested again after it could not be written
+	private static final int MAX_RETRIES = 3;
+
+	// transfers in progress, by path name and MD5 of the content
+	private static HashMap<String, FileTransfer> transfers = new HashMap<String, FileTransfer>();
+
+	// (position, length) of the ranges to request
+	private ArrayList<long[]> ranges;
+	private long blockSize;
+	// the range being requested, and the position in the file of its next block
+	private int range = 0;
+	private long position;
+	// times each block could not be written, by position
+	private HashMap<Long, Integer> failures = new HashMap<Long, Integer>();
+
+	public FileTransfer(ArrayList<long[]> ranges, long blockSize) {
+		this.ranges = ranges;
+		this.blockSize = blockSize;
+		this.position = ranges.isEmpty() ? 0 : ranges.get(0)[0];
+	}
+
+	// next block to request, or null if everything has been requested
+	public synchronized long[] next() {
+		while(range < ranges.size()) {
+			long end = ranges.get(range)[0] + ranges.get(range)[1];
+			if(position < end) {
+				long[] block = new long[] {position, Math.min(blockSize, end - position)};
+				position += block[1];
+				return block;
+			}
+			range++;
+			if(range < ranges.size()) {
+				position = ranges.get(range)[0];
+			}
+		}
+		return null;
+	}
+
+	// the first blocks to request, at most a window of them
+	public synchronized ArrayList<long[]> first(int window) {
+		ArrayList<long[]> first = new ArrayList<long[]>();
+		long[] block;
+		while(first.size() < window && (block = next()) != null) {
+			first.add(block);
+		}
+		return first;
+	}
+
+	// whether to request a block again that could not be written, false once it has failed too often
+	public synchronized boolean retry(long position) {
+		Integer failed = failures.get(position);
+		int count = failed == null ? 1 : failed + 1;
+		if(count > MAX_RETRIES) {
+			return false;
+		}
+		failures.put(position, count);
+		return true;
+	}
+
+	public static synchronized void start(String pathName, String md5, FileTransfer transfer) {
+		transfers.put(key(pathName, md5), transfer);
+	}
+
+	public static synchronized FileTransfer get(String pathName, String md5) {
+		return transfers.get(key(pathName, md5));
+	}
+
+	// true if the transfer was still in progress, so that only one caller finishes it
+	public static synchronized boolean finish(String pathName, String md5) {
+		return transfers.remove(key(pathName, md5)) != null;
+	}
+
+	// the MD5 hash has a fixed length, so the path name and it cannot run into each other
+	private static String key(String pathName, String md5) {
+		return pathName + ":" + md5;
+	}
+}
@@ -0,0 +1,286 @@
+package unimelb.bitbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.FileHandleCache;
+import unimelb.bitbox.util.HostPort;
+
+/**
+ * A {@link PeerConnection} over a non-blocking socket channel served by the {@link NioEngine}.
+ * Messages may be sent from any thread, they are queued and written out by the engine's
+ * thread as the socket accepts them. Only the engine's thread reads.
+ */
+public class NioConnection extends PeerConnection {
+	private static Logger log = Logger.getLogger(NioConnection.class.getName());
+
+	private static final int READ_BUFFER_SIZE = 64*1024;
+
+	private NioEngine engine;
+	private SocketChannel channel;
+	private SelectionKey key;
+	// the address connected to, for outgoing connections
+	private HostPort address;
+	// the peer, once the handshake has succeeded
+	private HostPort peer;
+	private boolean handshakeDone = false;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	// ByteBuffers and FileRegions still to write, in order
+	private LinkedList<Object> writeQueue = new LinkedList<Object>();
+	private volatile boolean closed = false;
+	private volatile boolean closeWhenWritten = false;
+
+	// a message read, with the raw content of a binary FILE_BYTES_RESPONSE
+	public static class Message {
+		public Document document;
+		public ByteBuffer payload;
+
+		Message(Document document, ByteBuffer payload) {
+			this.document = document;
+			this.payload = payload;
+		}
+	}
+
+	// a range of a file to send with transferTo
+	private static class FileRegion {
+		FileHandleCache.Handle file;
+		long position;
+		long end;
+
+		FileRegion(FileHandleCache.Handle file, long position, long length) {
+			this.file = file;
+			this.position = position;
+			this.end = position + length;
+		}
+	}
+
+	public NioConnection(NioEngine engine, SocketChannel channel, HostPort address) {
+		this.engine = engine;
+		this.channel = channel;
+		this.address = address;
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	public SelectionKey getKey() {
+		return key;
+	}
+
+	public HostPort getAddress() {
+		return address;
+	}
+
+	public boolean isOutgoing() {
+		return address != null;
+	}
+
+	public HostPort getPeer() {
+		return peer;
+	}
+
+	public boolean isHandshakeDone() {
+		return handshakeDone;
+	}
+
+	// the handshake has succeeded with the given peer
+	public void handshakeDone(HostPort peer) {
+		this.peer = peer;
+		this.handshakeDone = true;
+	}
+
+	public void setBinary(boolean binary) {
+		if(binary) {
+			log.info("using binary frames with " + describe());
+		}
+		this.binary = binary;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	// ask the engine to close the connection
+	public void close() throws IOException {
+		closed = true;
+		engine.requestClose(this);
+	}
+
+	// close once everything queued so far has been written, e.g. after refusing a handshake
+	public void closeWhenWritten() {
+		closeWhenWritten = true;
+		engine.requestWrite(this);
+	}
+
+	public void send(Document doc, ByteBuffer content) {
+		if(closed) return;
+		try {
+			synchronized(this) {
+				for(ByteBuffer bytes : encode(doc, content)) {
+					writeQueue.add(bytes);
+				}
+			}
+			engine.requestWrite(this);
+		} catch (IOException e) {
+			log.warning("could not send to " + describe() + ": " + e.getMessage());
+		}
+	}
+
+	public boolean canTransferFile() {
+		return binary;
+	}
+
+	// the file is released by the engine once its bytes have been written
+	public boolean sendFileBytes(Document doc, FileHandleCache.Handle file, long position, long length) throws IOException {
+		if(closed || position < 0 || length <= 0 || file.channel().size() - length < position) {
+			file.release();
+			return false;
+		}
+		ByteBuffer header = encodeFileBytesHeader(doc, length);
+		synchronized(this) {
+			writeQueue.add(header);
+			writeQueue.add(new FileRegion(file, position, length));
+		}
+		engine.requestWrite(this);
+		return true;
+	}
+
+	// read what has arrived, returns the complete messages with their payloads, or null at the end of the stream
+	public ArrayList<Message> read() throws IOException {
+		if(channel.read(readBuffer) < 0) {
+			return null;
+		}
+		return parse();
+	}
+
+	// the complete messages already read, with their payloads, stopping after the handshake
+	// as the encoding may change once it has been dealt with
+	public ArrayList<Message> parse() throws IOException {
+		ArrayList<Message> messages = new ArrayList<Message>();
+		readBuffer.flip();
+		while(true) {
+			Document doc = null;
+			payload = null;
+			if(!binary) {
+				int end = -1;
+				for(int i = readBuffer.position(); i < readBuffer.limit(); i++) {
+					if(readBuffer.get(i) == '\n') {
+						end = i;
+						break;
+					}
+				}
+				if(end < 0) {
+					if(readBuffer.remaining() == readBuffer.capacity()) {
+						if(readBuffer.capacity() >= MAX_FRAME) throw new IOException("line too long");
+						ensureCapacity(readBuffer.capacity() * 2);
+					}
+					break;
+				}
+				byte[] line = new byte[end - readBuffer.position()];
+				readBuffer.get(line);
+				readBuffer.get(); // the newline
+				String text = new String(line, StandardCharsets.UTF_8);
+				if(text.endsWith("\r")) text = text.substring(0, text.length() - 1);
+				doc = Document.parse(text);
+			} else {
+				if(readBuffer.remaining() < 4) break;
+				int length = readBuffer.getInt(readBuffer.position());
+				if(length < 1 || length > MAX_FRAME) {
+					throw new IOException("bad frame length " + length);
+				}
+				if(readBuffer.remaining() < 4 + length) {
+					ensureCapacity(4 + length);
+					break;
+				}
+				readBuffer.getInt();
+				byte[] frame = new byte[length];
+				readBuffer.get(frame);
+				doc = decodeFrame(frame, 0, length);
+			}
+			messages.add(new Message(doc, payload));
+			if(!handshakeDone) break;
+		}
+		readBuffer.compact();
+		return messages;
+	}
+
+	// write as much as the socket will take, true if everything queued has been written
+	public boolean write() throws IOException {
+		while(true) {
+			Object next;
+			synchronized(this) {
+				next = writeQueue.peek();
+			}
+			if(next == null) {
+				return true;
+			}
+			if(next instanceof ByteBuffer) {
+				ByteBuffer bytes = (ByteBuffer) next;
+				channel.write(bytes);
+				if(bytes.hasRemaining()) return false;
+			} else {
+				FileRegion region = (FileRegion) next;
+				long count = region.file.channel().transferTo(region.position, region.end - region.position, channel);
+				region.position += count;
+				if(region.position < region.end) {
+					if(count == 0 && region.file.channel().size() < region.end) {
+						throw new IOException("file truncated while sending");
+					}
+					return false;
+				}
+				region.file.release();
+			}
+			synchronized(this) {
+				writeQueue.poll();
+			}
+		}
+	}
+
+	public boolean isCloseWhenWritten() {
+		return closeWhenWritten;
+	}
+
+	// release everything still queued, called by the engine when closing
+	public void release() {
+		closed = true;
+		synchronized(this) {
+			for(Object item : writeQueue) {
+				if(item instanceof FileRegion) {
+					((FileRegion) item).file.release();
+				}
+			}
+			writeQueue.clear();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public String describe() {
+		if(peer != null) return peer.toString();
+		if(address != null) return address.toString();
+		return String.valueOf(channel.socket().getRemoteSocketAddress());
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(readBuffer.capacity() >= capacity) return;
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		bigger.put(readBuffer);
+		bigger.flip();
+		readBuffer = bigger;
+	}
+}
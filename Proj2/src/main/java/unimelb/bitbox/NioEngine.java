@@ -0,0 +1,383 @@
+package unimelb.bitbox;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+import unimelb.bitbox.util.HostPort;
+
+/**
+ * TCP mode served by a single thread on a {@link Selector}, in place of the
+ * TCPServer/TCPClient pair with its threads per connection. Accepts and makes
+ * connections, does the handshake, reads messages and writes whatever the
+ * {@link NioConnection}s have queued. Requests are still processed by
+ * ProcessRequest and events by ProcessEvent, on the {@link WorkerPool}.
+ * <br/>
+ * The engine sleeps in {@link Selector#select(long)} while there is nothing to
+ * do. Queueing events for peers wakes it, see {@link PeerMaster#eventToPeer(FileSystemEvent)},
+ * and the client commands to connect and disconnect peers are picked up every
+ * {@link #CHECK_MILLIS}.
+ */
+public class NioEngine extends Thread {
+	private static Logger log = Logger.getLogger(NioEngine.class.getName());
+
+	// how often to look for peers to connect and disconnect
+	private static final long CHECK_MILLIS = 500;
+
+	private FileSystemManager fileSystemManager;
+	private HostPort localHostPort;
+	private Selector selector;
+	// connections with something new to write, or to close
+	private ConcurrentLinkedQueue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<NioConnection>();
+	private ConcurrentLinkedQueue<NioConnection> pendingCloses = new ConcurrentLinkedQueue<NioConnection>();
+	// set when events have been queued for the peers
+	private volatile boolean eventsQueued = false;
+	private HashSet<NioConnection> connections = new HashSet<NioConnection>();
+	// reading from peers stopped while the workers are behind
+	private boolean paused = false;
+
+	public NioEngine(FileSystemManager fileSystemManager) throws IOException {
+		this.fileSystemManager = fileSystemManager;
+		this.localHostPort = new HostPort(PeerMaster.myHost, PeerMaster.myPort);
+		this.selector = Selector.open();
+		setName("bitbox-nio");
+	}
+
+	// events have been queued for the peers
+	public void eventsQueued() {
+		eventsQueued = true;
+		selector.wakeup();
+	}
+	
+	// the workers have caught up, reading from peers can go on
+	public void workersCaughtUp() {
+		selector.wakeup();
+	}
+	
+	// a connection is to be closed
+	public void requestClose(NioConnection connection) {
+		pendingCloses.offer(connection);
+		selector.wakeup();
+	}
+
+	// a connection has something new to write
+	public void requestWrite(NioConnection connection) {
+		pendingWrites.offer(connection);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.configureBlocking(false);
+			server.bind(new InetSocketAddress(PeerMaster.myPort));
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		for(String host: PeerMaster.peerArray) {
+			PeerMaster.peerToConnect.offer(new HostPort(host));
+		}
+		long nextCheck = 0;
+		while(true) {
+			try {
+				selector.select(CHECK_MILLIS);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			if(System.currentTimeMillis() >= nextCheck) {
+				connectPeers();
+				disconnectPeers();
+				nextCheck = System.currentTimeMillis() + CHECK_MILLIS;
+			}
+			NioConnection closing;
+			while((closing = pendingCloses.poll()) != null) {
+				close(closing);
+			}
+			pauseReading(WorkerPool.saturated());
+			NioConnection writer;
+			while((writer = pendingWrites.poll()) != null) {
+				if(writer.getKey() != null && writer.getKey().isValid()) {
+					writer.getKey().interestOps(writer.getKey().interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if(!key.isValid()) continue;
+				if(key.isAcceptable()) {
+					accept((ServerSocketChannel) key.channel());
+					continue;
+				}
+				NioConnection connection = (NioConnection) key.attachment();
+				try {
+					if(key.isConnectable()) {
+						finishConnect(connection);
+					}
+					if(key.isValid() && key.isReadable()) {
+						read(connection);
+					}
+					if(key.isValid() && key.isWritable() && !connection.isClosed()) {
+						write(connection);
+					}
+				} catch (IOException e) {
+					log.info("connection to " + connection.describe() + " failed: " + e.getMessage());
+					close(connection);
+				} catch (RuntimeException e) {
+					// whatever a peer sends, it only costs that peer its connection, not the engine
+					log.warning("closing connection to " + connection.describe() + " after: " + e);
+					close(connection);
+				}
+			}
+			if(eventsQueued) {
+				eventsQueued = false;
+				for(NioConnection connection : connections) {
+					if(connection.isHandshakeDone()) {
+						sendEvents(connection);
+					}
+				}
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel server) {
+		try {
+			SocketChannel channel = server.accept();
+			if(channel == null) return;
+			log.info("Client " + channel.socket().getInetAddress().getHostAddress() + ":" +
+					channel.socket().getPort() +" trying to connect");
+			channel.configureBlocking(false);
+			NioConnection connection = new NioConnection(this, channel, null);
+			connection.setKey(channel.register(selector, readOps(), connection));
+			connections.add(connection);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// start connecting to the peers asked for, by the configuration, the client or a refused handshake
+	private void connectPeers() {
+		HostPort peer;
+		while((peer = PeerMaster.peerToConnect.poll()) != null) {
+			try {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				NioConnection connection = new NioConnection(this, channel, peer);
+				connections.add(connection);
+				if(channel.connect(new InetSocketAddress(peer.host, peer.port))) {
+					connection.setKey(channel.register(selector, readOps(), connection));
+					sendHandshake(connection);
+				} else {
+					connection.setKey(channel.register(selector, SelectionKey.OP_CONNECT, connection));
+				}
+			} catch (IOException e) {
+				log.info(e.toString());
+			}
+		}
+	}
+
+	private void disconnectPeers() {
+		if(PeerMaster.disconList.isEmpty()) return;
+		for(NioConnection connection : new ArrayList<NioConnection>(connections)) {
+			if(connection.isHandshakeDone() && PeerMaster.inDisconList(connection.getPeer())) {
+				close(connection);
+			}
+		}
+	}
+
+	// stop reading from the peers while the workers are behind, the requests they send wait in the socket
+	// buffers and then in theirs, or start again once the workers have caught up
+	private void pauseReading(boolean pause) {
+		if(pause == paused) {
+			return;
+		}
+		paused = pause;
+		for(SelectionKey key : selector.keys()) {
+			if(key.isValid() && key.attachment() instanceof NioConnection
+					&& (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+				key.interestOps(pause ? key.interestOps() & ~SelectionKey.OP_READ : key.interestOps() | SelectionKey.OP_READ);
+			}
+		}
+	}
+	
+	// OP_READ unless reading is paused
+	private int readOps() {
+		return paused ? 0 : SelectionKey.OP_READ;
+	}
+
+	private void finishConnect(NioConnection connection) throws IOException {
+		connection.getChannel().finishConnect();
+		connection.getKey().interestOps(readOps());
+		sendHandshake(connection);
+	}
+
+	private void sendHandshake(NioConnection connection) {
+		log.info("Trying to Handshake with peer " + connection.getAddress().toString());
+		connection.send(Protocol.HANDSHAKE_REQUEST(this.localHostPort, PeerMaster.capabilities,
+				PeerResume.describe()));
+	}
+
+	private void read(NioConnection connection) throws IOException {
+		ArrayList<NioConnection.Message> messages = connection.read();
+		if(messages == null) {
+			log.info("connection closed by " + connection.describe());
+			close(connection);
+			return;
+		}
+		while(!messages.isEmpty() && !connection.isClosed()) {
+			for(NioConnection.Message message : messages) {
+				if(connection.isHandshakeDone()) {
+					ProcessRequest requestprocessor = new ProcessRequest(this.fileSystemManager, message.document,
+							connection.getPeer(), connection, message.payload);
+					WorkerPool.execute(WorkerPool.laneOf(message.document), requestprocessor);
+				} else if(connection.isOutgoing()) {
+					handshakeResponse(connection, message.document);
+				} else {
+					handshakeRequest(connection, message.document);
+				}
+			}
+			// anything that came in behind the handshake is now read in the agreed encoding
+			messages = connection.parse();
+		}
+	}
+
+	private void write(NioConnection connection) throws IOException {
+		if(connection.write()) {
+			if(connection.isCloseWhenWritten()) {
+				close(connection);
+				return;
+			}
+			// anything queued from now on asks for OP_WRITE again
+			connection.getKey().interestOps(readOps());
+		}
+	}
+
+	// a peer connecting to us, as in ConnectFromPeer
+	private void handshakeRequest(NioConnection connection, Document request) {
+		HostPort currentClient = hostPortOf(request.get("hostPort"));
+		if(!(request.get("command") instanceof String)) {
+			refuse(connection, Protocol.INVALID_PROTOCOL("message must contain a command field as string"));
+		} else if(currentClient == null) {
+			refuse(connection, Protocol.INVALID_PROTOCOL("message must contain host and port for handshake"));
+		} else if(!request.getString("command").equals("HANDSHAKE_REQUEST")) {
+			refuse(connection, Protocol.INVALID_PROTOCOL("handshake is required"));
+		} else {
+			if(PeerMaster.isPeerFull()) {
+				refuse(connection, Protocol.CONNECTION_REFUSED(PeerMaster.peerListToDoc()));
+			} else if(PeerMaster.containPeer(currentClient)) {
+				refuse(connection, Protocol.INVALID_PROTOCOL("handshake request after successful handshake"));
+			} else {
+				log.info("Handshake success with client " + currentClient.toString());
+				PeerMaster.addPeer(currentClient);
+				PeerMaster.setCapabilities(currentClient, request);
+				PeerMaster.peerConnections.put(currentClient, connection);
+				connection.send(Protocol.HANDSHAKE_RESPONSE(this.localHostPort, PeerMaster.capabilities,
+						PeerResume.describe()));
+				// everything after the handshake is framed if both sides can
+				connection.setBinary(PeerMaster.peerSupports(currentClient, PeerMaster.CAP_BINARY));
+				connection.handshakeDone(currentClient);
+				PeerResume.connected(currentClient, request);
+				eventsQueued = true;
+			}
+		}
+	}
+
+	// the answer to our handshake, as in ConnectToPeer
+	private void handshakeResponse(NioConnection connection, Document response) {
+		log.info("Server respond handshake with: " + response.toJson());
+		String command = response.get("command") instanceof String ? response.getString("command") : "";
+		HostPort hostReturned = hostPortOf(response.get("hostPort"));
+		if(command.equals("HANDSHAKE_RESPONSE") && hostReturned == null) {
+			command = "";
+		}
+		switch(command) {
+		case "HANDSHAKE_RESPONSE":
+			PeerMaster.addPeer(hostReturned);
+			PeerMaster.setCapabilities(hostReturned, response);
+			PeerMaster.peerConnections.put(hostReturned, connection);
+			// everything after the handshake is framed if both sides can
+			connection.setBinary(PeerMaster.peerSupports(hostReturned, PeerMaster.CAP_BINARY));
+			connection.handshakeDone(hostReturned);
+			PeerResume.connected(hostReturned, response);
+			eventsQueued = true;
+			log.info("peer " + hostReturned.toString() + " is connected!");
+			break;
+		case "CONNECTION_REFUSED":
+			// try the peers it is connected to instead
+			log.info("Connection rejected by peer " + connection.describe());
+			if(response.get("peers") instanceof ArrayList) {
+				for(Object potentialPeer : (ArrayList<?>) response.get("peers")) {
+					HostPort peer = hostPortOf(potentialPeer);
+					if(peer != null) {
+						PeerMaster.peerToConnect.offer(peer);
+					}
+				}
+			}
+			close(connection);
+			break;
+		default:
+			log.info("Invalid, Closing connection for " + connection.describe());
+			close(connection);
+		}
+	}
+
+	// the host and port a peer gave, or null unless it is a document with a host string and a valid port
+	private static HostPort hostPortOf(Object obj) {
+		if(!(obj instanceof Document)) {
+			return null;
+		}
+		Document doc = (Document) obj;
+		if(!(doc.get("host") instanceof String) || !(doc.get("port") instanceof Long)) {
+			return null;
+		}
+		long port = doc.getLong("port");
+		if(port <= 0 || port > 65535) {
+			return null;
+		}
+		return new HostPort(doc.getString("host"), (int) port);
+	}
+
+	private void refuse(NioConnection connection, Document response) {
+		connection.send(response);
+		connection.closeWhenWritten();
+	}
+
+	// hand the events queued for the peer over to ProcessEvent
+	private void sendEvents(NioConnection connection) {
+		EventQueue events = PeerMaster.peerEventQ.get(connection.getPeer());
+		if(events == null) return;
+		FileSystemEvent newEvent;
+		while((newEvent = events.poll()) != null) {
+			ProcessEvent ep = new ProcessEvent(this.fileSystemManager, newEvent, connection);
+			// events go out in the order the file system manager gave them
+			WorkerPool.execute(WorkerPool.laneOf(connection.getPeer()), ep);
+		}
+	}
+
+	private void close(NioConnection connection) {
+		if(!connections.remove(connection)) return;
+		if(connection.getKey() != null) {
+			connection.getKey().cancel();
+		}
+		connection.release();
+		if(connection.isHandshakeDone()) {
+			PeerMaster.removePeer(connection.getPeer());
+			log.info(connection.getPeer().toString() + " is disconnected");
+		}
+	}
+}
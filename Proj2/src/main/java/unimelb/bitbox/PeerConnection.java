@@ -0,0 +1,187 @@
+package unimelb.bitbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import unimelb.bitbox.util.BlockCompressor;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.FileHandleCache;
+
+/**
+ * A TCP connection to a peer, carrying protocol messages either as JSON lines or,
+ * once both peers have advertised {@link PeerMaster#CAP_BINARY} at handshake, as
+ * length prefixed binary frames.
+ * <br/>
+ * Each frame is an int length followed by a frame type. Most messages are sent as
+ * a frame holding their JSON text. FILE_BYTES_REQUEST and FILE_BYTES_RESPONSE have
+ * frames of their own, with a compact header and, for responses, the raw file bytes
+ * instead of Base64 content, or a frame type of its own for compressed content.
+ * On receipt these are turned back into the same documents as the JSON protocol,
+ * less the content, which is available from {@link #receivedPayload()}.
+ * <br/>
+ * How the bytes get to and from the socket is up to the subclass: {@link StreamConnection}
+ * for a thread blocking on each connection, {@link NioConnection} for connections served
+ * by the {@link NioEngine}.
+ */
+public abstract class PeerConnection {
+
+	// frame types
+	protected static final byte FRAME_JSON = 0;
+	protected static final byte FRAME_BYTES_REQUEST = 1;
+	protected static final byte FRAME_BYTES_RESPONSE = 2;
+	// a FILE_BYTES_RESPONSE whose content is compressed, see BlockCompressor
+	protected static final byte FRAME_BYTES_DEFLATED = 3;
+
+	// largest frame accepted, well above any block size in use
+	protected static final int MAX_FRAME = 64*1024*1024;
+
+	protected volatile boolean binary = false;
+	// raw content of the last FILE_BYTES_RESPONSE received, only used by the reading thread
+	protected ByteBuffer payload;
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	// switch to binary frames, only once both sides have agreed at handshake
+	public abstract void setBinary(boolean binary);
+
+	public abstract boolean isClosed();
+
+	public abstract void close() throws IOException;
+
+	// raw content of the message last received, if it came as a binary frame
+	public ByteBuffer receivedPayload() {
+		return payload;
+	}
+
+	public void send(Document doc) {
+		send(doc, null);
+	}
+
+	// send a message, with the file content of a FILE_BYTES_RESPONSE given separately
+	public abstract void send(Document doc, ByteBuffer content);
+
+	// true if file content can be sent straight from a file channel into the socket
+	public abstract boolean canTransferFile();
+
+	// send a FILE_BYTES_RESPONSE with its content transferred straight from the file,
+	// false if the file does not hold the requested range; the file is released once sent
+	public abstract boolean sendFileBytes(Document doc, FileHandleCache.Handle file, long position, long length) throws IOException;
+
+	// the bytes to send for a message in the current encoding
+	protected ByteBuffer[] encode(Document doc, ByteBuffer content) throws IOException {
+		if(!binary) {
+			if(content != null) {
+				doc.append("content", Base64.getEncoder().encodeToString(toArray(content)));
+			}
+			return new ByteBuffer[] {ByteBuffer.wrap((doc.toJson() + "\n").getBytes(StandardCharsets.UTF_8))};
+		}
+		String command = doc.getString("command");
+		if("FILE_BYTES_REQUEST".equals(command)) {
+			ByteArrayOutputStream header = writeBytesHeader(doc);
+			return new ByteBuffer[] {frameHeader(FRAME_BYTES_REQUEST, header, 0)};
+		} else if("FILE_BYTES_RESPONSE".equals(command)) {
+			ByteBuffer bytes = content;
+			if(bytes == null) {
+				bytes = ByteBuffer.wrap(Base64.getDecoder().decode(doc.getString("content")));
+			}
+			return new ByteBuffer[] {encodeFileBytesHeader(doc, bytes.remaining()), bytes.duplicate()};
+		} else {
+			byte[] json = doc.toJson().getBytes(StandardCharsets.UTF_8);
+			ByteBuffer frame = ByteBuffer.allocate(5 + json.length);
+			frame.putInt(1 + json.length);
+			frame.put(FRAME_JSON);
+			frame.put(json);
+			frame.flip();
+			return new ByteBuffer[] {frame};
+		}
+	}
+
+	// everything of a binary FILE_BYTES_RESPONSE frame up to its content
+	protected ByteBuffer encodeFileBytesHeader(Document doc, long length) throws IOException {
+		ByteArrayOutputStream header = writeBytesHeader(doc);
+		DataOutputStream headerOut = new DataOutputStream(header);
+		headerOut.writeBoolean(doc.getBoolean("status"));
+		headerOut.writeUTF(doc.getString("message"));
+		return frameHeader(doc.containsKey("encoding") ? FRAME_BYTES_DEFLATED : FRAME_BYTES_RESPONSE, header, length);
+	}
+
+	// decode a binary frame, less its length, setting payload for FILE_BYTES_RESPONSE
+	protected Document decodeFrame(byte[] frame, int offset, int length) throws IOException {
+		DataInputStream body = new DataInputStream(new ByteArrayInputStream(frame, offset + 1, length - 1));
+		switch(frame[offset]) {
+		case FRAME_JSON:
+			return Document.parse(new String(frame, offset + 1, length - 1, StandardCharsets.UTF_8));
+		case FRAME_BYTES_REQUEST:
+			return readBytesHeader(body, "FILE_BYTES_REQUEST");
+		case FRAME_BYTES_RESPONSE:
+		case FRAME_BYTES_DEFLATED:
+			Document doc = readBytesHeader(body, "FILE_BYTES_RESPONSE");
+			doc.append("status", body.readBoolean());
+			doc.append("message", body.readUTF());
+			if(frame[offset] == FRAME_BYTES_DEFLATED) {
+				doc.append("encoding", BlockCompressor.ENCODING);
+			}
+			int start = offset + length - body.available();
+			payload = ByteBuffer.wrap(frame, start, offset + length - start).slice();
+			return doc;
+		default:
+			throw new IOException("unknown frame type " + frame[offset]);
+		}
+	}
+
+	private static ByteBuffer frameHeader(byte type, ByteArrayOutputStream header, long contentLength) {
+		ByteBuffer frame = ByteBuffer.allocate(5 + header.size());
+		frame.putInt((int) (1 + header.size() + contentLength));
+		frame.put(type);
+		frame.put(header.toByteArray());
+		frame.flip();
+		return frame;
+	}
+
+	// header shared by byte requests and responses
+	private static ByteArrayOutputStream writeBytesHeader(Document doc) throws IOException {
+		Document descriptor = (Document) doc.get("fileDescriptor");
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream headerOut = new DataOutputStream(header);
+		headerOut.writeUTF(doc.getString("pathName"));
+		headerOut.writeUTF(descriptor.getString("md5"));
+		headerOut.writeLong(descriptor.getLong("lastModified"));
+		headerOut.writeLong(descriptor.getLong("fileSize"));
+		headerOut.writeLong(doc.getLong("position"));
+		headerOut.writeLong(doc.getLong("length"));
+		return header;
+	}
+
+	private static Document readBytesHeader(DataInputStream body, String command) throws IOException {
+		Document doc = new Document();
+		String pathName = body.readUTF();
+		Document descriptor = new Document();
+		descriptor.append("md5", body.readUTF());
+		descriptor.append("lastModified", body.readLong());
+		descriptor.append("fileSize", body.readLong());
+		doc.append("command", command);
+		doc.append("fileDescriptor", descriptor);
+		doc.append("pathName", pathName);
+		doc.append("position", body.readLong());
+		doc.append("length", body.readLong());
+		return doc;
+	}
+
+	protected static byte[] toArray(ByteBuffer bytes) {
+		if(bytes.hasArray() && bytes.arrayOffset() == 0 && bytes.position() == 0
+				&& bytes.remaining() == bytes.array().length) {
+			return bytes.array();
+		}
+		byte[] array = new byte[bytes.remaining()];
+		bytes.duplicate().get(array);
+		return array;
+	}
+}
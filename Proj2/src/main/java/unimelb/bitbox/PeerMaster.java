@@ -1,15 +1,20 @@
 package unimelb.bitbox;
 
+import unimelb.bitbox.util.BlockCompressor;
 import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.FileSystemManager;
 import unimelb.bitbox.util.HostPort;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.Queue;
-import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 /** 
  * Master for all peer properties
@@ -24,28 +29,57 @@ public class PeerMaster {
 	public static int maxIncomingPeer;
 	public static long blockSize;
 	public static long syncInterval;
+	public static int transferWindow;
+	public static int workerThreads;
+	public static int workerQueue;
+	public static int queueMemory;
+	public static int queueDisk;
 	public static String mode;
+	public static String tcpEngine;
+	public static String executionMode;
 	public static int udpPort;
 	public static int udpTimeout;
 	public static int udpRetries;
+	public static int udpWindow;
 	public static int clientPort;
 	public static String[] keysList;
 	
-	// number of incoming connections
-	public static int numPeersConnection = 0;	
+	// optional protocol features, advertised at handshake
+	public static final String CAP_DELTA = "FILE_DELTA";
+	public static final String CAP_BINARY = "BINARY_FRAMES";
+	public static final String CAP_DIGEST = "DIGEST_SYNC";
+	public static final String CAP_CHUNKS = "FILE_CHUNKS";
+	public static final String CAP_DEFLATE = "DEFLATE_BLOCKS";
+	public static ArrayList<String> capabilities = new ArrayList<String>();
+	public static ConcurrentHashMap<HostPort, ArrayList<String>> peerCapabilities = new ConcurrentHashMap<HostPort, ArrayList<String>>();
+	// compresses the file blocks sent to peers that support CAP_DEFLATE
+	public static BlockCompressor compressor = new BlockCompressor(Deflater.BEST_SPEED);
+	
+	// The peer registry is shared by the TCP, UDP, client and file system threads,
+	// so everything in it is safe to use concurrently without locking.
+	
+	// event queue of each connected peer, the connected peers are its keys
+	public static ConcurrentHashMap<HostPort, EventQueue> peerEventQ = new ConcurrentHashMap<HostPort, EventQueue>();
 	// list of peers connection
-	public static ArrayList<HostPort> peerList = new ArrayList<HostPort>();
+	public static Set<HostPort> peerList = peerEventQ.keySet();
 	
-	// event Queue;
-	public static HashMap<HostPort, Queue<FileSystemEvent>> peerEventQ = new HashMap<HostPort, Queue<FileSystemEvent>>();
-	//public static Queue<FileSystemEvent> eventQueue = new LinkedList<FileSystemEvent>();
-	//public static Queue<FileSystemEvent> eventQueue2 = new LinkedList<FileSystemEvent>();
+	// TCP connection of each connected peer, for messages not sent in reply to one
+	public static ConcurrentHashMap<HostPort, PeerConnection> peerConnections = new ConcurrentHashMap<HostPort, PeerConnection>();
+	
+	// number of incoming connections
+	public static AtomicInteger numPeersConnection = new AtomicInteger();
 	
 	// disconnect list from the client commands
-	public static ArrayList<HostPort> disconList = new ArrayList<HostPort>();
+	public static Set<HostPort> disconList = ConcurrentHashMap.newKeySet();
 	
 	// connect list for tcp
-	public static Queue<HostPort> peerToConnect = new LinkedList<HostPort>();
+	public static Queue<HostPort> peerToConnect = new ConcurrentLinkedQueue<HostPort>();
+	
+	// the TCP engine to wake when events are queued, if running
+	public static NioEngine nioEngine;
+	
+	// to release the file loaders of the peers that disconnect
+	public static FileSystemManager fileSystemManager;
 	
 	/***************/
 	/** functions **/
@@ -61,16 +95,44 @@ public class PeerMaster {
         maxIncomingPeer = Integer.parseInt(Configuration.getConfigurationValue("maximumIncommingConnections"));
         blockSize = Long.parseLong(Configuration.getConfigurationValue("blockSize"));
         syncInterval = Long.parseLong(Configuration.getConfigurationValue("syncInterval"));
+        tcpEngine = Configuration.getConfigurationValue("tcpEngine", "nio");
+        executionMode = Configuration.getConfigurationValue("executionMode", "platform");
+        transferWindow = Math.max(1, Integer.parseInt(Configuration.getConfigurationValue("transferWindow", "8")));
+        workerThreads = Integer.parseInt(Configuration.getConfigurationValue("workerThreads",
+        		String.valueOf(Runtime.getRuntime().availableProcessors() * 4)));
+        workerQueue = Integer.parseInt(Configuration.getConfigurationValue("workerQueue", "1024"));
+        queueMemory = Math.max(1, Integer.parseInt(Configuration.getConfigurationValue("queueMemory", "1000")));
+        queueDisk = Math.max(queueMemory, Integer.parseInt(Configuration.getConfigurationValue("queueDisk", "100000")));
         
         // UDP configurations
         mode = Configuration.getConfigurationValue("mode");
         udpPort = Integer.parseInt(Configuration.getConfigurationValue("udpPort"));
         udpTimeout = Integer.parseInt(Configuration.getConfigurationValue("udpTimeout"));
         udpRetries = Integer.parseInt(Configuration.getConfigurationValue("udpRetries"));
+        udpWindow = Integer.parseInt(Configuration.getConfigurationValue("udpWindow", "64"));
         
         // Client configurations
         clientPort = Integer.parseInt(Configuration.getConfigurationValue("clientPort"));
         keysList = Configuration.getConfigurationValue("authorized_keys").split(",");
+        
+        // optional features
+        if(Boolean.parseBoolean(Configuration.getConfigurationValue("deltaTransfer", "true"))) {
+        	capabilities.add(CAP_DELTA);
+        }
+        if(Boolean.parseBoolean(Configuration.getConfigurationValue("binaryFrames", "true"))) {
+        	capabilities.add(CAP_BINARY);
+        }
+        if(Boolean.parseBoolean(Configuration.getConfigurationValue("digestSync", "true"))) {
+        	capabilities.add(CAP_DIGEST);
+        }
+        if(Boolean.parseBoolean(Configuration.getConfigurationValue("chunkDedup", "true"))) {
+        	capabilities.add(CAP_CHUNKS);
+        }
+        if(Boolean.parseBoolean(Configuration.getConfigurationValue("compression", "true"))) {
+        	capabilities.add(CAP_DEFLATE);
+        	compressor = new BlockCompressor(Integer.parseInt(Configuration.getConfigurationValue("compressionLevel",
+        			String.valueOf(Deflater.BEST_SPEED))));
+        }
 	}
 	
 	// print all current configurations
@@ -82,53 +144,60 @@ public class PeerMaster {
 		System.out.println("maxIncomingPeer	:" + maxIncomingPeer);
 		System.out.println("blockSize	:" + blockSize);
 		System.out.println("syncInterval	:" + syncInterval);
+		System.out.println("transferWindow	:" + transferWindow);
+		System.out.println("workerThreads	:" + workerThreads);
+		System.out.println("workerQueue	:" + workerQueue);
+		System.out.println("queueMemory	:" + queueMemory);
+		System.out.println("queueDisk	:" + queueDisk);
 		System.out.println("mode		:" + mode);
+		System.out.println("tcpEngine	:" + tcpEngine);
+		System.out.println("executionMode	:" + executionMode);
 		System.out.println("udpPort		:" + udpPort);
 		System.out.println("udpTimeout	:" + udpTimeout);
 		System.out.println("udpRetries	:" + udpRetries);
+		System.out.println("udpWindow	:" + udpWindow);
 		System.out.println("clientPort	:" + clientPort);
 		System.out.println("keysList	:" + Arrays.toString(keysList));
+		System.out.println("capabilities	:" + capabilities);
 	}
 	
 	// add a peer not already connected to peer list
 	public static boolean addPeer(HostPort peerNew) {
-		if(containPeer(peerNew)) {
+		// the queue opens the peer's journal, so only one is made
+		EventQueue[] newQ = new EventQueue[1];
+		peerEventQ.computeIfAbsent(peerNew, peer -> newQ[0] = new EventQueue(peer));
+		if(newQ[0] == null) {
 			return false;
-		} else {
-			Queue<FileSystemEvent> newQ = new LinkedList<FileSystemEvent>();
-			peerList.add(peerNew);
-			peerEventQ.put(peerNew, newQ);
-			numPeersConnection += 1;
-			return true;
 		}
+		numPeersConnection.incrementAndGet();
+		return true;
 	}
 	
 	// remove a peer already connected from peer list
 	public static boolean removePeer(HostPort peerNew) {
-		if(containPeer(peerNew)) {
-			peerList.remove(peerNew);
-			peerEventQ.remove(peerNew);
-			numPeersConnection -= 1;
-			return true;
-		} else {
-			
+		EventQueue events = peerEventQ.remove(peerNew);
+		if(events == null) {
 			return false;
 		}
+		events.close();
+		if(fileSystemManager != null) {
+			// the files it was sending can be resumed by whoever sends them next
+			fileSystemManager.releaseLoaders(peerNew.toString());
+		}
+		peerCapabilities.remove(peerNew);
+		peerConnections.remove(peerNew);
+		numPeersConnection.decrementAndGet();
+		return true;
 	}
 	
 	// check if a new peer is already connected.
 	public static boolean containPeer(HostPort peerNew) {
-		for(HostPort peerConnected : peerList) {
-			if(peerConnected.equals(peerNew)) {
-				return true;
-			}
-		}
-		return false;
+		return peerEventQ.containsKey(peerNew);
 	}
 	
 	// check if peer is full
 	public static boolean isPeerFull() {
-		if(numPeersConnection >= maxIncomingPeer) {
+		if(numPeersConnection.get() >= maxIncomingPeer) {
 			return true;
 		} else {
 			return false;
@@ -146,22 +215,77 @@ public class PeerMaster {
 	
 	// add event to all connected peer
 	public static void eventToPeer(FileSystemEvent event) {
-		for(HostPort peer:peerList) {
-			peerEventQ.get(peer).offer(event);
+		for(EventQueue events : peerEventQ.values()) {
+			events.offer(event);
+		}
+		if(nioEngine != null) {
+			nioEngine.eventsQueued();
 		}
 	}
 	public static void eventToPeer(ArrayList<FileSystemEvent> event) {
-		for(HostPort peer:peerList) {
-			peerEventQ.get(peer).addAll(event);
+		for(EventQueue events : peerEventQ.values()) {
+			events.addAll(event);
+		}
+		if(nioEngine != null) {
+			nioEngine.eventsQueued();
 		}
 	}
 	
-	public static boolean inDisconList(HostPort peer) {
-		if(disconList.contains(peer)) {
-			disconList.remove(peer);
-			return true;
+	// add events for one peer only
+	public static void eventToPeer(HostPort peer, ArrayList<FileSystemEvent> event) {
+		EventQueue events = peerEventQ.get(peer);
+		if(events != null) {
+			events.addAll(event);
+		}
+		if(nioEngine != null) {
+			nioEngine.eventsQueued();
 		}
-		return false;
+	}
+	
+	// sync a peer that messages were lost on the way to
+	public static void resyncPeer(HostPort peer) {
+		EventQueue events = peerEventQ.get(peer);
+		if(events != null) {
+			events.messagesLost();
+		}
+		if(nioEngine != null) {
+			nioEngine.eventsQueued();
+		}
+	}
+	
+	// catch a peer that has connected again up on the events it missed in our change log
+	public static void resumePeer(HostPort peer, long ack, ArrayList<FileSystemEvent> missed) {
+		EventQueue events = peerEventQ.get(peer);
+		if(events != null) {
+			events.resume(ack, missed);
+		}
+		if(nioEngine != null) {
+			nioEngine.eventsQueued();
+		}
+	}
+	
+	// record the features a peer advertised in its handshake
+	public static void setCapabilities(HostPort peer, Document handshake) {
+		ArrayList<String> advertised = new ArrayList<String>();
+		if(handshake.containsKey("capabilities")) {
+			for(Object capability : (ArrayList<?>) handshake.get("capabilities")) {
+				advertised.add(capability.toString());
+			}
+		}
+		peerCapabilities.put(peer, advertised);
+	}
+	
+	// check if a feature can be used with a peer, i.e. both sides support it
+	public static boolean peerSupports(HostPort peer, String capability) {
+		if(peer == null || !capabilities.contains(capability)) {
+			return false;
+		}
+		ArrayList<String> advertised = peerCapabilities.get(peer);
+		return advertised != null && advertised.contains(capability);
+	}
+	
+	public static boolean inDisconList(HostPort peer) {
+		return disconList.remove(peer);
 	}
 	
 
@@ -0,0 +1,42 @@
+package unimelb.bitbox;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.HostPort;
+
+/**
+ * Reads the messages from a connected peer, blocking until each arrives,
+ * and starts a ProcessRequest for each of them. Ends when the connection does.
+ */
+public class PeerReader implements Runnable {
+	private static Logger log = Logger.getLogger(PeerReader.class.getName());
+	private FileSystemManager fileSystemManager;
+	private HostPort peer;
+	private StreamConnection connection;
+	
+	public PeerReader(FileSystemManager fileSystemManager, HostPort peer, StreamConnection connection) {
+		this.fileSystemManager = fileSystemManager;
+		this.peer = peer;
+		this.connection = connection;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			Document request;
+			while((request = connection.receive()) != null) {
+				ProcessRequest requestprocessor = new ProcessRequest(this.fileSystemManager, request, this.peer,
+						this.connection);
+				WorkerPool.execute(WorkerPool.laneOf(request), requestprocessor);
+				// stop reading while the workers are behind
+				WorkerPool.throttle();
+			}
+			log.info("connection closed by " + peer.toString());
+		} catch (IOException e) {
+			log.info("connection to " + peer.toString() + " lost: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package unimelb.bitbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+import unimelb.bitbox.util.HostPort;
+
+/**
+ * Catching up a TCP peer that reconnects from our change log, instead of waiting
+ * for the next sync.
+ * <br/>
+ * Requests made for logged events carry the event's sequence number. For each
+ * peer's change log we keep the last sequence number acknowledged, that is the
+ * highest one below which every request received has been carried out, and save
+ * them in the state directory. A file create or modify is only carried out once
+ * its file has loaded. A request that failed here is never acknowledged, so the
+ * peer sends it again the next time it connects, while one refused because it
+ * can never succeed, e.g. for a file that already exists, is. Both handshake messages carry our own change log
+ * id and these acknowledgements, so each side can look up how far the other got
+ * in its log and queue just the events after that, in place of those of them
+ * still journalled for it, if any. A peer we have no
+ * acknowledgement from, or that is further behind than the log goes, is synced.
+ */
+public class PeerResume {
+	private static Logger log = Logger.getLogger(PeerResume.class.getName());
+
+	// change logs of peers remembered, the least recently connected ones are forgotten
+	private static final int MAX_LOGS = 64;
+	private static final String FILE_NAME = ".bitbox.acks(bitbox)";
+
+	private static FileSystemManager fileSystemManager;
+	private static File file;
+	private static boolean dirty = false;
+	// last sequence number acknowledged, by change log id
+	private static LinkedHashMap<String, Long> acks = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	// change log id of each connected peer
+	private static ConcurrentHashMap<HostPort, String> peerLogs = new ConcurrentHashMap<HostPort, String>();
+	// sequence numbers received and not yet processed, and the highest received, by change log id
+	private static HashMap<String, TreeSet<Long>> inFlight = new HashMap<String, TreeSet<Long>>();
+	private static HashMap<String, Long> received = new HashMap<String, Long>();
+	// requests whose files are still loading, by path name
+	private static HashMap<String, ArrayList<Loading>> loading = new HashMap<String, ArrayList<Loading>>();
+
+	private static class Loading {
+		final HostPort peer;
+		final long sequence;
+
+		Loading(HostPort peer, long sequence) {
+			this.peer = peer;
+			this.sequence = sequence;
+		}
+	}
+
+	// load the acknowledgements saved
+	public static synchronized void start(FileSystemManager fsm) {
+		fileSystemManager = fsm;
+		file = new File(Configuration.getConfigurationValue("stateDirectory", PeerMaster.path), FILE_NAME);
+		// saved every sync interval, and on the way out
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> save()));
+		if(!file.isFile()) return;
+		try {
+			Document saved = Document.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+			@SuppressWarnings("unchecked")
+			ArrayList<Document> logs = (ArrayList<Document>) saved.get("acks");
+			for(Document ack : logs) {
+				acks.put(ack.getString("logId"), ack.getLong("sequence"));
+			}
+		} catch (IOException | RuntimeException e) {
+			log.warning("ignoring acknowledgements in " + file + ": " + e);
+		}
+	}
+
+	// what goes in our handshake messages
+	public static synchronized Document describe() {
+		Document doc = new Document();
+		doc.append("logId", fileSystemManager.changeLogId());
+		ArrayList<Document> logs = new ArrayList<Document>();
+		for(Map.Entry<String, Long> ack : acks.entrySet()) {
+			Document entry = new Document();
+			entry.append("logId", ack.getKey());
+			entry.append("sequence", ack.getValue());
+			logs.add(entry);
+		}
+		doc.append("acks", logs);
+		return doc;
+	}
+
+	// a peer has completed the handshake, queue what it missed in our change log
+	public static void connected(HostPort peer, Document handshake) {
+		Long ack = null;
+		if(handshake.containsKey("changeLog")) {
+			Document changeLog = (Document) handshake.get("changeLog");
+			peerLogs.put(peer, changeLog.getString("logId"));
+			reconnected(peer, changeLog.getString("logId"));
+			@SuppressWarnings("unchecked")
+			ArrayList<Document> theirAcks = (ArrayList<Document>) changeLog.get("acks");
+			for(Document theirAck : theirAcks) {
+				if(theirAck.getString("logId").equals(fileSystemManager.changeLogId())) {
+					ack = theirAck.getLong("sequence");
+				}
+			}
+		}
+		ArrayList<FileSystemEvent> missed = ack == null ? null : fileSystemManager.changesSince(ack);
+		if(missed == null) {
+			log.info(peer.toString() + " cannot catch up from the change log, syncing");
+			SyncEvent.syncPeer(fileSystemManager, peer, null);
+			return;
+		}
+		log.info(peer.toString() + " is at sequence " + ack + ", sending " + missed.size() + " events it missed");
+		// the events journalled for it that the change log covers are dropped, not sent twice
+		PeerMaster.resumePeer(peer, ack, missed);
+	}
+
+	// a request with a sequence number has been received from a peer, called in the order received
+	public static synchronized void received(HostPort peer, long sequence) {
+		String logId = peerLogs.get(peer);
+		if(logId == null) return;
+		TreeSet<Long> pending = inFlight.get(logId);
+		if(pending == null) {
+			pending = new TreeSet<Long>();
+			inFlight.put(logId, pending);
+		}
+		pending.add(sequence);
+		Long highest = received.get(logId);
+		if(highest == null || highest < sequence) {
+			received.put(logId, sequence);
+		}
+	}
+
+	// the request has been processed
+	public static synchronized void processed(HostPort peer, long sequence) {
+		String logId = peerLogs.get(peer);
+		if(logId == null) return;
+		TreeSet<Long> pending = inFlight.get(logId);
+		if(pending == null || !pending.remove(sequence)) return;
+		long ack = pending.isEmpty() ? received.get(logId) : pending.first() - 1;
+		Long previous = acks.get(logId);
+		if(previous == null || previous < ack) {
+			acks.put(logId, ack);
+			dirty = true;
+			forgetOldest();
+		}
+	}
+
+	// a request has started loading a file, it is processed once the file has loaded
+	public static synchronized void loading(HostPort peer, long sequence, String pathName) {
+		ArrayList<Loading> requests = loading.get(pathName);
+		if(requests == null) {
+			requests = new ArrayList<Loading>();
+			loading.put(pathName, requests);
+		}
+		requests.add(new Loading(peer, sequence));
+	}
+
+	// the file has loaded, or failed to, and then the requests that started it are left unacknowledged
+	public static synchronized void loaded(String pathName, boolean success) {
+		ArrayList<Loading> requests = loading.remove(pathName);
+		if(requests == null || !success) return;
+		for(Loading request : requests) {
+			processed(request.peer, request.sequence);
+		}
+	}
+
+	// the requests of an earlier connection that are still unacknowledged will be sent again
+	private static synchronized void reconnected(HostPort peer, String logId) {
+		inFlight.remove(logId);
+		received.remove(logId);
+		for(ArrayList<Loading> requests : loading.values()) {
+			requests.removeIf(request -> request.peer.equals(peer));
+		}
+		loading.values().removeIf(requests -> requests.isEmpty());
+	}
+
+	// write the acknowledgements if they changed, a crash loses the latest ones, which only means
+	// the peers send a few events again
+	public static void save() {
+		String json;
+		synchronized(PeerResume.class) {
+			if(!dirty || file == null) return;
+			Document doc = new Document();
+			doc.append("acks", (ArrayList<?>) describe().get("acks"));
+			json = doc.toJson();
+			dirty = false;
+		}
+		File tempFile = new File(file.getParentFile(), ".tmp" + file.getName());
+		try {
+			Files.write(tempFile.toPath(), json.getBytes(StandardCharsets.UTF_8));
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			log.warning("could not save acknowledgements: " + e.getMessage());
+		}
+	}
+
+	private static void forgetOldest() {
+		while(acks.size() > MAX_LOGS) {
+			String oldest = acks.keySet().iterator().next();
+			acks.remove(oldest);
+			inFlight.remove(oldest);
+			received.remove(oldest);
+		}
+	}
+}
@@ -1,31 +1,24 @@
 package unimelb.bitbox;
 
-import java.io.BufferedReader;
-import java.io.PrintWriter;
 import java.util.logging.Logger;
-import java.net.Socket;
 
 import unimelb.bitbox.util.Document;
 import unimelb.bitbox.util.FileSystemManager;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 
-public class ProcessEvent extends Thread{
+public class ProcessEvent implements Runnable{
 	private static Logger log = Logger.getLogger(ProcessEvent.class.getName());
 	private FileSystemManager fileSystemManager; 
 	private FileSystemEvent eventToHandle;
-	private Socket socket;
-	private BufferedReader reader;
-	private PrintWriter writer;
+	private PeerConnection connection;
     
     
-    public ProcessEvent(FileSystemManager fileSystemManager,FileSystemEvent eventToHandle,Socket socket,
-    		BufferedReader reader, PrintWriter writer) {
+    public ProcessEvent(FileSystemManager fileSystemManager,FileSystemEvent eventToHandle,
+    		PeerConnection connection) {
     	// initialize
     	this.fileSystemManager = fileSystemManager;
     	this.eventToHandle = eventToHandle;
-    	this.socket = socket;
-    	this.reader = reader;
-    	this.writer = writer;
+    	this.connection = connection;
     	//this.isComplete = false;
 
     }
@@ -58,7 +51,11 @@ public class ProcessEvent extends Thread{
 			break;
     	}
     	
-    	writer.println(request.toJson());
+    	if(this.eventToHandle.sequence != 0) {
+    		// for the peer to acknowledge, see PeerResume
+    		request.append("sequence", this.eventToHandle.sequence);
+    	}
+    	connection.send(request);
     }
    
 }
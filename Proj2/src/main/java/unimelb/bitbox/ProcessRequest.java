@@ -1,35 +1,59 @@
 package unimelb.bitbox;
 
-import java.io.BufferedReader;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.logging.Logger;
-import java.net.Socket;
 
 import unimelb.bitbox.util.Document;
 import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+import unimelb.bitbox.util.HostPort;
 
-public class ProcessRequest extends Thread{
+public class ProcessRequest implements Runnable{
 	private static Logger log = Logger.getLogger(ProcessRequest.class.getName());
+	// reads of a file byte request before telling the peer it failed
+	private static final int READ_ATTEMPTS = 5;
 	private FileSystemManager fileSystemManager; 
 	private Document request;
 	private String command;
-	private Socket socket;
-	private BufferedReader reader;
-	private PrintWriter writer; 
+	private HostPort peer;
+	private PeerConnection connection;
+	private ByteBuffer payload;
+	// whether the request is acknowledged once processed, not if it failed or its file is still loading
+	private boolean acknowledge = true;
 	
-	public ProcessRequest(FileSystemManager fileSystemManager,Document request
-			,Socket socket, BufferedReader reader, PrintWriter writer) {
+	public ProcessRequest(FileSystemManager fileSystemManager,Document request, HostPort peer
+			,PeerConnection connection) {
+		// created by the reading thread straight after the request was received
+		this(fileSystemManager, request, peer, connection, connection.receivedPayload());
+	}
+	
+	public ProcessRequest(FileSystemManager fileSystemManager,Document request, HostPort peer
+			,PeerConnection connection, ByteBuffer payload) {
 		this.fileSystemManager = fileSystemManager;
 		this.request = request;
 		this.command = request.getString("command");
-		this.socket = socket;
-    	this.reader = reader;
-    	this.writer = writer;
+		this.peer = peer;
+		this.connection = connection;
+		this.payload = payload;
     	//this.isComplete = false;
+		if(request.containsKey("sequence")) {
+			PeerResume.received(peer, request.getLong("sequence"));
+		}
 	}
 	
 	@Override
 	public void run() {
+		try {
+			process();
+		} finally {
+			if(acknowledge && request.containsKey("sequence")) {
+				PeerResume.processed(peer, request.getLong("sequence"));
+			}
+		}
+	}
+	
+	private void process() {
 		log.info("get from peer: " + command);
 		switch(command) {
 		case "HANDSHAKE_REQUEST":
@@ -57,6 +81,24 @@ public class ProcessRequest extends Thread{
 		case "FILE_BYTES_RESPONSE":
 			processFileByte();
 			break;
+		case "FILE_DELTA_REQUEST":
+			processFileDeltaRequest();
+			break;
+		case "FILE_DELTA_RESPONSE":
+			processFileDelta();
+			break;
+		case "FILE_CHUNKS_REQUEST":
+			processFileChunksRequest();
+			break;
+		case "FILE_CHUNKS_RESPONSE":
+			processFileChunks();
+			break;
+		case "DIRECTORY_DIGEST_REQUEST":
+			processDirectoryDigestRequest();
+			break;
+		case "DIRECTORY_DIGEST_RESPONSE":
+			processDirectoryDigest();
+			break;
 		case "FILE_CREATE_RESPONSE":
 			processResponse();
 			break;
@@ -97,7 +139,7 @@ public class ProcessRequest extends Thread{
 	private void processHandshake() {
 		// receive handshake after handshake
 		Document result = Protocol.INVALID_PROTOCOL("handshake request after successful handshake");
-		writer.println(result.toJson());
+		connection.send(result);
 	}
 	
 	// process file create
@@ -105,11 +147,17 @@ public class ProcessRequest extends Thread{
 		log.info("Start Processing File Create Request: " + this.request.getString("pathName"));
 		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
 		Document result = requestOperator.fileCreateResponse(this.request);
+		acknowledgeWhenDone(requestOperator, result, true);
 
 		// send result to remote peer
-		writer.println(result.toJson());
+		connection.send(result);
 		log.info("FileCreateResponse : " + result.toJson());
 		if(result.getBoolean("status") && !requestOperator.hasShortcut) {
+			fileSystemManager.setLoaderOwner(this.request.getString("pathName"), this.peer.toString());
+			// a resumed load only fetches the bytes it is missing
+			if(!requestOperator.resumed && requestChunks(requestOperator)) {
+				return;
+			}
 			requestFileByte(result);
 		}
 	}
@@ -119,11 +167,12 @@ public class ProcessRequest extends Thread{
 		log.info("Start Processing File Delete: " + this.request.getString("pathName"));
 		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
 		Document result = requestOperator.fileDeleteResponse(this.request);
+		acknowledgeWhenDone(requestOperator, result, false);
 		if(result.getBoolean("status")) {
 			log.info("Success delete file: " + this.request.getString("pathName"));
 		}
 		
-		writer.println(result.toJson());
+		connection.send(result);
 	}
 	
 	// process file modify
@@ -131,62 +180,210 @@ public class ProcessRequest extends Thread{
 		log.info("Start Processing File Modify: " + this.request.getString("pathName"));
 		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
 		Document result = requestOperator.fileModifyResponse(this.request);
+		acknowledgeWhenDone(requestOperator, result, true);
 		// send result to remote peer
-		writer.println(result.toJson());
+		connection.send(result);
 		try {
 			Thread.sleep(100);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
 		if(result.getBoolean("status") && !requestOperator.hasShortcut) {
+			fileSystemManager.setLoaderOwner(this.request.getString("pathName"), this.peer.toString());
+			// a resumed load only fetches the bytes it is missing
+			if(requestOperator.resumed) {
+				requestFileByte(result);
+				return;
+			}
+			if(requestChunks(requestOperator)) {
+				return;
+			}
+			// only fetch what changed if the peer can compute a delta
+			if(PeerMaster.peerSupports(this.peer, PeerMaster.CAP_DELTA)) {
+				Document deltaRequest = requestOperator.fileDeltaRequest(this.request);
+				if(deltaRequest != null) {
+					log.info("Requesting delta for " + this.request.getString("pathName"));
+					connection.send(deltaRequest);
+					return;
+				}
+			}
 			requestFileByte(result);
 		}
 	}
 	
+	// a request that failed here is not acknowledged, so the peer sends it again when it reconnects, and one that
+	// started loading a file is acknowledged once the file has loaded; before the response is sent, so the load
+	// cannot complete first
+	private void acknowledgeWhenDone(RespondOnReq requestOperator, Document result, boolean loads) {
+		if(!request.containsKey("sequence")) {
+			return;
+		}
+		if(requestOperator.failed) {
+			acknowledge = false;
+		} else if(loads && result.getBoolean("status") && !requestOperator.hasShortcut) {
+			acknowledge = false;
+			PeerResume.loading(peer, request.getLong("sequence"), request.getString("pathName"));
+		}
+	}
+	
+	// ask for the chunks of the file if the peer can cut it, so that those found anywhere in the share are not fetched
+	private boolean requestChunks(RespondOnReq requestOperator) {
+		if(!PeerMaster.peerSupports(this.peer, PeerMaster.CAP_CHUNKS)) {
+			return false;
+		}
+		Document chunksRequest = requestOperator.fileChunksRequest(this.request);
+		if(chunksRequest == null) {
+			return false;
+		}
+		log.info("Requesting chunks of " + this.request.getString("pathName"));
+		connection.send(chunksRequest);
+		return true;
+	}
+	
+	// cut the file into chunks for the peer
+	private void processFileChunksRequest() {
+		log.info("Start Processing File Chunks Request: " + this.request.getString("pathName"));
+		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
+		connection.send(requestOperator.fileChunksResponse(this.request));
+	}
+	
+	// reuse the chunks we already have and fetch the rest
+	private void processFileChunks() {
+		log.info("Start Processing File Chunks Response: " + this.request.getString("pathName"));
+		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
+		ArrayList<Document> result = requestOperator.fileChunksApply(this.request);
+		if(requestOperator.invalid != null) {
+			connection.send(requestOperator.invalid);
+		}
+		if(result == null) {
+			log.info("Chunks not available, requesting whole file " + this.request.getString("pathName"));
+			requestFileByte(this.request);
+		} else {
+			for(Document docToSend : result) {
+				connection.send(docToSend);
+			}
+		}
+	}
+	
+	// compute a delta against the block signature sent by the peer
+	private void processFileDeltaRequest() {
+		log.info("Start Processing File Delta Request: " + this.request.getString("pathName"));
+		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
+		Document result = requestOperator.fileDeltaResponse(this.request);
+		connection.send(result);
+	}
+	
+	// reuse the unchanged blocks and fetch the rest
+	private void processFileDelta() {
+		log.info("Start Processing File Delta Response: " + this.request.getString("pathName"));
+		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
+		ArrayList<Document> result = requestOperator.fileDeltaApply(this.request);
+		if(requestOperator.invalid != null) {
+			connection.send(requestOperator.invalid);
+		}
+		if(result == null) {
+			// the peer could not produce a delta, fetch the whole file instead
+			log.info("Delta not available, requesting whole file " + this.request.getString("pathName"));
+			requestFileByte(this.request);
+		} else if(!result.isEmpty()) {
+			for(Document docToSend : result) {
+				connection.send(docToSend);
+			}
+		} else {
+			log.info("No more file byte request to send");
+		}
+	}
+	
 	private void processDirectoryCreate() {
 		log.info("Start Processing Directory Create: " + this.request.getString("pathName"));
 		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
 		Document result = requestOperator.directoryCreateResponse(this.request);
+		acknowledgeWhenDone(requestOperator, result, false);
 		if(result.getBoolean("status")) {
 			log.info("Success create directory: " + this.request.getString("pathName"));
 		}
-		writer.println(result.toJson());
+		connection.send(result);
 	}
 	
 	private void processDirectoryDelete() {
 		log.info("Start Processing Directory Delete: " + this.request.getString("pathName"));
 		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
 		Document result = requestOperator.directoryDeleteResponse(this.request);
+		acknowledgeWhenDone(requestOperator, result, false);
 		if(result.getBoolean("status")) {
 			log.info("Success delete directory: " + this.request.getString("pathName"));
 		}
-		writer.println(result.toJson());
+		connection.send(result);
+	}
+	
+	private void processDirectoryDigestRequest() {
+		log.info("Start Processing Directory Digest Request: " + this.request.getString("pathName"));
+		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
+		connection.send(requestOperator.directoryDigestResponse(this.request));
+	}
+	
+	private void processDirectoryDigest() {
+		log.info("Directory digest of " + this.request.getString("pathName") + ": " + this.request.getString("message"));
+		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
+		ArrayList<FileSystemEvent> events = new ArrayList<FileSystemEvent>();
+		for(Document digestRequest : requestOperator.directoryDigestCompare(this.request, events)) {
+			connection.send(digestRequest);
+		}
+		if(!events.isEmpty()) {
+			log.info("Syncing " + events.size() + " entries under " + this.request.getString("pathName"));
+			PeerMaster.eventToPeer(this.peer, events);
+		}
 	}
 	
 	private void processFileByte() {
 		log.info("Start Processing File Byte Response: " + this.request.getString("pathName") +" from position "
 				+ this.request.getLong("position") + " of length " + this.request.getLong("length"));
 		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
-		Document result = requestOperator.fileByteRequest(this.request);
+		Document result = requestOperator.fileByteRequest(this.request, this.payload);
 		long length = result.getLong("length");
 		if(length !=0) {
 			// send result to remote peer
 			log.info("Requesting file byte from peer " + result.getString("pathName") + 
 					"postion " + result.getLong("position") + "& length " + result.getLong("length"));
-			writer.println(result.toJson());
+			connection.send(result);
 		}else {
 			log.info("No more file byte request to send");
 		}
 	}
 	
 	private void processFileByteRequest() {
+		if(!RespondOnReq.validByteRange(this.request)) {
+			log.warning("Invalid byte range requested: " + this.request.toJson());
+			connection.send(RespondOnReq.invalidByteRange(this.request));
+			return;
+		}
 		log.info("Start Processing File Byte Request: " + this.request.getString("pathName") + " from position "
 				+ this.request.getLong("position") + " of length " + this.request.getLong("length"));
 		boolean readStatus = false;
-		while(!readStatus) {
+		for(int attempt = 0; !readStatus && !connection.isClosed(); attempt++) {
+			if(attempt == READ_ATTEMPTS) {
+				// the file has changed under the request, let the peer give up on it
+				connection.send(Protocol.FILE_BYTES_RESPONSE(this.request, "", "unsuccessful read", false));
+				return;
+			}
+			if(attempt > 0) {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
 			// send the request to fileOperator to read file
 			RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
-			Document result = requestOperator.fileByteResponse(this.request);
+			boolean compress = PeerMaster.peerSupports(this.peer, PeerMaster.CAP_DEFLATE)
+					&& PeerMaster.compressor.shouldCompress(this.peer.toString(),
+							((Document) this.request.get("fileDescriptor")).getString("md5"), this.request.getLong("length"));
+			if(connection.canTransferFile() && !compress) {
+				// the bytes go from the file straight into the socket
+				readStatus = requestOperator.fileByteTransfer(this.request, connection);
+				continue;
+			}
+			Document result = requestOperator.fileByteResponse(this.request, false, compress ? this.peer : null);
 			// if the file read success
 			readStatus = result.getBoolean("status");
 			log.info("read file : " + readStatus + " for "+ this.request.getString("pathName") + " from position "
@@ -198,7 +395,7 @@ public class ProcessRequest extends Thread{
 						"with information " + result.getString("message"));
 				// success reading file
 				// send the FILE BYTE to remote peer
-				writer.println(result.toJson());
+				connection.send(result, requestOperator.payload);
 				// check if whole file has been sent
 				long fileSize = ((Document) result.get("fileDescriptor")).getLong("fileSize");
 				long position = result.getLong("position");
@@ -215,23 +412,15 @@ public class ProcessRequest extends Thread{
 	}
 	
 	private void requestFileByte(Document result) {
-		// proceed to send byte request
-		Document fileDescriptor = (Document) this.request.get("fileDescriptor");
-		long fileSize = fileDescriptor.getLong("fileSize");
-		long position = 0;
-		long length = 0;
-		if(fileSize >= PeerMaster.blockSize) {
-			length = PeerMaster.blockSize;
-		}else {
-			length = fileSize;
+		// proceed to send the first window of byte requests
+		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
+		ArrayList<Document> docsToSend = requestOperator.fileByteStart(this.request);
+		log.info("Initial sending file byte requests: " + result.getString("pathName") + 
+				" count " + docsToSend.size());
+		for(Document docToSend : docsToSend) {
+			// send FILE_BYTES_REQUEST to remote peer
+			connection.send(docToSend);
 		}
-		
-		// send FILE_BYTES_REQUEST to remote peer
-		Document docToSend = Protocol.FILE_BYTES_REQUEST(this.request, position, length);
-
-		log.info("Initial sending file byte request: " + result.getString("pathName") + 
-				" postion " + position + "& length " + length);
-		writer.println(docToSend.toJson());			
 	}
 	
 
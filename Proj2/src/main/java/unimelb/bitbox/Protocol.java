@@ -2,6 +2,8 @@ package unimelb.bitbox;
 
 import java.util.ArrayList;
 
+import unimelb.bitbox.util.BlockDelta;
+import unimelb.bitbox.util.ChunkIndex;
 import unimelb.bitbox.util.Document;
 import unimelb.bitbox.util.HostPort;
 import unimelb.bitbox.util.FileSystemManager.FileDescriptor;
@@ -30,6 +32,28 @@ public class Protocol {
 		doc.append("hostPort", peer.toDoc());
 		return doc;
 	}
+	// handshakes advertising optional protocol features, peers that do not know them ignore the field
+	static public Document HANDSHAKE_REQUEST(HostPort peer, ArrayList<String> capabilities) {
+		Document doc = HANDSHAKE_REQUEST(peer);
+		doc.append("capabilities", capabilities);
+		return doc;
+	}
+	static public Document HANDSHAKE_RESPONSE(HostPort peer, ArrayList<String> capabilities) {
+		Document doc = HANDSHAKE_RESPONSE(peer);
+		doc.append("capabilities", capabilities);
+		return doc;
+	}
+	// handshakes also carrying our change log id and how far we got in the peers' change logs
+	static public Document HANDSHAKE_REQUEST(HostPort peer, ArrayList<String> capabilities, Document changeLog) {
+		Document doc = HANDSHAKE_REQUEST(peer, capabilities);
+		doc.append("changeLog", changeLog);
+		return doc;
+	}
+	static public Document HANDSHAKE_RESPONSE(HostPort peer, ArrayList<String> capabilities, Document changeLog) {
+		Document doc = HANDSHAKE_RESPONSE(peer, capabilities);
+		doc.append("changeLog", changeLog);
+		return doc;
+	}
 	static public Document CONNECTION_REFUSED(ArrayList<Document> peerList) {	
 		Document doc = new Document();
 		doc.append("command", "CONNECTION_REFUSED");
@@ -92,6 +116,99 @@ public class Protocol {
 		doc.append("status", status);
 		return doc;
 	}
+	// Delta transfer protocols
+	static public Document FILE_DELTA_REQUEST(Document request, BlockDelta.Signature signature) {
+		Document fileDescriptor = (Document) request.get("fileDescriptor");
+		String pathName = request.getString("pathName");
+		ArrayList<Long> weak = new ArrayList<Long>();
+		ArrayList<String> strong = new ArrayList<String>();
+		for(int i = 0; i < signature.weak.length; i++) {
+			weak.add(signature.weak[i]);
+			strong.add(signature.strong[i]);
+		}
+		Document doc = new Document();
+		doc.append("command", "FILE_DELTA_REQUEST");
+		doc.append("fileDescriptor", fileDescriptor);
+		doc.append("pathName", pathName);
+		doc.append("blockLength", signature.blockLength);
+		doc.append("weak", weak);
+		doc.append("strong", strong);
+		return doc;
+	}
+	static public Document FILE_DELTA_RESPONSE(Document request, BlockDelta.Delta delta, String message, boolean status) {
+		Document fileDescriptor = (Document) request.get("fileDescriptor");
+		String pathName = request.getString("pathName");
+		// flattened (block, position) and (position, length) pairs
+		ArrayList<Long> copies = new ArrayList<Long>();
+		ArrayList<Long> literals = new ArrayList<Long>();
+		if(delta != null) {
+			for(long[] copy : delta.copies) {
+				copies.add(copy[0]);
+				copies.add(copy[1]);
+			}
+			for(long[] literal : delta.literals) {
+				literals.add(literal[0]);
+				literals.add(literal[1]);
+			}
+		}
+		Document doc = new Document();
+		doc.append("command", "FILE_DELTA_RESPONSE");
+		doc.append("fileDescriptor", fileDescriptor);
+		doc.append("pathName", pathName);
+		// a failed response may be to a request without a usable block length
+		doc.append("blockLength", request.get("blockLength") instanceof Long ? request.getLong("blockLength") : 0L);
+		doc.append("copies", copies);
+		doc.append("literals", literals);
+		doc.append("message", message);
+		doc.append("status", status);
+		return doc;
+	}
+	// Chunk transfer protocols
+	static public Document FILE_CHUNKS_REQUEST(Document request) {
+		Document doc = new Document();
+		doc.append("command", "FILE_CHUNKS_REQUEST");
+		doc.append("fileDescriptor", (Document) request.get("fileDescriptor"));
+		doc.append("pathName", request.getString("pathName"));
+		return doc;
+	}
+	static public Document FILE_CHUNKS_RESPONSE(Document request, ArrayList<ChunkIndex.Chunk> chunks, String message, boolean status) {
+		// the chunks follow each other, so their lengths give their positions
+		ArrayList<Long> lengths = new ArrayList<Long>();
+		ArrayList<String> md5s = new ArrayList<String>();
+		if(chunks != null) {
+			for(ChunkIndex.Chunk chunk : chunks) {
+				lengths.add((long) chunk.length);
+				md5s.add(chunk.md5);
+			}
+		}
+		Document doc = new Document();
+		doc.append("command", "FILE_CHUNKS_RESPONSE");
+		doc.append("fileDescriptor", (Document) request.get("fileDescriptor"));
+		doc.append("pathName", request.getString("pathName"));
+		doc.append("lengths", lengths);
+		doc.append("md5s", md5s);
+		doc.append("message", message);
+		doc.append("status", status);
+		return doc;
+	}
+	static public Document DIRECTORY_DIGEST_REQUEST(String pathName, String digest) {
+		Document doc = new Document();
+		doc.append("command", "DIRECTORY_DIGEST_REQUEST");
+		doc.append("pathName", pathName);
+		doc.append("digest", digest);
+		return doc;
+	}
+	static public Document DIRECTORY_DIGEST_RESPONSE(Document request, String digest, ArrayList<Document> entries,
+			String message, boolean status) {
+		Document doc = new Document();
+		doc.append("command", "DIRECTORY_DIGEST_RESPONSE");
+		doc.append("pathName", request.getString("pathName"));
+		doc.append("digest", digest);
+		doc.append("entries", entries);
+		doc.append("message", message);
+		doc.append("status", status);
+		return doc;
+	}
 	static public Document FILE_DELETE_REQUEST(FileDescriptor fileDescriptor, String pathName) {
 		Document doc2 = new Document();
 		doc2.append("command", "FILE_DELETE_REQUEST");
@@ -1,12 +1,20 @@
 package unimelb.bitbox;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.logging.Logger;
 
+import unimelb.bitbox.util.BlockCompressor;
+import unimelb.bitbox.util.BlockDelta;
+import unimelb.bitbox.util.ChunkIndex;
+import unimelb.bitbox.util.DigestTree;
 import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.FileHandleCache;
 import unimelb.bitbox.util.FileSystemManager;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 import unimelb.bitbox.util.HostPort;;
@@ -15,6 +23,14 @@ public class RespondOnReq {
 	private static Logger log = Logger.getLogger(RespondOnReq.class.getName());
 	private FileSystemManager fileSystemManager;
 	public boolean hasShortcut = false;
+	// the file loader was resumed with some of the file already written
+	public boolean resumed = false;
+	// the request could not be carried out here, rather than refused, so it may succeed when sent again
+	public boolean failed = false;
+	// file content read by fileByteResponse when it is not encoded into the response
+	public ByteBuffer payload;
+	// the INVALID_PROTOCOL to answer a response with that could not be used
+	public Document invalid;
 	private FileSystemEvent event;
 	private HostPort hostPort;
 	
@@ -84,6 +100,20 @@ public class RespondOnReq {
 	}
 
 	
+	// a file can be created before the request creating its directory has been processed,
+	// give that request a moment
+	private void waitForParent(String pathName) {
+		String parent = new File(pathName).getParent();
+		for(int i = 0; i < 30 && parent != null && !new File(PeerMaster.path, parent).isDirectory(); i++) {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+	
 	// server part
 	public Document fileCreateResponse(Document request) {
 		String command = request.getString("command");
@@ -92,12 +122,7 @@ public class RespondOnReq {
 		String md5 = descriptor.getString("md5");
 		long fileSize = descriptor.getLong("fileSize");
 		long lastModified = descriptor.getLong("lastModified");
-		try {
-			Thread.sleep(3000);
-		} catch (InterruptedException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
+		waitForParent(pathName);
 		//valid command
 		if (command.equals("FILE_CREATE_REQUEST")) {
 			// confirm request is a file create request
@@ -114,6 +139,8 @@ public class RespondOnReq {
 						if (fileSystemManager.createFileLoader(pathName, md5, fileSize, lastModified)) {
 							//file created successfully
 							log.info("File loader created for " + pathName);
+							FileTransfer.finish(pathName, md5);
+							checkResumed(pathName, fileSize);
 							if (fileSystemManager.checkShortcut(pathName)) {
 								log.info("Shortcut is found for " + pathName);
 								hasShortcut=true;
@@ -123,6 +150,7 @@ public class RespondOnReq {
 						else {
 							//have problem creating the file
 							log.info("Create file " + pathName + " is unsafe");
+							failed = true;
 							return Protocol.FILE_CREATE_RESPONSE(request, "there was a problem creating the file", false);
 						}
 					} catch (NoSuchAlgorithmException e) {
@@ -130,6 +158,7 @@ public class RespondOnReq {
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
+					failed = true;
 					return Protocol.FILE_CREATE_RESPONSE(request, "there was a problem creating the file", false);
 				}
 				else {
@@ -146,19 +175,51 @@ public class RespondOnReq {
 	
 	//continue request
 	public Document fileByteRequest(Document request) {
+		return fileByteRequest(request, null);
+	}
+	
+	// continue request, with the content given as raw bytes when it came in a binary frame
+	public Document fileByteRequest(Document request, ByteBuffer content) {
 		String command = request.getString("command");
 		String pathName = request.getString("pathName");
-		String encodedContent = request.getString("content");
 		long position = request.getLong("position");
 		long length = request.getLong("length");
 		Document descriptor = (Document) request.get("fileDescriptor");
 		long fileSize = descriptor.getLong("fileSize");
-		long blockSize = PeerMaster.blockSize;
+		String md5 = descriptor.getString("md5");
+		FileTransfer transfer = FileTransfer.get(pathName, md5);
+		if (command.equals("FILE_BYTES_RESPONSE") && (transfer == null || !fileSystemManager.isLoading(pathName, md5))) {
+			// left over from a transfer that has finished, or whose loader was cancelled or replaced
+			// by one for newer content, which these bytes must not be written into
+			log.info("Ignoring bytes of " + pathName + " from position " + position + ", no longer loading that content");
+			FileTransfer.finish(pathName, md5);
+			return Protocol.FILE_BYTES_REQUEST(request, fileSize, 0);
+		}
+		if (command.equals("FILE_BYTES_RESPONSE") && !request.getBoolean("status")) {
+			// the peer could not read the file, most likely it changed, a later event fetches it again
+			log.info("Remote peer could not read " + pathName + ": " + request.getString("message"));
+			try {
+				fileSystemManager.cancelFileLoader(pathName);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			FileTransfer.finish(pathName, md5);
+			PeerResume.loaded(pathName, false);
+			return Protocol.FILE_BYTES_REQUEST(request, fileSize, 0);
+		}
 		if (command.equals("FILE_BYTES_RESPONSE")) {
 			log.info("Writing file " + pathName + " from postion " + position + " of length " + length);
 			try {
-				byte[] bytes = Base64.getDecoder().decode(encodedContent);
-				ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+				ByteBuffer byteBuffer = content;
+				if(byteBuffer == null) {
+					byteBuffer = ByteBuffer.wrap(Base64.getDecoder().decode(request.getString("content")));
+				}
+				if(request.containsKey("encoding")) {
+					if(!BlockCompressor.ENCODING.equals(request.getString("encoding"))) {
+						throw new IOException("unknown encoding " + request.getString("encoding"));
+					}
+					byteBuffer = BlockCompressor.inflate(byteBuffer, (int) length);
+				}
 				if(fileSystemManager.writeFile(pathName, byteBuffer, position)) {
 					// file write success
 					log.info("File byte for " + pathName + " is written");
@@ -167,44 +228,431 @@ public class RespondOnReq {
 					log.info("File byte for " + pathName + " write fail");
 				}
 				
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			if(position + length == fileSize) {
+			} catch (IOException | IllegalArgumentException e) {
+				// the block is lost unless it is requested again
+				log.warning("Could not write " + pathName + " from position " + position + ": " + e.getMessage());
+				if(transfer.retry(position)) {
+					return Protocol.FILE_BYTES_REQUEST(request, position, length);
+				}
+				log.warning("Giving up loading " + pathName + ", a later event or sync fetches it again");
 				try {
-					if(fileSystemManager.checkWriteComplete(pathName)) {
-						//file load complete
-						log.info("File byte for " + pathName + " checked whole file complete");
-					}else {
-						//file load not complete
-						log.info("File byte for " + pathName + " file is not completed after full size");
-					}
-				} catch (NoSuchAlgorithmException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					fileSystemManager.cancelFileLoader(pathName);
+				} catch (IOException e1) {
+					e1.printStackTrace();
 				}
+				FileTransfer.finish(pathName, md5);
+				PeerResume.loaded(pathName, false);
 				return Protocol.FILE_BYTES_REQUEST(request, fileSize, 0);
-			}else if(position + length > fileSize) {
-				log.info("Overflow detected for file " + pathName + " with position " + position + " of length " + length);
-				return Protocol.FILE_BYTES_REQUEST(request, fileSize, -1);
-			}else if (position + length + blockSize < fileSize) {
-				log.info("Request file byte " + pathName + "position " + position + "length " + length);
-				return Protocol.FILE_BYTES_REQUEST(request, position+length, blockSize);
-			}else {
-				return Protocol.FILE_BYTES_REQUEST(request, position+length, fileSize-(position+length));
 			}
-
+			// keep the window full with the next block still to request
+			long[] next = transfer.next();
+			if(next != null) {
+				log.info("Request file byte " + pathName + " position " + next[0] + " length " + next[1]);
+				return Protocol.FILE_BYTES_REQUEST(request, next[0], next[1]);
+			}
+			// blocks may arrive in any order, the last one to arrive completes the file
+			if(fileSystemManager.allBytesWritten(pathName) && FileTransfer.finish(pathName, md5)) {
+				checkComplete(pathName);
+			}
+			return Protocol.FILE_BYTES_REQUEST(request, fileSize, 0);
 		}else {
 			return Protocol.INVALID_PROTOCOL("bad message");
 		}
 	}
 	
 	
+	// start fetching a whole file, or what a resumed loader is missing of it, returns the first window of byte requests to send
+	public ArrayList<Document> fileByteStart(Document request) {
+		Document descriptor = (Document) request.get("fileDescriptor");
+		ArrayList<long[]> ranges = fileSystemManager.missingRanges(request.getString("pathName"));
+		if(ranges == null) {
+			ranges = new ArrayList<long[]>();
+			ranges.add(new long[] {0, descriptor.getLong("fileSize")});
+		}
+		return fileByteStart(request, ranges);
+	}
+	
+	// note whether the loader just opened carries on from bytes written by a transfer that stopped
+	private void checkResumed(String pathName, long fileSize) {
+		ArrayList<long[]> missing = fileSystemManager.missingRanges(pathName);
+		if(missing == null) {
+			return;
+		}
+		long remaining = 0;
+		for(long[] range : missing) {
+			remaining += range[1];
+		}
+		if(remaining < fileSize) {
+			log.info("Resuming " + pathName + ", fetching " + remaining + " of " + fileSize + " bytes");
+			resumed = true;
+		}
+	}
+	
+	// start fetching some ranges of a file, returns the first window of byte requests to send
+	public ArrayList<Document> fileByteStart(Document request, ArrayList<long[]> ranges) {
+		String pathName = request.getString("pathName");
+		String md5 = ((Document) request.get("fileDescriptor")).getString("md5");
+		FileTransfer transfer = new FileTransfer(ranges, PeerMaster.blockSize);
+		FileTransfer.start(pathName, md5, transfer);
+		ArrayList<Document> requests = new ArrayList<Document>();
+		for(long[] block : transfer.first(PeerMaster.transferWindow)) {
+			requests.add(Protocol.FILE_BYTES_REQUEST(request, block[0], block[1]));
+		}
+		if(requests.isEmpty() && FileTransfer.finish(pathName, md5)) {
+			// nothing to fetch, e.g. an empty file
+			checkComplete(pathName);
+		}
+		return requests;
+	}
+	
+	// check the loader once all of the bytes have been written
+	private void checkComplete(String pathName) {
+		boolean complete = false;
+		try {
+			if(fileSystemManager.checkWriteComplete(pathName)) {
+				//file load complete
+				log.info("File byte for " + pathName + " checked whole file complete");
+				complete = true;
+			}else {
+				//file load not complete
+				log.info("File byte for " + pathName + " file is not completed after full size");
+				// the bytes can only be wrong, e.g. left by a run that stopped before saving, start again on the next sync
+				fileSystemManager.cancelFileLoader(pathName);
+			}
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		// the requests that started the load are only acknowledged once it has completed
+		PeerResume.loaded(pathName, complete);
+	}
+	
+	// digest sync, receiving side: our entries of the directory if its digest differs from the peer's
+	public Document directoryDigestResponse(Document request) {
+		String pathName = request.getString("pathName");
+		if(!pathName.isEmpty() && !fileSystemManager.isSafePathName(pathName)) {
+			return Protocol.DIRECTORY_DIGEST_RESPONSE(request, "", new ArrayList<Document>(), "unsafe pathname given", false);
+		}
+		try {
+			String digest = fileSystemManager.directoryDigest(pathName);
+			if(digest == null) {
+				return Protocol.DIRECTORY_DIGEST_RESPONSE(request, "", new ArrayList<Document>(), "no such directory", false);
+			}
+			ArrayList<Document> entries = new ArrayList<Document>();
+			if(digest.equals(request.getString("digest"))) {
+				return Protocol.DIRECTORY_DIGEST_RESPONSE(request, digest, entries, "directory in sync", true);
+			}
+			for(DigestTree.Entry entry : fileSystemManager.directoryEntries(pathName)) {
+				entries.add(entry.toDoc());
+			}
+			return Protocol.DIRECTORY_DIGEST_RESPONSE(request, digest, entries, "directory differs", true);
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+		return Protocol.DIRECTORY_DIGEST_RESPONSE(request, "", new ArrayList<Document>(), "unsuccessful digest", false);
+	}
+	
+	// digest sync, sending side: compare the peer's entries of a directory with ours, adding the events
+	// for what the peer lacks or has differently and returning requests for the directories to compare next
+	public ArrayList<Document> directoryDigestCompare(Document response, ArrayList<FileSystemEvent> events) {
+		ArrayList<Document> requests = new ArrayList<Document>();
+		String pathName = response.getString("pathName");
+		if(!response.getBoolean("status") || response.getString("message").equals("directory in sync")) {
+			return requests;
+		}
+		HashMap<String, DigestTree.Entry> theirs = new HashMap<String, DigestTree.Entry>();
+		@SuppressWarnings("unchecked")
+		ArrayList<Document> entries = (ArrayList<Document>) response.get("entries");
+		for(Document entry : entries) {
+			theirs.put(entry.getString("name"), new DigestTree.Entry(entry));
+		}
+		try {
+			ArrayList<DigestTree.Entry> ours = fileSystemManager.directoryEntries(pathName);
+			if(ours == null) {
+				return requests;
+			}
+			for(DigestTree.Entry entry : ours) {
+				DigestTree.Entry their = theirs.get(entry.name);
+				if(their != null && their.directory == entry.directory && their.digest.equals(entry.digest)) {
+					continue;
+				}
+				String child = DigestTree.child(pathName, entry.name);
+				if(their != null && their.directory && entry.directory) {
+					// only part of the directory differs, look further down
+					requests.add(Protocol.DIRECTORY_DIGEST_REQUEST(child, entry.digest));
+				} else if(their != null && !their.directory && !entry.directory) {
+					// the peer has another version of the file, which it replaces if ours is newer
+					for(FileSystemEvent event : fileSystemManager.generateSyncEvents(child)) {
+						events.add(event.withEvent(FileSystemManager.EVENT.FILE_MODIFY));
+					}
+				} else {
+					events.addAll(fileSystemManager.generateSyncEvents(child));
+				}
+			}
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+		return requests;
+	}
+	
+	// delta transfer, receiving side: describe the blocks of the file we already have
+	public Document fileDeltaRequest(Document request) {
+		String pathName = request.getString("pathName");
+		Document descriptor = (Document) request.get("fileDescriptor");
+		long fileSize = descriptor.getLong("fileSize");
+		if(fileSize <= PeerMaster.blockSize) {
+			// a single block either way
+			return null;
+		}
+		try {
+			BlockDelta.Signature signature = fileSystemManager.blockSignature(pathName, BlockDelta.blockLength(fileSize));
+			if(signature == null || signature.weak.length == 0) {
+				return null;
+			}
+			return Protocol.FILE_DELTA_REQUEST(request, signature);
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	// delta transfer, sending side: match the peer's blocks against our content
+	public Document fileDeltaResponse(Document request) {
+		String pathName = request.getString("pathName");
+		Document descriptor = (Document) request.get("fileDescriptor");
+		String md5 = descriptor.getString("md5");
+		if(!(request.get("blockLength") instanceof Long) || !(request.get("weak") instanceof ArrayList)
+				|| !(request.get("strong") instanceof ArrayList)) {
+			log.warning("Invalid signature for " + pathName + ", no block length or checksums");
+			return Protocol.FILE_DELTA_RESPONSE(request, null, "invalid signature", false);
+		}
+		ArrayList<?> weak = (ArrayList<?>) request.get("weak");
+		ArrayList<?> strong = (ArrayList<?>) request.get("strong");
+		long blockLength = request.getLong("blockLength");
+		if(!BlockDelta.isValidBlockLength(blockLength) || weak.size() != strong.size()) {
+			log.warning("Invalid signature for " + pathName + ", block length " + blockLength);
+			return Protocol.FILE_DELTA_RESPONSE(request, null, "invalid signature", false);
+		}
+		long[] weakSums = new long[weak.size()];
+		String[] strongSums = new String[strong.size()];
+		for(int i = 0; i < weakSums.length; i++) {
+			if(!(weak.get(i) instanceof Long) || !(strong.get(i) instanceof String)) {
+				log.warning("Invalid signature for " + pathName + ", checksums of block " + i);
+				return Protocol.FILE_DELTA_RESPONSE(request, null, "invalid signature", false);
+			}
+			weakSums[i] = (Long) weak.get(i);
+			strongSums[i] = (String) strong.get(i);
+		}
+		BlockDelta.Signature signature = 
+				new BlockDelta.Signature((int) blockLength, weakSums, strongSums);
+		try {
+			BlockDelta.Delta delta = fileSystemManager.computeDelta(md5, signature);
+			if(delta != null) {
+				log.info("Delta for " + pathName + " reuses " + delta.copies.size() + " blocks, "
+						+ delta.literalBytes() + " bytes to send");
+				return Protocol.FILE_DELTA_RESPONSE(request, delta, "delta ready", true);
+			}
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+		return Protocol.FILE_DELTA_RESPONSE(request, null, "unsuccessful delta", false);
+	}
+	
+	// delta transfer, receiving side: copy the reused blocks and return the first
+	// byte requests for the rest, or null if the whole file has to be fetched instead,
+	// in which case invalid is set if the peer's delta could not be used
+	public ArrayList<Document> fileDeltaApply(Document response) {
+		if(!response.getBoolean("status")) {
+			return null;
+		}
+		String pathName = response.getString("pathName");
+		Document descriptor = (Document) response.get("fileDescriptor");
+		long fileSize = descriptor.getLong("fileSize");
+		if(!(response.get("blockLength") instanceof Long)) {
+			return invalidResponse("delta", pathName, "no block length");
+		}
+		long blockLength = response.getLong("blockLength");
+		// the delta has to be against the blocks we sent the signature of
+		if(blockLength != BlockDelta.blockLength(fileSize)) {
+			return invalidResponse("delta", pathName, "block length " + blockLength);
+		}
+		if(!pairsOfLongs(response.get("copies")) || !pairsOfLongs(response.get("literals"))) {
+			return invalidResponse("delta", pathName, "copies and literals are not pairs of numbers");
+		}
+		BlockDelta.Delta delta = new BlockDelta.Delta((int) blockLength);
+		ArrayList<?> copies = (ArrayList<?>) response.get("copies");
+		for(int i = 0; i + 1 < copies.size(); i += 2) {
+			long block = (Long) copies.get(i);
+			long position = (Long) copies.get(i + 1);
+			if(block < 0 || position < 0 || position > fileSize - blockLength) {
+				return invalidResponse("delta", pathName, "block " + block + " at " + position);
+			}
+			delta.copies.add(new long[] {block, position});
+		}
+		ArrayList<?> literals = (ArrayList<?>) response.get("literals");
+		for(int i = 0; i + 1 < literals.size(); i += 2) {
+			long position = (Long) literals.get(i);
+			long length = (Long) literals.get(i + 1);
+			if(position < 0 || length <= 0 || position > fileSize - length) {
+				return invalidResponse("delta", pathName, "literal of " + length + " bytes at " + position);
+			}
+			delta.literals.add(new long[] {position, length});
+		}
+		try {
+			if(!fileSystemManager.writeFileFromExisting(pathName, delta)) {
+				return null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		log.info("Reused " + delta.copies.size() + " blocks of " + pathName + ", fetching "
+				+ delta.literalBytes() + " of " + fileSize + " bytes");
+		return fileByteStart(response, delta.literals);
+	}
+	
+	// a flattened list of pairs of numbers, as the copies and literals of a delta are sent
+	private static boolean pairsOfLongs(Object list) {
+		if(!(list instanceof ArrayList) || ((ArrayList<?>) list).size() % 2 != 0) {
+			return false;
+		}
+		for(Object value : (ArrayList<?>) list) {
+			if(!(value instanceof Long)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// a delta or chunks sent by the peer that cannot be used, to be answered with invalid
+	private ArrayList<Document> invalidResponse(String kind, String pathName, String reason) {
+		log.warning("Invalid " + kind + " for " + pathName + ": " + reason);
+		invalid = Protocol.INVALID_PROTOCOL("invalid " + kind + ", " + reason);
+		return null;
+	}
+	
+	// chunk transfer, receiving side: ask for the chunks of a file worth deduplicating
+	public Document fileChunksRequest(Document request) {
+		Document descriptor = (Document) request.get("fileDescriptor");
+		if(descriptor.getLong("fileSize") <= Math.max(PeerMaster.blockSize, ChunkIndex.AVERAGE_CHUNK_LENGTH)) {
+			// too small to have chunks worth looking for
+			return null;
+		}
+		return Protocol.FILE_CHUNKS_REQUEST(request);
+	}
+	
+	// chunk transfer, sending side: cut our content into chunks
+	public Document fileChunksResponse(Document request) {
+		String pathName = request.getString("pathName");
+		Document descriptor = (Document) request.get("fileDescriptor");
+		try {
+			ArrayList<ChunkIndex.Chunk> chunks = fileSystemManager.fileChunks(descriptor.getString("md5"));
+			if(chunks != null) {
+				log.info("Sending " + chunks.size() + " chunks of " + pathName);
+				return Protocol.FILE_CHUNKS_RESPONSE(request, chunks, "chunks ready", true);
+			}
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+		return Protocol.FILE_CHUNKS_RESPONSE(request, null, "unsuccessful chunks", false);
+	}
+	
+	// chunk transfer, receiving side: copy the chunks found in the share and return the first
+	// byte requests for the rest, or null if the whole file has to be fetched instead,
+	// in which case invalid is set if the peer's chunks could not be used
+	public ArrayList<Document> fileChunksApply(Document response) {
+		if(!response.getBoolean("status")) {
+			return null;
+		}
+		String pathName = response.getString("pathName");
+		Document descriptor = (Document) response.get("fileDescriptor");
+		long fileSize = descriptor.getLong("fileSize");
+		if(!(response.get("lengths") instanceof ArrayList) || !(response.get("md5s") instanceof ArrayList)) {
+			return invalidResponse("chunks", pathName, "no lengths or hashes");
+		}
+		ArrayList<?> lengths = (ArrayList<?>) response.get("lengths");
+		ArrayList<?> md5s = (ArrayList<?>) response.get("md5s");
+		if(lengths.size() != md5s.size()) {
+			return invalidResponse("chunks", pathName, lengths.size() + " lengths for " + md5s.size() + " hashes");
+		}
+		ArrayList<ChunkIndex.Chunk> chunks = new ArrayList<ChunkIndex.Chunk>();
+		long offset = 0;
+		for(int i = 0; i < lengths.size(); i++) {
+			// every length has to be one a chunk can have, a negative one could be made up for by the next
+			if(!(lengths.get(i) instanceof Long) || (Long) lengths.get(i) < 1
+					|| (Long) lengths.get(i) > ChunkIndex.MAX_CHUNK_LENGTH || !(md5s.get(i) instanceof String)) {
+				return invalidResponse("chunks", pathName, "chunk " + i + " of length " + lengths.get(i));
+			}
+			int length = (int) (long) (Long) lengths.get(i);
+			chunks.add(new ChunkIndex.Chunk(offset, length, (String) md5s.get(i)));
+			offset += length;
+		}
+		if(offset != fileSize) {
+			return invalidResponse("chunks", pathName, "chunks do not add up to the file size");
+		}
+		ArrayList<long[]> missing;
+		try {
+			missing = fileSystemManager.writeFileFromChunks(pathName, chunks);
+			if(missing == null) {
+				return null;
+			}
+		} catch (NoSuchAlgorithmException | IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		long missingBytes = 0;
+		for(long[] range : missing) {
+			missingBytes += range[1];
+		}
+		log.info("Reused " + (fileSize - missingBytes) + " bytes of " + pathName + " from " + chunks.size()
+				+ " chunks, fetching " + missingBytes + " of " + fileSize + " bytes");
+		return fileByteStart(response, missing);
+	}
+	
 	public Document fileByteResponse(Document request) {
+		return fileByteResponse(request, true, null);
+	}
+	
+	// whether the bytes a peer asks for lie within the file and fit in a block
+	public static boolean validByteRange(Document request) {
+		if(!wellFormedByteRequest(request)) {
+			return false;
+		}
+		Document descriptor = (Document) request.get("fileDescriptor");
+		long position = request.getLong("position");
+		long length = request.getLong("length");
+		return position >= 0 && length > 0 && length <= Math.min(PeerMaster.blockSize, PeerConnection.MAX_FRAME)
+				&& position <= descriptor.getLong("fileSize") - length;
+	}
+	
+	// the answer to a request for bytes that are not valid, a failed response if one can be made of it
+	public static Document invalidByteRange(Document request) {
+		if(!wellFormedByteRequest(request)) {
+			return Protocol.INVALID_PROTOCOL("bad message");
+		}
+		return Protocol.FILE_BYTES_RESPONSE(request, "", "invalid byte range", false);
+	}
+	
+	private static boolean wellFormedByteRequest(Document request) {
+		if(!(request.get("fileDescriptor") instanceof Document) || !(request.get("pathName") instanceof String)
+				|| !(request.get("position") instanceof Long) || !(request.get("length") instanceof Long)) {
+			return false;
+		}
+		Document descriptor = (Document) request.get("fileDescriptor");
+		return descriptor.get("fileSize") instanceof Long && descriptor.get("md5") instanceof String;
+	}
+	
+	// read the requested bytes, leaving them in payload rather than in the response unless encode is set,
+	// compressed for the peer if given and if that saves enough
+	public Document fileByteResponse(Document request, boolean encode, HostPort compressFor) {
 		String command = request.getString("command");
+		if(command.equals("FILE_BYTES_REQUEST") && !validByteRange(request)) {
+			log.warning("Refusing to read, invalid byte range: " + request.toJson());
+			return invalidByteRange(request);
+		}
 		Document descriptor = (Document) request.get("fileDescriptor");
 		String pathName = request.getString("pathName");
 		String md5 = descriptor.getString("md5");
@@ -219,8 +667,24 @@ public class RespondOnReq {
 					log.info("File byte for " + pathName + " unsuccessful read");
 					return Protocol.FILE_BYTES_RESPONSE(request, encodedContent, "unsucessfull read", false);
 				}
-				encodedContent = Base64.getEncoder().encodeToString(byteBuffer.array());
-				return Protocol.FILE_BYTES_RESPONSE(request, encodedContent, "successful read", true);
+				byte[] bytes = byteBuffer.array();
+				byte[] compressed = null;
+				if(compressFor != null) {
+					compressed = PeerMaster.compressor.compress(compressFor.toString(), md5, ByteBuffer.wrap(bytes));
+					if(compressed != null) {
+						bytes = compressed;
+					}
+				}
+				if(encode) {
+					encodedContent = Base64.getEncoder().encodeToString(bytes);
+				} else {
+					payload = ByteBuffer.wrap(bytes);
+				}
+				Document response = Protocol.FILE_BYTES_RESPONSE(request, encodedContent, "successful read", true);
+				if(compressed != null) {
+					response.append("encoding", BlockCompressor.ENCODING);
+				}
+				return response;
 			} catch (NoSuchAlgorithmException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
@@ -236,6 +700,35 @@ public class RespondOnReq {
 
 	
 	
+	// serve the requested bytes straight from the file into the connection, false if they could not be read
+	public boolean fileByteTransfer(Document request, PeerConnection connection) {
+		if(!validByteRange(request)) {
+			log.warning("Refusing to transfer, invalid byte range: " + request.toJson());
+			return false;
+		}
+		Document descriptor = (Document) request.get("fileDescriptor");
+		String pathName = request.getString("pathName");
+		String md5 = descriptor.getString("md5");
+		long position = request.getLong("position");
+		long length = request.getLong("length");
+		log.info("Transferring file " + pathName + " from postion " + position + " of length " + length);
+		try {
+			FileHandleCache.Handle file = fileSystemManager.openFile(md5);
+			if(file == null) {
+				log.info("File byte for " + pathName + " unsuccessful read");
+				return false;
+			}
+			// the connection releases the file once it has been sent
+			return connection.sendFileBytes(Protocol.FILE_BYTES_RESPONSE(request, "", "successful read", true),
+					file, position, length);
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+	
 	public Document fileDeleteResponse(Document request) {
 		String command = request.getString("command");
 		String pathName = request.getString("pathName");
@@ -252,6 +745,7 @@ public class RespondOnReq {
 					}else {
 						//having problem deleting the file
 						log.info("Having problem deleting " + pathName);
+						failed = true;
 						return Protocol.FILE_DELETE_RESPONSE(request, "there was a problem deleting the file", false);
 					}
 				}else {
@@ -276,6 +770,7 @@ public class RespondOnReq {
 		String pathName = request.getString("pathName");
 		Document descriptor = (Document)request.get("fileDescriptor");
 		String md5 = descriptor.getString("md5");
+		long fileSize = descriptor.getLong("fileSize");
 		long lastModified = descriptor.getLong("lastModified");
 		if (command.equals("FILE_MODIFY_REQUEST")) {
 			if (fileSystemManager.fileNameExists(pathName, md5)) {
@@ -290,8 +785,10 @@ public class RespondOnReq {
 						//the modified file exists
 						log.info("Modified file " + pathName + " exists with a different content");
 						try {
-							if(fileSystemManager.modifyFileLoader(pathName, md5, lastModified)) {
+							if(fileSystemManager.modifyFileLoader(pathName, md5, fileSize, lastModified)) {
 							//file modified successfully
+								FileTransfer.finish(pathName, md5);
+								checkResumed(pathName, fileSize);
 								try {
 									if (fileSystemManager.checkShortcut(pathName)) {
 										log.info("Modified file " + pathName + " has a short cut");
@@ -306,12 +803,14 @@ public class RespondOnReq {
 							}else {
 								//having problem modifying the file
 								log.info("Having problem modifying file " + pathName);
+								failed = true;
 								return Protocol.FILE_MODIFY_RESPONSE(request, "there was a problem modifying the file", false);
 							}
 						} catch (IOException e) {
 							// TODO Auto-generated catch block
 							e.printStackTrace();
 						}
+						failed = true;
 						return Protocol.FILE_MODIFY_RESPONSE(request, "there was a problem modifying the file", false);
 					}else {
 						//pathname given does not exist
@@ -352,6 +851,7 @@ public class RespondOnReq {
 					}
 					else {
 						//have problem creating the directory
+						failed = true;
 						return Protocol.DIRECTORY_CREATE_RESPONSE(request, "there was a problem creating the directory", false);
 					}
 				}
@@ -384,6 +884,7 @@ public class RespondOnReq {
 					}else {
 						//having problem deleting the directory
 						log.info("Having problem deleting directory " + pathName);
+						failed = true;
 						return Protocol.DIRECTORY_DELETE_RESPONSE(request, "there was a problem deleting the directory", false);
 					}
 				}else {
@@ -20,6 +20,9 @@ public class ServerMain implements FileSystemObserver {
 	
 	public ServerMain() throws NumberFormatException, IOException, NoSuchAlgorithmException {
 		fileSystemManager=new FileSystemManager(PeerMaster.path,this);
+		PeerMaster.fileSystemManager = fileSystemManager;
+		PeerResume.start(fileSystemManager);
+		EventQueue.start(fileSystemManager);
 	
 		// check desired running mode for the peer
 		if(!PeerMaster.mode.equals("tcp") && !PeerMaster.mode.equals("udp")) {
@@ -30,13 +33,19 @@ public class ServerMain implements FileSystemObserver {
 			if(PeerMaster.mode.equals("tcp")) {
 				log.info("Peer is starting in TCP mode");
 				
-				// initialize Server part
-				TCPServer newServer = new TCPServer(this.fileSystemManager);
-				newServer.start();
-				
-				// initialize Client part
-				TCPClient newClient = new TCPClient(this.fileSystemManager);
-				newClient.start();
+				if(PeerMaster.tcpEngine.equals("blocking")) {
+					// initialize Server part
+					TCPServer newServer = new TCPServer(this.fileSystemManager);
+					newServer.start();
+					
+					// initialize Client part
+					TCPClient newClient = new TCPClient(this.fileSystemManager);
+					newClient.start();
+				}else {
+					// one selector thread for all of the peers
+					PeerMaster.nioEngine = new NioEngine(this.fileSystemManager);
+					PeerMaster.nioEngine.start();
+				}
 			}else {
 				log.info("Peer is starting in UDP mode.");
 				UDPPeer udpPeer = new UDPPeer(fileSystemManager);
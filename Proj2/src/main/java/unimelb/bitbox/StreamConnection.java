@@ -0,0 +1,142 @@
+package unimelb.bitbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.FileHandleCache;
+
+/**
+ * A {@link PeerConnection} over the streams of a blocking socket, read by a
+ * {@link PeerReader} thread.
+ * <br/>
+ * When the socket has a {@link SocketChannel}, binary FILE_BYTES_RESPONSE content is
+ * sent with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * so the file bytes are never copied into the Java heap.
+ */
+public class StreamConnection extends PeerConnection {
+	private static Logger log = Logger.getLogger(StreamConnection.class.getName());
+
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+
+	public StreamConnection(Socket socket) throws IOException {
+		this.socket = socket;
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	public void setBinary(boolean binary) {
+		if(binary) {
+			log.info("using binary frames with " + socket.getRemoteSocketAddress());
+		}
+		this.binary = binary;
+	}
+
+	public boolean isClosed() {
+		return socket.isClosed();
+	}
+
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	// read a single JSON line, as used for the handshake, or null at the end of the stream
+	public String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != '\n') {
+			if(b < 0) {
+				if(line.size() == 0) return null;
+				break;
+			}
+			line.write(b);
+		}
+		String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+		if(text.endsWith("\r")) {
+			text = text.substring(0, text.length() - 1);
+		}
+		return text;
+	}
+
+	// read the next message, or null at the end of the stream
+	public Document receive() throws IOException {
+		payload = null;
+		if(!binary) {
+			String line = readLine();
+			return line == null ? null : Document.parse(line);
+		}
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if(length < 1 || length > MAX_FRAME) {
+			throw new IOException("bad frame length " + length);
+		}
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		return decodeFrame(frame, 0, length);
+	}
+
+	public synchronized void send(Document doc, ByteBuffer content) {
+		try {
+			for(ByteBuffer bytes : encode(doc, content)) {
+				if(bytes.hasArray()) {
+					out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+				} else {
+					out.write(toArray(bytes));
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			log.warning("could not send to " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+		}
+	}
+
+	public boolean canTransferFile() {
+		return binary && socket.getChannel() != null;
+	}
+
+	public synchronized boolean sendFileBytes(Document doc, FileHandleCache.Handle file, long position, long length) throws IOException {
+		try {
+			if(position < 0 || length <= 0 || file.channel().size() - length < position) {
+				return false;
+			}
+			SocketChannel channel = socket.getChannel();
+			ByteBuffer header = encodeFileBytesHeader(doc, length);
+			out.write(header.array(), header.arrayOffset() + header.position(), header.remaining());
+			out.flush();
+			long sent = 0;
+			try {
+				while(sent < length) {
+					long count = file.channel().transferTo(position + sent, length - sent, channel);
+					if(count <= 0) {
+						throw new IOException("file truncated while sending");
+					}
+					sent += count;
+				}
+			} catch (IOException e) {
+				// the frame can no longer be completed, so neither can the stream
+				socket.close();
+				throw e;
+			}
+			return true;
+		} finally {
+			file.release();
+		}
+	}
+}
@@ -1,8 +1,11 @@
 package unimelb.bitbox;
 
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.logging.Logger;
 
 import unimelb.bitbox.util.FileSystemManager;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 import unimelb.bitbox.util.HostPort;
 
 public class SyncEvent extends Thread{
@@ -20,14 +23,19 @@ public class SyncEvent extends Thread{
 		while(true) {
 			log.info("Generating Sync Events");
 			
-			if(!this.fileSystemManager.generateSyncEvents().isEmpty()) {
-				// if there is event, add to queue
-				PeerMaster.eventToPeer(this.fileSystemManager.generateSyncEvents());
-				log.info("Current connections: ");
-				for(HostPort peer: PeerMaster.peerList) {
-					log.info("  --" + peer.toString());
-				}
+			ArrayList<FileSystemEvent> syncEvents = null;
+			log.info("Current connections: ");
+			for(HostPort peer: PeerMaster.peerList) {
+				log.info("  --" + peer.toString());
+				syncEvents = syncPeer(this.fileSystemManager, peer, syncEvents);
 			}
+			PeerResume.save();
+			log.info("Workers: " + WorkerPool.metrics().toJson());
+			log.info("Coalesced events: " + EventQueue.metrics().toJson());
+			log.info("Open files: " + this.fileSystemManager.openFileMetrics().toJson());
+			log.info("Block cache: " + this.fileSystemManager.blockCacheMetrics().toJson());
+			log.info("Compression: " + PeerMaster.compressor.metrics().toJson());
+			log.info("UDP channels: " + UDPPeer.metrics().toJson());
 			try {
 				Thread.sleep(this.interval * 1000);
 			} catch (InterruptedException e) {
@@ -37,4 +45,26 @@ public class SyncEvent extends Thread{
 		}
 	}
 	
+	// sync one peer, returning the full list of sync events if it was needed, so that it is only generated once
+	public static ArrayList<FileSystemEvent> syncPeer(FileSystemManager fileSystemManager, HostPort peer,
+			ArrayList<FileSystemEvent> syncEvents) {
+		PeerConnection connection = PeerMaster.peerConnections.get(peer);
+		if(connection != null && PeerMaster.peerSupports(peer, PeerMaster.CAP_DIGEST)) {
+			// only what differs is synced, starting from the digest of the whole share
+			try {
+				connection.send(Protocol.DIRECTORY_DIGEST_REQUEST("", fileSystemManager.directoryDigest("")));
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+			}
+			return syncEvents;
+		}
+		if(syncEvents == null) {
+			syncEvents = fileSystemManager.generateSyncEvents();
+		}
+		if(!syncEvents.isEmpty()) {
+			PeerMaster.eventToPeer(peer, syncEvents);
+		}
+		return syncEvents;
+	}
+	
 }
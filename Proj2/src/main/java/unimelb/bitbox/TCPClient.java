@@ -40,7 +40,7 @@ public class TCPClient extends Thread{
 			if(!PeerMaster.peerToConnect.isEmpty()) {
 				HostPort peer = PeerMaster.peerToConnect.poll();
 				ConnectToPeer newConnection = new ConnectToPeer(this.fileSystemManager, peer);
-				newConnection.start();
+				WorkerPool.startThread(newConnection, "bitbox-peer " + peer.toString());
 			}
 		}
 	}
@@ -2,7 +2,8 @@ package unimelb.bitbox;
 
 import java.io.*;
 import java.net.Socket;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.logging.Logger;
 import unimelb.bitbox.util.FileSystemManager;
 
@@ -19,16 +20,18 @@ public class TCPServer extends Thread {
 	public void run() {
 		
 		try {
+			// channel backed sockets, so that file bytes can be sent with transferTo
 			@SuppressWarnings("resource")
-			ServerSocket socket = new ServerSocket(PeerMaster.myPort);
+			ServerSocketChannel socket = ServerSocketChannel.open();
+			socket.bind(new InetSocketAddress(PeerMaster.myPort));
 			while (true) {
-				Socket clientSocket = socket.accept();
+				Socket clientSocket = socket.accept().socket();
 				log.info("Client " + clientSocket.getInetAddress().getHostAddress() + ":" +
 						clientSocket.getPort() +" trying to connect");
 				
 				// Start a new thread for a connection
 				ConnectFromPeer sp = new ConnectFromPeer(fileSystemManager, clientSocket);
-				sp.start();
+				WorkerPool.startThread(sp, "bitbox-peer " + clientSocket.getRemoteSocketAddress());
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -0,0 +1,470 @@
+package unimelb.bitbox;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.TimerWheel;
+
+/**
+ * Reliable, ordered delivery of protocol messages to one peer over UDP.
+ * <br/>
+ * Every message sent is a DATA datagram numbered in sequence, and up to a window of
+ * them are in flight, unacknowledged, at once; the rest wait their turn. The receiver
+ * answers each DATA with an ACK holding the next sequence number it expects, all
+ * before it having been received, and the ranges it has received beyond that
+ * (selective acknowledgements). A gap below a selectively acknowledged range is taken
+ * as lost, a negative acknowledgement, and resent straight away; anything else not
+ * acknowledged is resent once it times out. Messages are handed on in sequence order,
+ * those received early being held until the gap before them is filled.
+ * <br/>
+ * Each message in flight has its deadline on a {@link TimerWheel}, cancelled when it
+ * is acknowledged. The timeout adapts to the peer, Jacobson/Karels style: the round
+ * trip time of messages acknowledged without having been resent is smoothed, and the
+ * timeout is the smoothed round trip plus four times its mean deviation. It doubles
+ * once for each time the timer runs out, rather than for each message that was waiting
+ * on it, until the next measurement, and a message that keeps timing out waits twice
+ * as long each time.
+ * <br/>
+ * Sequence numbers belong to a session, started when the channel is, so that a peer
+ * that restarts starts numbering again. A receiver that sees a newer session starts
+ * over, and a sender whose receiver has forgotten what was acknowledged, because it
+ * restarted or dropped its channel, starts a new session with what was not.
+ * Acknowledgements carry the epoch of the channel sending them to tell when that
+ * happened, so a channel can be dropped while idle and made again when needed.
+ * <br/>
+ * A peer that acknowledges nothing for as long as the retries take is given up on and
+ * everything waiting for it dropped. The channel then reports, once, when the peer is
+ * heard from again, so that it can be synced for what it missed.
+ * <br/>
+ * Datagrams: DATA is a type byte, the session as a long, the sequence number as an int
+ * and the message as JSON. ACK is a type byte, the session being acknowledged, the
+ * epoch, the next sequence number expected, a count byte and that many int pairs, the
+ * start and end, exclusive, of each range received beyond it.
+ */
+public class UDPChannel {
+	private static Logger log = Logger.getLogger(UDPChannel.class.getName());
+
+	public static final byte DATA = 1;
+	public static final byte ACK = 2;
+
+	// DATA received this far ahead of the next one expected is dropped
+	private static final int MAX_RECEIVE_AHEAD = 4096;
+	private static final int MAX_SACK_RANGES = 16;
+	// bounds of the retransmission timeout
+	private static final long MIN_RTO_MILLIS = 50;
+	private static final long MAX_RTO_MILLIS = 60000;
+
+	// sessions are numbered from the time they start, so a later one is larger
+	private static AtomicLong lastSession = new AtomicLong();
+
+	/**
+	 * A message sent and not acknowledged yet.
+	 */
+	private static class Outgoing {
+		final int seq;
+		final byte[] message;
+		long firstSent;
+		int retries = 0;
+		// resent on a negative acknowledgement since last timing out
+		boolean nacked = false;
+		// resent at all, so its acknowledgement says nothing of the round trip time
+		boolean resent = false;
+		TimerWheel.Timeout deadline;
+		// the timeout its deadline was set with
+		long rto;
+
+		Outgoing(int seq, byte[] message) {
+			this.seq=seq;
+			this.message=message;
+		}
+	}
+
+	private final HostPort peer;
+	private final InetAddress address;
+	private final DatagramSocket socket;
+	private final int window;
+	private final TimerWheel timers;
+	private final int maxRetries;
+	// silence after which the peer is given up on
+	private final long giveUpMillis;
+	// identifies this channel in its acknowledgements, a newer one has forgotten what an older one received
+	private final long epoch = newSession();
+	private long lastHeard = System.currentTimeMillis();
+	// messages were dropped when the peer was given up on, and it has not been heard from since
+	private boolean lost = false;
+	// the peer has been heard from since, and this is yet to be reported
+	private boolean reconnected = false;
+	// dropped while idle, nothing more is sent on it
+	private boolean closed = false;
+
+	// sending side
+	private long session = newSession();
+	private int nextSeq = 0;
+	private TreeMap<Integer,Outgoing> inFlight = new TreeMap<Integer,Outgoing>();
+	private ArrayDeque<byte[]> backlog = new ArrayDeque<byte[]>();
+	private long lastAck = System.currentTimeMillis();
+	// the run of the peer acknowledging, 0 until it first has
+	private long peerEpoch = 0;
+	// smoothed round trip time and its mean deviation, none until measured
+	private long srttMicros = -1;
+	private long rttvarMicros = 0;
+	private long rtoMillis;
+
+	// receiving side
+	private long receiveSession = -1;
+	private int expected = 0;
+	private TreeMap<Integer,Document> early = new TreeMap<Integer,Document>();
+
+	private long sent = 0;
+	private long timeouts = 0;
+	private long nacks = 0;
+	private long delivered = 0;
+	private long duplicates = 0;
+
+	/**
+	 * @param window The most messages in flight at once.
+	 * @param timers Where the retransmission deadlines are kept.
+	 * @param initialRto The retransmission timeout until the round trip time is measured.
+	 * @param maxRetries The times a message is resent before the peer may be given up on.
+	 */
+	public UDPChannel(HostPort peer, DatagramSocket socket, int window, TimerWheel timers, long initialRto,
+			int maxRetries) throws IOException {
+		this.peer=peer;
+		this.address=InetAddress.getByName(peer.host);
+		this.socket=socket;
+		this.window=Math.max(1, window);
+		this.timers=timers;
+		this.rtoMillis=Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, initialRto));
+		this.maxRetries=maxRetries;
+		this.giveUpMillis=initialRto * (maxRetries + 1);
+	}
+
+	/**
+	 * Send a message once the window has room for it.
+	 * @return False if the channel was closed, and the message not sent.
+	 */
+	public synchronized boolean send(Document doc) {
+		if(closed) {
+			return false;
+		}
+		backlog.add(doc.toJson().getBytes(StandardCharsets.UTF_8));
+		fillWindow();
+		return true;
+	}
+
+	/**
+	 * Take in a DATA datagram and acknowledge it.
+	 * @return The messages that can now be delivered, in order.
+	 */
+	public synchronized ArrayList<Document> receive(ByteBuffer datagram) {
+		heard();
+		ArrayList<Document> ready = new ArrayList<Document>();
+		long dataSession = datagram.getLong();
+		int seq = datagram.getInt();
+		if(dataSession < receiveSession) {
+			// left over from before the peer restarted
+			return ready;
+		}
+		if(dataSession > receiveSession) {
+			receiveSession = dataSession;
+			expected = 0;
+			early.clear();
+		}
+		if(seq < expected || early.containsKey(seq)) {
+			duplicates++;
+		} else if(seq - expected < MAX_RECEIVE_AHEAD) {
+			String json = new String(datagram.array(), datagram.arrayOffset() + datagram.position(),
+					datagram.remaining(), StandardCharsets.UTF_8);
+			early.put(seq, Document.parse(json));
+			Document next;
+			while((next = early.remove(expected)) != null) {
+				ready.add(next);
+				expected++;
+				delivered++;
+			}
+		}
+		transmit(acknowledgement());
+		return ready;
+	}
+
+	/**
+	 * Take in an ACK datagram, freeing the window and resending what it shows is lost.
+	 */
+	public synchronized void acknowledge(ByteBuffer datagram) {
+		heard();
+		long ackSession = datagram.getLong();
+		long epoch = datagram.getLong();
+		int cumulative = datagram.getInt();
+		if(ackSession != session || epoch < peerEpoch) {
+			return;
+		}
+		lastAck = System.currentTimeMillis();
+		if(epoch > peerEpoch) {
+			boolean restarted = peerEpoch != 0;
+			peerEpoch = epoch;
+			if(restarted) {
+				// the peer has forgotten what it acknowledged
+				restart("peer restarted");
+				return;
+			}
+		}
+		long now = System.nanoTime();
+		// the quickest round trip of those acknowledged, the message that prompted the ACK
+		long rtt = settle(inFlight.headMap(cumulative), now);
+		int ranges = datagram.get();
+		int highest = cumulative;
+		for(int i = 0; i < ranges; i++) {
+			int start = datagram.getInt();
+			int end = datagram.getInt();
+			if(start < end) {
+				rtt = Math.min(rtt, settle(inFlight.subMap(start, end), now));
+			}
+			highest = Math.max(highest, end);
+		}
+		if(rtt != Long.MAX_VALUE) {
+			measured(rtt / 1000);
+		}
+		// the gaps below the highest range received are lost
+		for(Outgoing out : inFlight.headMap(highest).values()) {
+			if(!out.nacked) {
+				out.nacked = true;
+				out.resent = true;
+				nacks++;
+				transmit(data(out));
+				schedule(out);
+			}
+		}
+		fillWindow();
+	}
+
+	// resend a message whose deadline has passed, or give up on everything to send if the
+	// peer has not acknowledged anything for as long as the retries took
+	private synchronized void expired(Outgoing out) {
+		if(inFlight.get(out.seq) != out) {
+			// acknowledged, or the session restarted, just as the deadline passed
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if(out.retries >= maxRetries && now - lastAck > giveUpMillis) {
+			log.warning("no acknowledgement from " + peer + " for " + (now - lastAck) + " ms, dropping "
+					+ (inFlight.size() + backlog.size()) + " messages");
+			cancelDeadlines();
+			backlog.clear();
+			session = newSession();
+			nextSeq = 0;
+			lost = true;
+			return;
+		}
+		out.retries++;
+		out.nacked = false;
+		out.resent = true;
+		timeouts++;
+		// back off until the next measurement, once per timeout: the messages sent with an
+		// older, shorter timeout have run out along with the first, RFC 6298 5.5
+		if(out.rto >= rtoMillis) {
+			rtoMillis = Math.min(MAX_RTO_MILLIS, rtoMillis * 2);
+		}
+		transmit(data(out));
+		schedule(out, Math.min(MAX_RTO_MILLIS, Math.max(rtoMillis, out.rto * 2)));
+	}
+
+	// remove acknowledged messages, returning the round trip of the quickest not resent
+	private long settle(Map<Integer,Outgoing> acknowledged, long now) {
+		long rtt = Long.MAX_VALUE;
+		for(Outgoing out : acknowledged.values()) {
+			out.deadline.cancel();
+			if(!out.resent) {
+				rtt = Math.min(rtt, now - out.firstSent);
+			}
+		}
+		acknowledged.clear();
+		return rtt;
+	}
+
+	// update the round trip estimates with a measurement, RFC 6298
+	private void measured(long rttMicros) {
+		if(srttMicros < 0) {
+			srttMicros = rttMicros;
+			rttvarMicros = rttMicros / 2;
+		} else {
+			rttvarMicros = (3 * rttvarMicros + Math.abs(srttMicros - rttMicros)) / 4;
+			srttMicros = (7 * srttMicros + rttMicros) / 8;
+		}
+		long rto = (srttMicros + 4 * rttvarMicros) / 1000;
+		rtoMillis = Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, rto));
+	}
+
+	private void schedule(Outgoing out) {
+		schedule(out, rtoMillis);
+	}
+
+	private void schedule(Outgoing out, long rto) {
+		if(out.deadline != null) {
+			out.deadline.cancel();
+		}
+		out.rto = rto;
+		out.deadline = timers.schedule(rto, () -> expired(out));
+	}
+
+	private void cancelDeadlines() {
+		for(Outgoing out : inFlight.values()) {
+			out.deadline.cancel();
+		}
+		inFlight.clear();
+	}
+
+	/**
+	 * Whether the peer has been heard from since messages to it were dropped, true only
+	 * once for each time they were.
+	 */
+	public synchronized boolean reconnected() {
+		boolean heard = reconnected;
+		reconnected = false;
+		return heard;
+	}
+
+	/**
+	 * Close the channel if nothing is waiting to be sent and the peer has not been heard
+	 * from for the given time, so that it can be dropped.
+	 * @return Whether the channel is closed.
+	 */
+	public synchronized boolean closeIfIdle(long millis) {
+		if(inFlight.isEmpty() && backlog.isEmpty() && System.currentTimeMillis() - lastHeard >= millis) {
+			closed = true;
+		}
+		return closed;
+	}
+
+	/**
+	 * The message a DATA datagram carries, without taking it in.
+	 * @return The message, null if the datagram is not DATA.
+	 */
+	public static Document message(ByteBuffer datagram) {
+		if(datagram.remaining() < 13 || datagram.get(datagram.position()) != DATA) {
+			return null;
+		}
+		int start = datagram.arrayOffset() + datagram.position() + 13;
+		return Document.parse(new String(datagram.array(), start, datagram.limit() - datagram.position() - 13,
+				StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Figures for monitoring.
+	 */
+	public synchronized Document metrics() {
+		Document doc = new Document();
+		doc.append("sent", sent);
+		doc.append("timeouts", timeouts);
+		doc.append("nacks", nacks);
+		doc.append("inFlight", inFlight.size());
+		doc.append("backlog", backlog.size());
+		doc.append("delivered", delivered);
+		doc.append("duplicates", duplicates);
+		doc.append("early", early.size());
+		doc.append("srttMicros", srttMicros);
+		doc.append("rttvarMicros", rttvarMicros);
+		doc.append("rtoMillis", rtoMillis);
+		return doc;
+	}
+
+	// number and send waiting messages while the window has room
+	private void fillWindow() {
+		while(inFlight.size() < window && !backlog.isEmpty()) {
+			if(inFlight.isEmpty()) {
+				// nothing was waiting for the peer, so its silence until now does not count
+				lastAck = System.currentTimeMillis();
+			}
+			Outgoing out = new Outgoing(nextSeq++, backlog.poll());
+			out.firstSent = System.nanoTime();
+			inFlight.put(out.seq, out);
+			sent++;
+			transmit(data(out));
+			schedule(out);
+		}
+	}
+
+	// send what was not acknowledged again in a new session
+	private void restart(String reason) {
+		log.warning("restarting session with " + peer + ": " + reason);
+		ArrayDeque<byte[]> resend = new ArrayDeque<byte[]>();
+		for(Outgoing out : inFlight.values()) {
+			resend.add(out.message);
+		}
+		resend.addAll(backlog);
+		backlog = resend;
+		cancelDeadlines();
+		session = newSession();
+		nextSeq = 0;
+		fillWindow();
+	}
+
+	private void heard() {
+		lastHeard = System.currentTimeMillis();
+		if(lost) {
+			lost = false;
+			reconnected = true;
+		}
+	}
+
+	private ByteBuffer data(Outgoing out) {
+		ByteBuffer datagram = ByteBuffer.allocate(13 + out.message.length);
+		datagram.put(DATA);
+		datagram.putLong(session);
+		datagram.putInt(out.seq);
+		datagram.put(out.message);
+		datagram.flip();
+		return datagram;
+	}
+
+	private ByteBuffer acknowledgement() {
+		ArrayList<int[]> ranges = new ArrayList<int[]>();
+		int[] range = null;
+		for(int seq : early.keySet()) {
+			if(range != null && range[1] == seq) {
+				range[1]++;
+				continue;
+			}
+			if(ranges.size() == MAX_SACK_RANGES) {
+				break;
+			}
+			range = new int[] {seq, seq + 1};
+			ranges.add(range);
+		}
+		ByteBuffer datagram = ByteBuffer.allocate(22 + 8 * ranges.size());
+		datagram.put(ACK);
+		datagram.putLong(receiveSession);
+		datagram.putLong(epoch);
+		datagram.putInt(expected);
+		datagram.put((byte) ranges.size());
+		for(int[] r : ranges) {
+			datagram.putInt(r[0]);
+			datagram.putInt(r[1]);
+		}
+		datagram.flip();
+		return datagram;
+	}
+
+	private void transmit(ByteBuffer datagram) {
+		try {
+			socket.send(new DatagramPacket(datagram.array(), datagram.limit(), address, peer.port));
+		} catch (IOException e) {
+			log.warning("could not send to " + peer + ": " + e.getMessage());
+		}
+	}
+
+	private static long newSession() {
+		return lastSession.accumulateAndGet(System.currentTimeMillis(), (last, now) -> Math.max(last + 1, now));
+	}
+}
@@ -3,28 +3,49 @@ package unimelb.bitbox;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.logging.Logger;
 
 import unimelb.bitbox.util.FileSystemManager;
 import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
 import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.TimerWheel;
 import unimelb.bitbox.util.Document;
 
+/**
+ * The peer in UDP mode. Messages put on the send queue are delivered to their peer
+ * reliably and in order by a {@link UDPChannel} for each peer, which this class feeds
+ * with the datagrams received. The channels' retransmission deadlines share one
+ * timer wheel.
+ * <br/>
+ * Datagrams from an address open a channel only if it is a connected or configured
+ * peer, or if they carry a handshake request. Channels to addresses that are not
+ * connected peers are dropped once idle for as long as a peer takes to be given up on,
+ * and a connected peer whose channel gave up on it is synced when it is heard from again.
+ */
 public class UDPPeer {
 	private static Logger log = Logger.getLogger(UDPPeer.class.getName());
 	private FileSystemManager fileSystemManager;
 	public static BlockingQueue<UDPDataPack> sendQueue;
-	public static BlockingQueue<UDPDataPack> waitQueue;
-	//private HashMap<HostPort, Queue<DataPack>> peerPacket = new HashMap<HostPort, Queue<DataPack>>();
+	// channel to each peer messages have been sent to or received from, and not dropped since
+	private static ConcurrentHashMap<HostPort, UDPChannel> channels = new ConcurrentHashMap<HostPort, UDPChannel>();
+	// retransmission deadlines of every channel, in 10 ms ticks, 512 of them a round
+	private static TimerWheel retransmissions = new TimerWheel(10, 512);
 	private DatagramSocket socket;
+	// idle time after which the channel to an address that is not a connected peer is dropped
+	private long channelIdleMillis;
 	
 	public UDPPeer(FileSystemManager fileSystemManager) {
 		this.fileSystemManager = fileSystemManager;
 		sendQueue = new LinkedBlockingDeque<UDPDataPack>();
-		waitQueue = new LinkedBlockingDeque<UDPDataPack>();
 	}
 	
 	public void startUDP() {
@@ -49,11 +70,12 @@ public class UDPPeer {
 			
 			Thread recT = new Thread(()->recPackets(socket));
 			Thread sndT = new Thread(()->sndPackets(socket));
-			Thread waitT = new Thread(()->processWaitQueue());
 			Thread eventT = new Thread(()->packEvents());
+			retransmissions.start("UDP retransmissions");
+			channelIdleMillis = Math.max(1000, (long) PeerMaster.udpTimeout * (PeerMaster.udpRetries + 1));
+			retransmissions.schedule(channelIdleMillis, this::dropIdleChannels);
 			recT.start();
 			sndT.start();
-			waitT.start();
 			eventT.start();
 			
 		} catch (SocketException e) {
@@ -69,72 +91,173 @@ public class UDPPeer {
 				socket.receive(rec);
 			} catch (IOException e) {
 				e.printStackTrace();
+				continue;
 			}
-			String data = new String(in, 0, rec.getLength());
-			Document docRec = Document.parse(data);
 			String host = rec.getAddress().toString().substring(1);
 			HostPort hostPort = new HostPort(host, rec.getPort());
-			log.info("receiving document: " + docRec.toJson() + " from :" + hostPort.toString());
-			UDPRequest handleReq = new UDPRequest(fileSystemManager, docRec, hostPort);
-			handleReq.start();
+			ByteBuffer datagram = ByteBuffer.wrap(in, 0, rec.getLength());
+			UDPChannel channel;
+			try {
+				channel = receivingChannel(hostPort, datagram);
+			} catch (RuntimeException e) {
+				log.warning("bad datagram from " + hostPort.toString() + ": " + e);
+				continue;
+			}
+			if(channel == null || rec.getLength() == 0) {
+				continue;
+			}
+			try {
+				byte type = datagram.get();
+				if(type == UDPChannel.ACK) {
+					channel.acknowledge(datagram);
+				} else if(type == UDPChannel.DATA) {
+					ArrayList<Document> docsRec = channel.receive(datagram);
+					for(Document docRec : docsRec) {
+						log.info("receiving document: " + docRec.toJson() + " from :" + hostPort.toString());
+						UDPRequest handleReq = new UDPRequest(fileSystemManager, docRec, hostPort);
+						WorkerPool.execute(WorkerPool.laneOf(docRec), handleReq);
+					}
+					// stop reading while the workers are behind
+					WorkerPool.throttle();
+				} else {
+					log.warning("unknown datagram type " + type + " from " + hostPort.toString());
+				}
+			} catch (RuntimeException e) {
+				// a truncated or garbled datagram
+				log.warning("bad datagram from " + hostPort.toString() + ": " + e);
+			}
+			if(channel.reconnected()) {
+				HostPort peer = connectedPeer(hostPort);
+				if(peer != null) {
+					log.info(peer.toString() + " answers again, syncing it for the messages dropped");
+					PeerMaster.resyncPeer(peer);
+				}
+			}
 		}
 	}
 	
 	private void sndPackets(DatagramSocket socket) {
 		while(true) {
-			if(!sendQueue.isEmpty()) {
-				try {
-					// send the packet in the send queue
-					UDPDataPack packtoSend = sendQueue.poll();
-					socket.send(packtoSend.getDatagramPacket());
-					log.info("send "+ packtoSend.getDocument().toJson() +" to: " + packtoSend.getHostPort().toString() 
-							+ " for " + packtoSend.getRetry() + " times");
-					// set the timer and retry counter for the packet sent
-					long startTime = System.currentTimeMillis();
-					packtoSend.setStartTime(startTime);
-					packtoSend.incRetry();
-					
-					// move the packet to wait queue
-					waitQueue.put(packtoSend);
-				} catch (IOException e) {
-					e.printStackTrace();
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+			try {
+				// hand the packet to its peer's channel, which sends it when its window allows
+				UDPDataPack packtoSend = sendQueue.take();
+				HostPort peer = packtoSend.getHostPort();
+				UDPChannel channel = channel(peer);
+				if(channel != null) {
+					log.info("send "+ packtoSend.getDocument().toJson() +" to: " + peer.toString());
+				}
+				while(channel != null && !channel.send(packtoSend.getDocument())) {
+					// dropped while idle just now, make it again
+					channels.remove(peer, channel);
+					channel = channel(peer);
 				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
 			}
 		}
 	}
 	
-	private void processWaitQueue() {
-		while(true) {
-			try {
-				for(UDPDataPack dp: waitQueue) {
-					long endTime = System.currentTimeMillis();
-					if(!dp.maxRetry()) {
-						if(dp.isTimeOut(endTime)) {
-							log.info("timeout of datapacket " + dp.getCmd() +", put to send queue");
-							sendQueue.put(dp);
-							waitQueue.remove(dp);
-						}
-					}else {
-						waitQueue.remove(dp);
-					}	
+	// the channel to a peer, made on first use, null if the peer's host is unknown
+	private UDPChannel channel(HostPort peer) {
+		UDPChannel channel = channels.get(peer);
+		if(channel != null) {
+			return channel;
+		}
+		try {
+			channel = new UDPChannel(peer, socket, PeerMaster.udpWindow, retransmissions,
+					PeerMaster.udpTimeout, PeerMaster.udpRetries);
+		} catch (IOException e) {
+			log.warning("cannot reach " + peer.toString() + ": " + e.getMessage());
+			return null;
+		}
+		UDPChannel existing = channels.putIfAbsent(peer, channel);
+		return existing != null ? existing : channel;
+	}
+	
+	// the channel for a datagram received, null if it comes from an address that is not a peer
+	// and is not a handshake request
+	private UDPChannel receivingChannel(HostPort address, ByteBuffer datagram) {
+		UDPChannel channel = channels.get(address);
+		if(channel != null) {
+			return channel;
+		}
+		if(!isKnown(address)) {
+			Document message = UDPChannel.message(datagram);
+			if(message == null || !"HANDSHAKE_REQUEST".equals(message.get("command"))) {
+				return null;
+			}
+		}
+		return channel(address);
+	}
+	
+	// drop the channels to addresses that are not connected peers, once they are idle
+	private void dropIdleChannels() {
+		try {
+			for(Map.Entry<HostPort, UDPChannel> channel : channels.entrySet()) {
+				if(connectedPeer(channel.getKey()) == null && channel.getValue().closeIfIdle(channelIdleMillis)) {
+					log.info("dropping idle channel to " + channel.getKey().toString());
+					channels.remove(channel.getKey(), channel.getValue());
 				}
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
 			}
+		} finally {
+			retransmissions.schedule(channelIdleMillis, this::dropIdleChannels);
+		}
+	}
+	
+	// the connected peer at an address, null if there is none
+	private static HostPort connectedPeer(HostPort address) {
+		for(HostPort peer : PeerMaster.peerList) {
+			if(sameAddress(peer, address)) {
+				return peer;
+			}
+		}
+		return null;
+	}
+	
+	// whether an address is a connected peer or one of the configured peers
+	private static boolean isKnown(HostPort address) {
+		if(connectedPeer(address) != null) {
+			return true;
+		}
+		for(String host : PeerMaster.peerArray) {
+			if(sameAddress(new HostPort(host), address)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean sameAddress(HostPort peer, HostPort address) {
+		if(peer.port != address.port) {
+			return false;
+		}
+		if(peer.host.equals(address.host)) {
+			return true;
+		}
+		try {
+			return InetAddress.getByName(peer.host).equals(InetAddress.getByName(address.host));
+		} catch (UnknownHostException e) {
+			return false;
+		}
+	}
+	
+	// current figures of each channel, for monitoring
+	public static Document metrics() {
+		Document doc = new Document();
+		for(Map.Entry<HostPort, UDPChannel> channel : channels.entrySet()) {
+			doc.append(channel.getKey().toString(), channel.getValue().metrics());
 		}
+		return doc;
 	}
 	
 	private void packEvents() {
 		while(true) {
 			if(!PeerMaster.peerList.isEmpty()) {
-				for(HostPort peer : PeerMaster.peerList) {
-					if(!PeerMaster.peerEventQ.get(peer).isEmpty()) {
+				for(Map.Entry<HostPort, EventQueue> peerEvents : PeerMaster.peerEventQ.entrySet()) {
+					HostPort peer = peerEvents.getKey();
+					FileSystemEvent event = peerEvents.getValue().poll();
+					if(event != null) {
 						try {
-							FileSystemEvent event = PeerMaster.peerEventQ.get(peer).poll();
 							RespondOnReq getDoc = new RespondOnReq(event);
 							UDPDataPack eventPack = new UDPDataPack(peer, getDoc.getDoc());
 							log.info("put event " + event.toString() + "to send queue");
@@ -7,8 +7,10 @@ import unimelb.bitbox.util.Document;
 import unimelb.bitbox.util.FileSystemManager;
 import unimelb.bitbox.util.HostPort;
 
-public class UDPRequest extends Thread{
+public class UDPRequest implements Runnable{
 	private static Logger log = Logger.getLogger(UDPRequest.class.getName());
+	// reads of a file byte request before telling the peer it failed
+	private static final int READ_ATTEMPTS = 5;
 	private FileSystemManager fileSystemManager; 
 	private Document request;
 	private String command;
@@ -38,49 +40,38 @@ public class UDPRequest extends Thread{
 			processHandshakeRequest();
 			break;
 		case "HANDSHAKE_RESPONSE":
-			processResponse();
 			processHandshakeResponse();
 			break;
 		case "CONNECTION_REFUSED":
 			processConnectionRefused();
-			processResponse();
 			break;
 		case "FILE_CREATE_REQUEST":
 			processFileCreate();
 			break;
-		case "FILE_CREATE_RESPONSE":
-			processResponse();
-			break;
 		case "FILE_DELETE_REQUEST":
 			processFileDelete();
 			break;
-		case "FILE_DELETE_RESPONSE":
-			processResponse();
-			break;
 		case "FILE_MODIFY_REQUEST":
 			processFileModify();
 			break;
-		case "FILE_MODIFY_RESPONSE":
-			processResponse();
-			break;
 		case "DIRECTORY_CREATE_REQUEST":
 			processDirectoryCreateRequest();
 			break;
-		case "DIRECTORY_CREATE_RESPONSE":
-			processResponse();
-			break;
 		case "DIRECTORY_DELETE_REQUEST":
 			processDirectoryDeleteRequest();
 			break;
-		case "DIRECTORY_DELETE_RESPONSE":
-			processResponse();
-			break;
 		case "FILE_BYTES_REQUEST":
 			processFileByteRequest();
 			break;
 		case "FILE_BYTES_RESPONSE":
 			processFileByteResponse();
-			processResponse();
+			break;
+		case "FILE_CREATE_RESPONSE":
+		case "FILE_DELETE_RESPONSE":
+		case "FILE_MODIFY_RESPONSE":
+		case "DIRECTORY_CREATE_RESPONSE":
+		case "DIRECTORY_DELETE_RESPONSE":
+			// the channel has already made sure the request arrived
 			break;
 		default:
 			processInvalid();
@@ -89,16 +80,6 @@ public class UDPRequest extends Thread{
 
 	}
 	
-	// remove corresponding request from wait queue if response is received
-	private void processResponse() {
-		for(UDPDataPack dp : UDPPeer.waitQueue) {
-			if(dp.validate_Response(hostPort, request)) {
-				log.info("valid response found");
-				UDPPeer.waitQueue.remove(dp);
-			}
-		}
-	}
-	
 	// hand handshake request
 	private void processHandshakeRequest() {
 		Document response = new Document();
@@ -253,10 +234,28 @@ public class UDPRequest extends Thread{
 	
 	// file byte request
 	private void processFileByteRequest() {
+		if(!RespondOnReq.validByteRange(this.request)) {
+			log.warning("Invalid byte range requested: " + this.request.toJson());
+			UDPPeer.sendQueue.offer(new UDPDataPack(hostPort, RespondOnReq.invalidByteRange(this.request)));
+			return;
+		}
 		log.info("Start Processing File Byte Request: " + this.request.getString("pathName") + " from position "
 				+ this.request.getLong("position") + " of length " + this.request.getLong("length"));
 		boolean readStatus = false;
-		while(!readStatus) {
+		for(int attempt = 0; !readStatus; attempt++) {
+			if(attempt == READ_ATTEMPTS) {
+				// the file has changed under the request, let the peer give up on it
+				UDPPeer.sendQueue.offer(new UDPDataPack(hostPort,
+						Protocol.FILE_BYTES_RESPONSE(this.request, "", "unsuccessful read", false)));
+				return;
+			}
+			if(attempt > 0) {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
 			// send the request to fileOperator to read file
 			RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
 			Document result = requestOperator.fileByteResponse(this.request);
@@ -279,25 +278,16 @@ public class UDPRequest extends Thread{
 	
 	// request file bytes
 	private void requestFileByte(Document result) {
-		// proceed to send byte request
-		Document fileDescriptor = (Document) request.get("fileDescriptor");
-		long fileSize = fileDescriptor.getLong("fileSize");
-		long position = 0;
-		long length = 0;
-		if(fileSize >= PeerMaster.blockSize) {
-			length = PeerMaster.blockSize;
-		}else {
-			length = fileSize;
+		// proceed to send the first window of byte requests
+		RespondOnReq requestOperator = new RespondOnReq(this.fileSystemManager);
+		ArrayList<Document> docsToSend = requestOperator.fileByteStart(this.request);
+		log.info("Initial sending file byte requests: " + result.getString("pathName") + 
+				" count " + docsToSend.size());
+		for(Document docToSend : docsToSend) {
+			// send FILE_BYTES_REQUEST to remote peer
+			UDPDataPack toSend = new UDPDataPack(hostPort, docToSend);
+			UDPPeer.sendQueue.offer(toSend);
 		}
-		
-		// send FILE_BYTES_REQUEST to remote peer
-		Document docToSend = Protocol.FILE_BYTES_REQUEST(this.request, position, length);
-
-		log.info("Initial sending file byte request: " + result.getString("pathName") + 
-				" postion " + position + "& length " + length);
-		
-		UDPDataPack toSend = new UDPDataPack(hostPort, docToSend);
-		UDPPeer.sendQueue.offer(toSend);		
 	}
 	
 	private void processInvalid() {
@@ -0,0 +1,276 @@
+package unimelb.bitbox;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.HostPort;
+
+/**
+ * Shared, bounded pool of worker threads that process the messages received from
+ * peers and the events sent to them, in place of a new thread for each.
+ * <br/>
+ * Tasks are given a lane, e.g. the path name a message is about. Tasks in the same
+ * lane run one after the other in the order they were submitted, tasks in different
+ * lanes run in parallel. Work is never run by the submitting thread, which may be
+ * the NIO engine's. When the pool's queue is full it waits in a backlog, handed to
+ * the workers as they finish. While it does, or while more tasks than the queue holds
+ * wait behind others of their lane, e.g. the blocks of one big file, the readers stop
+ * reading from peers, see {@link #saturated()} and {@link #throttle()}, rather than
+ * queueing without limit.
+ * <br/>
+ * With executionMode = virtual, on Java 21 or later, every task and every thread
+ * started with {@link #startThread(Runnable, String)} runs on a virtual thread of
+ * its own instead, so blocking on sockets stays cheap however many transfers are
+ * going on. Virtual threads are looked up by reflection so that the same code still
+ * builds and runs on Java 8, where platform threads are used whatever the mode.
+ */
+public class WorkerPool {
+	private static Logger log = Logger.getLogger(WorkerPool.class.getName());
+
+	private static ExecutorService executor;
+	private static boolean virtual = false;
+	// lanes with tasks queued or running, by name
+	private static HashMap<String, Lane> lanes = new HashMap<String, Lane>();
+	private static AtomicLong submitted = new AtomicLong();
+	private static AtomicLong rejected = new AtomicLong();
+	private static AtomicLong completed = new AtomicLong();
+	// work the pool's queue had no room for, oldest first
+	private static LinkedList<Runnable> backlog = new LinkedList<Runnable>();
+	// tasks waiting in their lanes, and how many may before the readers stop
+	private static AtomicLong laneBacklog = new AtomicLong();
+	private static int laneLimit;
+
+	// tasks of one lane, run in order by a single worker at a time
+	private static class Lane implements Runnable {
+		private String name;
+		private LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+		Lane(String name) {
+			this.name = name;
+		}
+
+		public void run() {
+			while(true) {
+				Runnable task;
+				synchronized(lanes) {
+					task = tasks.poll();
+					if(task == null) {
+						lanes.remove(name);
+						return;
+					}
+				}
+				if(laneBacklog.decrementAndGet() == laneLimit) {
+					caughtUp();
+				}
+				runTask(task);
+			}
+		}
+	}
+
+	// start the workers, from the configuration
+	public static synchronized void start(String mode, int threads, int queueLength) {
+		if(executor != null) return;
+		laneLimit = queueLength;
+		if(mode.equals("virtual")) {
+			executor = newVirtualExecutor();
+			if(executor != null) {
+				virtual = true;
+				log.info("started with a virtual thread per task");
+				return;
+			}
+			log.warning("virtual threads need Java 21 or later, using platform threads");
+		}
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bitbox-worker-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		RejectedExecutionHandler toBacklog = new RejectedExecutionHandler() {
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+				rejected.incrementAndGet();
+				synchronized(backlog) {
+					backlog.add(r);
+				}
+				// the workers may have emptied the queue since
+				drainBacklog(e);
+			}
+		};
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueLength), factory, toBacklog) {
+			protected void afterExecute(Runnable r, Throwable t) {
+				drainBacklog(this);
+			}
+		};
+		// work is put straight in the queue from the backlog, so every worker has to be there to take it
+		pool.prestartAllCoreThreads();
+		executor = pool;
+		log.info("started " + threads + " workers with a queue of " + queueLength);
+	}
+
+	// run a task after the earlier tasks of the same lane, or whenever possible if lane is null
+	public static void execute(String lane, Runnable task) {
+		submitted.incrementAndGet();
+		if(executor == null) {
+			start(PeerMaster.executionMode, PeerMaster.workerThreads, PeerMaster.workerQueue);
+		}
+		if(lane == null) {
+			executor.execute(() -> runTask(task));
+			return;
+		}
+		Lane queued;
+		laneBacklog.incrementAndGet();
+		synchronized(lanes) {
+			queued = lanes.get(lane);
+			if(queued != null) {
+				// the lane's worker picks it up after the tasks before it
+				queued.tasks.add(task);
+				return;
+			}
+			queued = new Lane(lane);
+			queued.tasks.add(task);
+			lanes.put(lane, queued);
+		}
+		executor.execute(queued);
+	}
+
+	// whether work is waiting for room in the pool's queue, or too much of it in lanes, when reading
+	// more from peers only adds to it
+	public static boolean saturated() {
+		synchronized(backlog) {
+			return !backlog.isEmpty() || laneBacklog.get() > laneLimit;
+		}
+	}
+	
+	// wait until the pool is no longer saturated, for a thread reading from peers
+	public static void throttle() {
+		synchronized(backlog) {
+			while(!backlog.isEmpty() || laneBacklog.get() > laneLimit) {
+				try {
+					backlog.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+	
+	// move work from the backlog to the pool's queue while it has room
+	private static void drainBacklog(ThreadPoolExecutor pool) {
+		synchronized(backlog) {
+			if(backlog.isEmpty()) {
+				return;
+			}
+			while(!backlog.isEmpty() && pool.getQueue().offer(backlog.peek())) {
+				backlog.poll();
+			}
+			if(!backlog.isEmpty()) {
+				return;
+			}
+		}
+		caughtUp();
+	}
+	
+	// wake the readers waiting for the pool to catch up, they check again whether it has
+	private static void caughtUp() {
+		synchronized(backlog) {
+			backlog.notifyAll();
+		}
+		if(PeerMaster.nioEngine != null) {
+			PeerMaster.nioEngine.workersCaughtUp();
+		}
+	}
+	
+	// start a task that runs for as long as a connection does, on a thread of its own
+	public static Thread startThread(Runnable task, String name) {
+		if(executor == null) {
+			start(PeerMaster.executionMode, PeerMaster.workerThreads, PeerMaster.workerQueue);
+		}
+		if(virtual) {
+			try {
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+				ofVirtual = builder.getMethod("name", String.class).invoke(ofVirtual, name);
+				return (Thread) builder.getMethod("start", Runnable.class).invoke(ofVirtual, task);
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}
+		Thread thread = new Thread(task, name);
+		thread.start();
+		return thread;
+	}
+	
+	// Executors.newVirtualThreadPerTaskExecutor(), or null before Java 21
+	private static ExecutorService newVirtualExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+	
+	// lane for a message, by the path name it is about
+	public static String laneOf(Document message) {
+		if(message.containsKey("pathName")) {
+			return "path " + message.getString("pathName");
+		}
+		return null;
+	}
+	
+	// lane for the events sent to a peer
+	public static String laneOf(HostPort peer) {
+		return "peer " + peer.toString();
+	}
+	
+	// current figures, for monitoring
+	public static Document metrics() {
+		Document doc = new Document();
+		int laneCount;
+		int waiting;
+		synchronized(backlog) {
+			waiting = backlog.size();
+		}
+		synchronized(lanes) {
+			laneCount = lanes.size();
+		}
+		doc.append("submitted", submitted.get());
+		doc.append("rejected", rejected.get());
+		doc.append("lanes", laneCount);
+		doc.append("laneBacklog", laneBacklog.get());
+		doc.append("backlog", waiting);
+		if(executor instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+			doc.append("queueDepth", pool.getQueue().size());
+			doc.append("activeWorkers", pool.getActiveCount());
+		}
+		doc.append("virtual", virtual);
+		doc.append("completed", completed.get());
+		return doc;
+	}
+
+	private static void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			// one bad message must not take the worker, or the rest of its lane, with it
+			e.printStackTrace();
+		} finally {
+			completed.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of file content read to serve peers, so that a file sent to several peers
+ * at once is read from disk once rather than once for each of them.
+ * <br/>
+ * Content is cached in pages of {@link #PAGE_LENGTH} bytes, identified by the MD5 of
+ * the file and the page's position, so a page stays valid whichever file with that
+ * content it was read from. The pages are direct buffers, outside of the Java heap,
+ * allocated up to the cache's byte budget and then reused, the least recently used
+ * page first. While every page is being filled by other reads, a page is read into
+ * a heap buffer outside of the cache instead, so the budget is never exceeded. When a file's pages are being read in order, a missing page is read
+ * along with the next few, so that peers fetching the file block by block mostly
+ * find their next block in memory.
+ */
+public class BlockCache {
+
+	public static final int PAGE_LENGTH = 64*1024;
+
+	// files whose last page read is remembered, to tell sequential reads
+	private static final int MAX_TRACKED_FILES = 1024;
+
+	/**
+	 * Reads file content from disk for the cache.
+	 */
+	public interface PageReader {
+		/**
+		 * Fill the buffer with the bytes of the file from the given position on.
+		 * @throws IOException If the bytes could not all be read.
+		 */
+		void read(ByteBuffer dst, long position) throws IOException;
+	}
+
+	private final int maxPages;
+	private final int readAhead;
+	private int allocated = 0;
+	private ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	// least recently used first
+	private LinkedHashMap<String,ByteBuffer> pages = new LinkedHashMap<String,ByteBuffer>(16, 0.75f, true);
+	private HashMap<String,Long> lastPage = new HashMap<String,Long>();
+	private long servedBytes = 0;
+	private long diskBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param budget The most bytes to cache, 0 to read everything straight from disk.
+	 * @param readAhead The number of pages to read after a missing one, when reading in order.
+	 */
+	public BlockCache(long budget, int readAhead) {
+		this.maxPages=(int) Math.min(Integer.MAX_VALUE, Math.max(0, budget/PAGE_LENGTH));
+		this.readAhead=Math.max(0, readAhead);
+	}
+
+	/**
+	 * Read bytes of a file, from the cache where possible.
+	 * @param md5 The MD5 hash of the file's content.
+	 * @param fileSize The size of the file.
+	 * @param position The position to read from.
+	 * @param dst The buffer to fill.
+	 * @param reader Reads the pages missing from the cache.
+	 * @throws IOException If the reader failed, nothing is cached from it then.
+	 */
+	public void read(String md5, long fileSize, long position, ByteBuffer dst, PageReader reader) throws IOException {
+		int length = dst.remaining();
+		if(maxPages==0) {
+			reader.read(dst, position);
+			synchronized(this) {
+				servedBytes+=length;
+				diskBytes+=length;
+			}
+			return;
+		}
+		long end = position+length;
+		for(long page = position/PAGE_LENGTH; page*PAGE_LENGTH<end; page++) {
+			int from = (int) (Math.max(position, page*PAGE_LENGTH)-page*PAGE_LENGTH);
+			int to = (int) (Math.min(end, (page+1)*PAGE_LENGTH)-page*PAGE_LENGTH);
+			boolean sequential;
+			synchronized(this) {
+				if(copy(key(md5, page), from, to, dst)) {
+					hits++;
+					lastPage(md5, page);
+					continue;
+				}
+				misses++;
+				Long last = lastPage.get(md5);
+				sequential = page==0 || (last!=null && last==page-1);
+			}
+			long lastToRead = Math.min((fileSize-1)/PAGE_LENGTH, sequential ? page+readAhead : page);
+			for(long next = page; next<=lastToRead; next++) {
+				if(next>page && cached(key(md5, next))) continue;
+				ByteBuffer buffer = take();
+				if(buffer==null) {
+					// every page is being filled, read this one around the cache
+					if(next>page) break;
+					buffer = ByteBuffer.allocate(PAGE_LENGTH);
+				}
+				try {
+					buffer.clear();
+					buffer.limit((int) Math.min(PAGE_LENGTH, fileSize-next*PAGE_LENGTH));
+					reader.read(buffer, next*PAGE_LENGTH);
+					buffer.flip();
+				} catch (IOException e) {
+					if(buffer.isDirect()) give(buffer);
+					throw e;
+				}
+				synchronized(this) {
+					diskBytes+=buffer.limit();
+					if(!buffer.isDirect()) {
+						copy(buffer, from, to, dst);
+						lastPage(md5, page);
+						continue;
+					}
+					ByteBuffer previous = pages.put(key(md5, next), buffer);
+					if(previous!=null) free.add(previous);
+					if(next==page) {
+						copy(key(md5, page), from, to, dst);
+						lastPage(md5, page);
+					}
+				}
+			}
+		}
+		synchronized(this) {
+			servedBytes+=length;
+		}
+	}
+
+	/**
+	 * Figures for monitoring, disk bytes read per byte served as a percentage.
+	 */
+	public synchronized Document metrics() {
+		Document doc = new Document();
+		doc.append("servedBytes", servedBytes);
+		doc.append("diskBytes", diskBytes);
+		doc.append("diskPercent", servedBytes==0 ? 0 : 100*diskBytes/servedBytes);
+		doc.append("hits", hits);
+		doc.append("misses", misses);
+		doc.append("cachedBytes", (long) pages.size()*PAGE_LENGTH);
+		return doc;
+	}
+
+	// copy part of a cached page, false if it is not cached
+	private boolean copy(String key, int from, int to, ByteBuffer dst) {
+		ByteBuffer page = pages.get(key);
+		if(page==null || page.limit()<to) return false;
+		copy(page, from, to, dst);
+		return true;
+	}
+
+	private static void copy(ByteBuffer page, int from, int to, ByteBuffer dst) {
+		ByteBuffer src = page.duplicate();
+		src.limit(to);
+		src.position(from);
+		dst.put(src);
+	}
+
+	private synchronized boolean cached(String key) {
+		return pages.containsKey(key);
+	}
+
+	// a page buffer to fill, a new one while within the budget, else the least recently used one,
+	// null if every page is being filled
+	private synchronized ByteBuffer take() {
+		if(!free.isEmpty()) return free.poll();
+		if(pages.isEmpty() && allocated>=maxPages) return null;
+		if(allocated<maxPages) {
+			allocated++;
+			return ByteBuffer.allocateDirect(PAGE_LENGTH);
+		}
+		Iterator<Map.Entry<String,ByteBuffer>> eldest = pages.entrySet().iterator();
+		ByteBuffer buffer = eldest.next().getValue();
+		eldest.remove();
+		return buffer;
+	}
+
+	private synchronized void give(ByteBuffer buffer) {
+		free.add(buffer);
+	}
+
+	private void lastPage(String md5, long page) {
+		if(lastPage.size()>=MAX_TRACKED_FILES && !lastPage.containsKey(md5)) lastPage.clear();
+		lastPage.put(md5, page);
+	}
+
+	private static String key(String md5, long page) {
+		return md5+":"+page;
+	}
+}
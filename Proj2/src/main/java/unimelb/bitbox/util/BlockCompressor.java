@@ -0,0 +1,213 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of the file blocks sent to peers, only where it pays.
+ * <br/>
+ * A block is compressed when deflating a sample from its start saves enough, and then
+ * only sent compressed if the whole block saved enough too. Content that is already
+ * compressed, such as archives, images or video, fails the sample, after which the
+ * next blocks of the same file are sent as they are without trying, and the file is
+ * sampled again only every so many blocks. The bytes and time spent are counted for
+ * each peer, to see what compression achieves and what it costs.
+ */
+public class BlockCompressor {
+
+	/**
+	 * The value of the encoding field of a compressed FILE_BYTES_RESPONSE.
+	 */
+	public static final String ENCODING = "deflate";
+
+	// bytes deflated to judge a block before deflating all of it
+	private static final int SAMPLE_LENGTH = 4*1024;
+	// least saving worth the receiver's time inflating, in percent of the raw length
+	private static final int MIN_SAVING_PERCENT = 10;
+	// blocks of an incompressible file sent as they are before sampling it again
+	private static final int SKIP_BLOCKS = 16;
+	// files whose skipped blocks are counted
+	private static final int MAX_TRACKED_FILES = 1024;
+
+	/**
+	 * What compression did for the blocks sent to one peer.
+	 */
+	private static class Metrics {
+		long rawBytes = 0;
+		long wireBytes = 0;
+		long compressedBlocks = 0;
+		long skippedBlocks = 0;
+		long nanos = 0;
+	}
+
+	private final int level;
+	// blocks still to skip of each file found incompressible, by MD5
+	private HashMap<String,Integer> skipping = new HashMap<String,Integer>();
+	private HashMap<String,Metrics> peers = new HashMap<String,Metrics>();
+	private ThreadLocal<Deflater> deflaters;
+
+	/**
+	 * @param level The Deflate level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}.
+	 */
+	public BlockCompressor(int level) {
+		this.level=Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+		deflaters = ThreadLocal.withInitial(() -> new Deflater(this.level, true));
+	}
+
+	/**
+	 * Whether to try compressing a block of a file, false while the file is being skipped
+	 * as incompressible, in which case the block is counted as sent as it is.
+	 * @param peer The peer the block is for.
+	 * @param md5 The MD5 hash of the file's content.
+	 * @param length The length of the block.
+	 */
+	public synchronized boolean shouldCompress(String peer, String md5, long length) {
+		Integer skip = skipping.get(md5);
+		if(skip==null) return true;
+		if(skip<=1) {
+			skipping.remove(md5);
+		} else {
+			skipping.put(md5, skip-1);
+		}
+		Metrics metrics = metrics(peer);
+		metrics.rawBytes+=length;
+		metrics.wireBytes+=length;
+		metrics.skippedBlocks++;
+		return false;
+	}
+
+	/**
+	 * Compress a block if that saves enough.
+	 * @param peer The peer the block is for.
+	 * @param md5 The MD5 hash of the file's content.
+	 * @param block The block, left unchanged.
+	 * @return The compressed block, or null to send the block as it is.
+	 */
+	public byte[] compress(String peer, String md5, ByteBuffer block) {
+		long start = System.nanoTime();
+		int length = block.remaining();
+		byte[] raw = toArray(block);
+		byte[] compressed = null;
+		if(length>SAMPLE_LENGTH && !saves(deflate(raw, SAMPLE_LENGTH), SAMPLE_LENGTH)) {
+			// not worth deflating the rest
+		} else {
+			byte[] whole = deflate(raw, length);
+			if(saves(whole, length)) compressed = whole;
+		}
+		long nanos = System.nanoTime()-start;
+		synchronized(this) {
+			if(compressed==null) {
+				if(skipping.size()>=MAX_TRACKED_FILES) skipping.clear();
+				skipping.put(md5, SKIP_BLOCKS);
+			}
+			Metrics metrics = metrics(peer);
+			metrics.rawBytes+=length;
+			metrics.wireBytes+=compressed==null ? length : compressed.length;
+			metrics.nanos+=nanos;
+			if(compressed==null) {
+				metrics.skippedBlocks++;
+			} else {
+				metrics.compressedBlocks++;
+			}
+		}
+		return compressed;
+	}
+
+	/**
+	 * Inflate a compressed block.
+	 * @param compressed The compressed block.
+	 * @param length The length of the block before it was compressed.
+	 * @throws IOException If the block is corrupt or does not inflate to the length given.
+	 */
+	public static ByteBuffer inflate(ByteBuffer compressed, int length) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			byte[] input = toArray(compressed);
+			// the extra byte is needed by the inflater when the stream has no header
+			byte[] padded = new byte[input.length+1];
+			System.arraycopy(input, 0, padded, 0, input.length);
+			inflater.setInput(padded);
+			byte[] output = new byte[length];
+			int n = 0;
+			while(n<length && !inflater.finished()) {
+				int inflated = inflater.inflate(output, n, length-n);
+				if(inflated==0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				n+=inflated;
+			}
+			if(n!=length || !inflater.finished()) {
+				throw new IOException("compressed block does not inflate to "+length+" bytes");
+			}
+			return ByteBuffer.wrap(output);
+		} catch (DataFormatException e) {
+			throw new IOException("corrupt compressed block: "+e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Figures for monitoring, for each peer the bytes sent as a percentage of the raw
+	 * bytes, and the time spent compressing in milliseconds and in nanoseconds per KiB.
+	 */
+	public synchronized Document metrics() {
+		Document doc = new Document();
+		for(String peer : peers.keySet()) {
+			Metrics metrics = peers.get(peer);
+			Document peerDoc = new Document();
+			peerDoc.append("rawBytes", metrics.rawBytes);
+			peerDoc.append("wireBytes", metrics.wireBytes);
+			peerDoc.append("wirePercent", metrics.rawBytes==0 ? 100 : 100*metrics.wireBytes/metrics.rawBytes);
+			peerDoc.append("compressedBlocks", metrics.compressedBlocks);
+			peerDoc.append("skippedBlocks", metrics.skippedBlocks);
+			peerDoc.append("cpuMillis", metrics.nanos/1000000);
+			peerDoc.append("nanosPerKB", metrics.rawBytes==0 ? 0 : metrics.nanos*1024/metrics.rawBytes);
+			doc.append(peer, peerDoc);
+		}
+		return doc;
+	}
+
+	// deflate the first length bytes into a new array
+	private byte[] deflate(byte[] raw, int length) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(raw, 0, length);
+		deflater.finish();
+		// at most the raw length is of any use
+		byte[] output = new byte[length];
+		int n = 0;
+		while(!deflater.finished() && n<output.length) {
+			n+=deflater.deflate(output, n, output.length-n);
+		}
+		if(!deflater.finished()) return null;
+		byte[] compressed = new byte[n];
+		System.arraycopy(output, 0, compressed, 0, n);
+		return compressed;
+	}
+
+	private static boolean saves(byte[] compressed, int length) {
+		return compressed!=null && compressed.length<=(long) length*(100-MIN_SAVING_PERCENT)/100;
+	}
+
+	private Metrics metrics(String peer) {
+		Metrics metrics = peers.get(peer);
+		if(metrics==null) {
+			metrics = new Metrics();
+			peers.put(peer, metrics);
+		}
+		return metrics;
+	}
+
+	private static byte[] toArray(ByteBuffer bytes) {
+		if(bytes.hasArray() && bytes.arrayOffset()==0 && bytes.position()==0
+				&& bytes.remaining()==bytes.array().length) {
+			return bytes.array();
+		}
+		byte[] array = new byte[bytes.remaining()];
+		bytes.duplicate().get(array);
+		return array;
+	}
+}
@@ -0,0 +1,263 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * rsync style block matching, used to modify a file by sending only the parts that changed.
+ * <br/>
+ * The receiver, which holds an old version of the file, computes a {@link Signature}: a weak
+ * rolling checksum and a strong MD5 checksum for each of its blocks. The sender slides a window
+ * over the new version of the file looking for blocks with the same checksums, and produces a
+ * {@link Delta}: which old blocks can be reused at which positions, and which ranges of the new
+ * file have to be transferred literally.
+ */
+public class BlockDelta {
+
+	private static final int MIN_BLOCK_LENGTH = 2048;
+	private static final int MAX_BLOCK_LENGTH = 128*1024;
+
+	/**
+	 * Checksums of the blocks of the receiver's copy of a file. Only whole blocks
+	 * are included, a shorter block at the end of the file is never reused.
+	 */
+	public static class Signature {
+		public int blockLength;
+		public long[] weak;
+		public String[] strong;
+
+		public Signature(int blockLength, long[] weak, String[] strong) {
+			this.blockLength=blockLength;
+			this.weak=weak;
+			this.strong=strong;
+		}
+	}
+
+	/**
+	 * How to build the sender's version of a file from the receiver's blocks.
+	 * <li>{@link #copies}</li>
+	 * <li>{@link #literals}</li>
+	 */
+	public static class Delta {
+		public int blockLength;
+		/**
+		 * Pairs of (block index in the receiver's file, position in the new file).
+		 */
+		public ArrayList<long[]> copies = new ArrayList<long[]>();
+		/**
+		 * Pairs of (position, length) of the ranges of the new file that did not match
+		 * any block, and so have to be transferred.
+		 */
+		public ArrayList<long[]> literals = new ArrayList<long[]>();
+
+		public Delta(int blockLength) {
+			this.blockLength=blockLength;
+		}
+
+		/**
+		 * @return The number of bytes that have to be transferred.
+		 */
+		public long literalBytes() {
+			long total = 0;
+			for(long[] literal : literals) total += literal[1];
+			return total;
+		}
+
+		private void addLiteral(long position, long length) {
+			if(length<=0) return;
+			if(!literals.isEmpty()) {
+				long[] last = literals.get(literals.size()-1);
+				if(last[0]+last[1]==position) {
+					last[1]+=length;
+					return;
+				}
+			}
+			literals.add(new long[] {position, length});
+		}
+	}
+
+	/**
+	 * Block length to use for a file of the given size, roughly the square root of
+	 * the size as in rsync, so that the signature stays small for big files.
+	 */
+	public static int blockLength(long fileSize) {
+		long length = ((long) Math.sqrt(fileSize)) & ~7L;
+		return (int) Math.max(MIN_BLOCK_LENGTH, Math.min(MAX_BLOCK_LENGTH, length));
+	}
+
+	/**
+	 * Whether a block length given by a peer can be used, that is positive and no
+	 * longer than any block length {@link #blockLength(long)} chooses.
+	 */
+	public static boolean isValidBlockLength(long blockLength) {
+		return blockLength>0 && blockLength<=MAX_BLOCK_LENGTH;
+	}
+
+	/**
+	 * Compute the signature of the first <code>size</code> bytes of a file.
+	 * @throws IOException If the file could not be read.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 */
+	public static Signature signature(FileChannel channel, long size, int blockLength) throws IOException, NoSuchAlgorithmException {
+		int blocks = (int) (size/blockLength);
+		long[] weak = new long[blocks];
+		String[] strong = new String[blocks];
+		byte[] block = new byte[blockLength];
+		ByteBuffer buffer = ByteBuffer.wrap(block);
+		MessageDigest digest = ChecksumEngine.getDigest();
+		for(int i=0;i<blocks;i++) {
+			buffer.clear();
+			long position = (long) i*blockLength;
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer, position+buffer.position())<0) throw new IOException("file shorter than expected");
+			}
+			weak[i] = weakChecksum(block, 0, blockLength);
+			digest.reset();
+			digest.update(block, 0, blockLength);
+			strong[i] = ChecksumEngine.toHex(digest.digest());
+		}
+		return new Signature(blockLength, weak, strong);
+	}
+
+	/**
+	 * Compute the delta that turns the receiver's file, described by its signature,
+	 * into the first <code>size</code> bytes of the given file.
+	 * @throws IOException If the file could not be read.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 * @throws IllegalArgumentException If the signature's block length is not valid.
+	 */
+	public static Delta delta(FileChannel channel, long size, Signature signature) throws IOException, NoSuchAlgorithmException {
+		int blockLength = signature.blockLength;
+		if(!isValidBlockLength(blockLength) || signature.weak.length!=signature.strong.length) {
+			throw new IllegalArgumentException("invalid signature, block length "+blockLength);
+		}
+		Delta delta = new Delta(blockLength);
+		HashMap<Long,ArrayList<Integer>> blocksByWeak = new HashMap<Long,ArrayList<Integer>>();
+		for(int i=0;i<signature.weak.length;i++) {
+			if(!blocksByWeak.containsKey(signature.weak[i])) {
+				blocksByWeak.put(signature.weak[i], new ArrayList<Integer>());
+			}
+			blocksByWeak.get(signature.weak[i]).add(i);
+		}
+		if(blocksByWeak.isEmpty() || size<blockLength) {
+			delta.addLiteral(0, size);
+			return delta;
+		}
+
+		Window window = new Window(channel, size, Math.max(4*blockLength, 1024*1024));
+		MessageDigest digest = ChecksumEngine.getDigest();
+		long position = 0;
+		long literalStart = 0;
+		window.ensure(position, blockLength);
+		int a = 0, b = 0;
+		boolean fresh = true;
+		while(position+blockLength<=size) {
+			window.ensure(position, blockLength+1);
+			if(fresh) {
+				long weak = weakChecksum(window.bytes, window.offset(position), blockLength);
+				a = (int) (weak & 0xffff);
+				b = (int) (weak >>> 16);
+				fresh = false;
+			}
+			long weak = ((long) b << 16) | a;
+			ArrayList<Integer> candidates = blocksByWeak.get(weak);
+			if(candidates!=null) {
+				digest.reset();
+				digest.update(window.bytes, window.offset(position), blockLength);
+				String strong = ChecksumEngine.toHex(digest.digest());
+				int match = -1;
+				for(int candidate : candidates) {
+					if(signature.strong[candidate].equals(strong)) {
+						match = candidate;
+						break;
+					}
+				}
+				if(match>=0) {
+					delta.addLiteral(literalStart, position-literalStart);
+					delta.copies.add(new long[] {match, position});
+					position += blockLength;
+					literalStart = position;
+					fresh = true;
+					continue;
+				}
+			}
+			if(position+blockLength<size) {
+				// roll the window on by one byte
+				int out = window.bytes[window.offset(position)] & 0xff;
+				int in = window.bytes[window.offset(position+blockLength)] & 0xff;
+				a = (a - out + in) & 0xffff;
+				b = (b - blockLength*out + a) & 0xffff;
+			}
+			position++;
+		}
+		delta.addLiteral(literalStart, size-literalStart);
+		return delta;
+	}
+
+	/**
+	 * The rsync weak checksum of a block, with the two 16 bit sums packed
+	 * as (b << 16) | a.
+	 */
+	public static long weakChecksum(byte[] bytes, int offset, int length) {
+		int a = 0, b = 0;
+		for(int i=0;i<length;i++) {
+			int value = bytes[offset+i] & 0xff;
+			a += value;
+			b += (length-i)*value;
+		}
+		return ((long) (b & 0xffff) << 16) | (a & 0xffff);
+	}
+
+	/**
+	 * A sliding window over a file, refilled as the scan moves forward.
+	 */
+	private static class Window {
+		private FileChannel channel;
+		private long size;
+		public byte[] bytes;
+		private long start;
+		private int length;
+
+		public Window(FileChannel channel, long size, int capacity) {
+			this.channel=channel;
+			this.size=size;
+			this.bytes=new byte[capacity];
+		}
+
+		/**
+		 * Make sure that up to <code>count</code> bytes from the given position
+		 * (but not beyond the end of the file) are in the window.
+		 */
+		public void ensure(long position, int count) throws IOException {
+			long end = Math.min(size, position+count);
+			if(position>=start && end<=start+length) return;
+			// drop everything before the position and fill up the rest
+			int keep = 0;
+			if(position>=start && position<start+length) {
+				keep = (int) (start+length-position);
+				System.arraycopy(bytes, (int) (position-start), bytes, 0, keep);
+			}
+			start = position;
+			length = keep;
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, keep, bytes.length-keep);
+			while(buffer.hasRemaining() && start+buffer.position()<size) {
+				if(channel.read(buffer, start+buffer.position())<0) break;
+			}
+			length = buffer.position();
+			if(start+length<end) throw new IOException("file shorter than expected");
+		}
+
+		public int offset(long position) {
+			return (int) (position-start);
+		}
+	}
+
+	// static methods only
+	private BlockDelta() {
+	}
+}
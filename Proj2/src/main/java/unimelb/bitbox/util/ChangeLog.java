@@ -0,0 +1,218 @@
+package unimelb.bitbox.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.FileSystemManager.EVENT;
+
+/**
+ * Numbered record of the most recent file system events, so that a peer that was
+ * disconnected can be sent just the events it missed rather than a full sync.
+ * <br/>
+ * Every event is given the next sequence number. Only the last <code>capacity</code>
+ * events are kept, a peer that is further behind has to sync in full. The log has a
+ * random id, created with the log, which peers quote along with the last sequence
+ * they received: if the log is lost or replaced its sequence numbers mean nothing
+ * to them any more, and the id no longer matches.
+ * <br/>
+ * The log file is a header followed by the events, each appended as it happens.
+ * A record cut short by a crash is ignored on loading. Once the file holds twice
+ * the capacity it is rewritten with just the events kept.
+ */
+public class ChangeLog {
+	private static Logger log = Logger.getLogger(ChangeLog.class.getName());
+
+	private static final int MAGIC = 0x4242434c; // "BBCL"
+	private static final int VERSION = 1;
+
+	/**
+	 * One logged event, with its path name relative to the share directory.
+	 * The file fields are only set for file events.
+	 */
+	public static class Entry {
+		public long sequence;
+		public EVENT event;
+		public String pathName;
+		public String md5;
+		public long lastModified;
+		public long fileSize;
+
+		public Entry(long sequence, EVENT event, String pathName, String md5, long lastModified, long fileSize) {
+			this.sequence=sequence;
+			this.event=event;
+			this.pathName=pathName;
+			this.md5=md5;
+			this.lastModified=lastModified;
+			this.fileSize=fileSize;
+		}
+	}
+
+	private File file;
+	private File tempFile;
+	private int capacity;
+	private String logId;
+	private long lastSequence;
+	private ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private DataOutputStream out;
+	// records in the file, kept or not
+	private int recordsInFile;
+
+	/**
+	 * Open the log, loading the events kept in the file, or starting a new log if
+	 * there is no usable file.
+	 * @param file The log file. A sibling temporary file is used while rewriting it.
+	 * @param capacity The number of events to keep.
+	 */
+	public ChangeLog(File file, int capacity) {
+		this.file=file;
+		this.tempFile=new File(file.getParentFile(), ".tmp"+file.getName());
+		this.capacity=Math.max(1, capacity);
+		if(!load()) {
+			logId=UUID.randomUUID().toString();
+			lastSequence=0;
+			entries.clear();
+		}
+		try {
+			rewrite();
+		} catch (IOException e) {
+			log.warning("could not write change log "+file+": "+e.getMessage());
+		}
+	}
+
+	public String getLogId() {
+		return logId;
+	}
+
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Log an event.
+	 * @param event The type of event.
+	 * @param pathName The path name of the file or directory, relative to the share directory.
+	 * @param fileDescriptor The file descriptor of a file event, null for a directory event.
+	 * @return The sequence number given to the event.
+	 */
+	public synchronized long append(EVENT event, String pathName, FileSystemManager.FileDescriptor fileDescriptor) {
+		long sequence = lastSequence+1;
+		Entry entry = fileDescriptor==null ?
+				new Entry(sequence, event, pathName, "", 0, 0) :
+				new Entry(sequence, event, pathName, fileDescriptor.md5, fileDescriptor.lastModified, fileDescriptor.fileSize);
+		lastSequence=sequence;
+		entries.add(entry);
+		if(entries.size()>capacity) entries.poll();
+		try {
+			if(out==null || recordsInFile>=2*capacity) {
+				rewrite();
+			} else {
+				write(out, entry);
+				out.flush();
+				recordsInFile++;
+			}
+		} catch (IOException e) {
+			log.warning("could not write change log "+file+": "+e.getMessage());
+			closeOut();
+		}
+		return entry.sequence;
+	}
+
+	/**
+	 * The events logged after the given sequence number, oldest first.
+	 * @return The events, or null if some of them are no longer kept.
+	 */
+	public synchronized ArrayList<Entry> since(long sequence) {
+		if(sequence>lastSequence) return null;
+		long oldest = entries.isEmpty() ? lastSequence+1 : entries.peek().sequence;
+		if(sequence+1<oldest) return null;
+		ArrayList<Entry> missed = new ArrayList<Entry>();
+		for(Entry entry : entries) {
+			if(entry.sequence>sequence) missed.add(entry);
+		}
+		return missed;
+	}
+
+	private boolean load() {
+		if(!file.isFile()) return false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if(in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+				log.warning("ignoring unrecognised change log "+file);
+				return false;
+			}
+			logId=in.readUTF();
+			lastSequence=in.readLong();
+			try {
+				while(true) {
+					Entry entry = new Entry(in.readLong(), EVENT.values()[in.readByte()], in.readUTF(),
+							in.readUTF(), in.readLong(), in.readLong());
+					lastSequence=entry.sequence;
+					entries.add(entry);
+					if(entries.size()>capacity) entries.poll();
+				}
+			} catch (EOFException e) {
+				// the end of the log, or a record cut short
+			}
+		} catch (IOException | ArrayIndexOutOfBoundsException e) {
+			log.warning("ignoring damaged change log "+file);
+			return false;
+		}
+		log.info("change log "+logId+" at sequence "+lastSequence+", "+entries.size()+" events kept");
+		return true;
+	}
+
+	// replace the file with the events kept, and append to it from now on
+	private void rewrite() throws IOException {
+		closeOut();
+		try (DataOutputStream tmp = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			tmp.writeInt(MAGIC);
+			tmp.writeInt(VERSION);
+			tmp.writeUTF(logId);
+			// the sequence before the first event kept, or the last one if none are
+			tmp.writeLong(entries.isEmpty() ? lastSequence : entries.peek().sequence-1);
+			for(Entry entry : entries) {
+				write(tmp, entry);
+			}
+		}
+		try {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		recordsInFile = entries.size();
+	}
+
+	private static void write(DataOutputStream out, Entry entry) throws IOException {
+		out.writeLong(entry.sequence);
+		out.writeByte(entry.event.ordinal());
+		out.writeUTF(entry.pathName);
+		out.writeUTF(entry.md5);
+		out.writeLong(entry.lastModified);
+		out.writeLong(entry.fileSize);
+	}
+
+	private void closeOut() {
+		if(out==null) return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			log.warning("could not close change log "+file+": "+e.getMessage());
+		}
+		out=null;
+	}
+}
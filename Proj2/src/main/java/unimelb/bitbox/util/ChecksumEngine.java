@@ -0,0 +1,158 @@
+package unimelb.bitbox.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MD5 checksums of file contents, as used in {@link FileSystemManager.FileDescriptor#md5}.
+ * <br/>
+ * Each thread reuses its own {@link MessageDigest}, and the direct read buffers come from
+ * a small pool shared by all threads, so hashing does not allocate per file, and the
+ * direct memory used stays bounded however many threads hash, even with a virtual
+ * thread per task. Large files are hashed through {@link MappedByteBuffer}
+ * windows rather than being copied through a read buffer. Checksums are lower case hex
+ * strings, identical to the ones produced by earlier versions of BitBox.
+ */
+public class ChecksumEngine {
+
+	/**
+	 * Size of the direct buffers used for reading files.
+	 */
+	private static final int BUFFER_SIZE = 256*1024;
+
+	/**
+	 * Most direct buffers made, a thread finding them all in use waits for one.
+	 */
+	private static final int MAX_BUFFERS = Math.max(4, 2*Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Files at least this big are hashed through memory mapped windows.
+	 */
+	private static final long MAP_THRESHOLD = 16L*1024*1024;
+
+	/**
+	 * Size of each memory mapped window.
+	 */
+	private static final long MAP_WINDOW = 64L*1024*1024;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>();
+	// read buffers not in use, and how many have been made
+	private static final LinkedBlockingQueue<ByteBuffer> buffers = new LinkedBlockingQueue<ByteBuffer>();
+	private static final AtomicInteger buffersMade = new AtomicInteger();
+
+	/**
+	 * MD5 checksum of the content of a file.
+	 * @throws IOException If the file could not be read.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 */
+	public static String md5(File file) throws IOException, NoSuchAlgorithmException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size<MAP_THRESHOLD) {
+				return md5(channel);
+			}
+			MessageDigest digest = getDigest();
+			for(long position=0;position<size;position+=MAP_WINDOW) {
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(MAP_WINDOW, size-position));
+				digest.update(window);
+			}
+			return toHex(digest.digest());
+		}
+	}
+
+	/**
+	 * MD5 checksum of the whole content of an open file. Positional reads are
+	 * used, so the position of the channel is left untouched.
+	 * @throws IOException If the file could not be read.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 */
+	public static String md5(FileChannel channel) throws IOException, NoSuchAlgorithmException {
+		MessageDigest digest = getDigest();
+		ByteBuffer buffer = takeBuffer();
+		try {
+			long position = 0;
+			int read;
+			while((read = channel.read(buffer, position)) != -1) {
+				position += read;
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			buffers.offer(buffer);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * MD5 checksum of the remaining bytes of a buffer. The buffer's position
+	 * is left untouched.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 */
+	public static String md5(ByteBuffer bytes) throws NoSuchAlgorithmException {
+		MessageDigest digest = getDigest();
+		digest.update(bytes.duplicate());
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * The calling thread's MD5 digest, reset and ready for use.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 */
+	public static MessageDigest getDigest() throws NoSuchAlgorithmException {
+		MessageDigest digest = digests.get();
+		if(digest==null) {
+			digest = MessageDigest.getInstance("MD5");
+			digests.set(digest);
+		}
+		digest.reset();
+		return digest;
+	}
+
+	/**
+	 * Lower case hex encoding of the given bytes.
+	 */
+	public static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length*2];
+		for(int i=0;i<bytes.length;i++) {
+			hex[2*i] = HEX[(bytes[i]>>4) & 0xf];
+			hex[2*i+1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	// a read buffer from the pool, made if there are fewer than the most, to be given back
+	private static ByteBuffer takeBuffer() throws InterruptedIOException {
+		ByteBuffer buffer = buffers.poll();
+		if(buffer==null) {
+			if(buffersMade.getAndUpdate(made -> made<MAX_BUFFERS ? made+1 : made)<MAX_BUFFERS) {
+				buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			} else {
+				try {
+					buffer = buffers.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted waiting for a read buffer");
+				}
+			}
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	// static methods only
+	private ChecksumEngine() {
+	}
+}
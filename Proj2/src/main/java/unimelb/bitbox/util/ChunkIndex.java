@@ -0,0 +1,181 @@
+package unimelb.bitbox.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Content defined chunking, used to build a new file from chunks of any file in the
+ * share that has them, not just from an old version of the same file as
+ * {@link BlockDelta} does.
+ * <br/>
+ * Files are cut into chunks with FastCDC: a gear hash is rolled over the content and
+ * a chunk ends where the hash has enough zero bits, with more bits required before the
+ * average chunk length than after it so that chunk lengths cluster around the average.
+ * Since the cut points depend only on the bytes around them, an insertion or deletion
+ * changes the chunks next to it and no others. Each chunk is identified by its MD5.
+ * <br/>
+ * The index maps the MD5 of every chunk of the files added to it to where the chunk
+ * can be found. It is not thread safe.
+ */
+public class ChunkIndex {
+
+	public static final int MIN_CHUNK_LENGTH = 2*1024;
+	public static final int AVERAGE_CHUNK_LENGTH = 8*1024;
+	public static final int MAX_CHUNK_LENGTH = 64*1024;
+
+	// 15 and 11 bits spread over the hash, two more and two fewer than the 13 of the average length
+	private static final long MASK_SMALL = 0x0000d9f003530000L;
+	private static final long MASK_LARGE = 0x0000d90003530000L;
+
+	// random values for each byte, the same on every peer so that peers cut files alike
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x4242434443L);
+		for(int i=0;i<GEAR.length;i++) GEAR[i]=random.nextLong();
+	}
+
+	private static final int READ_LENGTH = 1024*1024;
+
+	/**
+	 * A chunk of a file.
+	 */
+	public static class Chunk {
+		public long offset;
+		public int length;
+		public String md5;
+
+		public Chunk(long offset, int length, String md5) {
+			this.offset=offset;
+			this.length=length;
+			this.md5=md5;
+		}
+	}
+
+	/**
+	 * Where a chunk can be found, path name relative to the share directory.
+	 */
+	public static class Location {
+		public String pathName;
+		public long offset;
+		public int length;
+
+		public Location(String pathName, long offset, int length) {
+			this.pathName=pathName;
+			this.offset=offset;
+			this.length=length;
+		}
+	}
+
+	// locations of each chunk, by MD5
+	private HashMap<String,ArrayList<Location>> locations = new HashMap<String,ArrayList<Location>>();
+	// chunks of each file added
+	private HashMap<String,ArrayList<Chunk>> files = new HashMap<String,ArrayList<Chunk>>();
+
+	/**
+	 * Cut the first <code>size</code> bytes of a file into chunks.
+	 * @throws IOException If the file could not be read.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 */
+	public static ArrayList<Chunk> chunk(FileChannel channel, long size) throws IOException, NoSuchAlgorithmException {
+		ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		MessageDigest digest = ChecksumEngine.getDigest();
+		// the buffer always holds a whole chunk past the current one's start, unless at the end of the file
+		ByteBuffer buffer = ByteBuffer.allocate(READ_LENGTH+MAX_CHUNK_LENGTH);
+		byte[] bytes = buffer.array();
+		long position = 0;
+		long read = 0;
+		buffer.limit(0);
+		while(position<size) {
+			if(buffer.remaining()<MAX_CHUNK_LENGTH && read<size) {
+				buffer.compact();
+				while(buffer.hasRemaining() && read<size) {
+					int n = channel.read(buffer, read);
+					if(n<0) throw new IOException("file shorter than expected");
+					read+=n;
+				}
+				buffer.flip();
+			}
+			int start = buffer.position();
+			int length = cut(bytes, start, (int) Math.min(buffer.remaining(), size-position));
+			digest.reset();
+			digest.update(bytes, start, length);
+			chunks.add(new Chunk(position, length, ChecksumEngine.toHex(digest.digest())));
+			buffer.position(start+length);
+			position+=length;
+		}
+		return chunks;
+	}
+
+	/**
+	 * The length of the chunk starting at <code>start</code>.
+	 */
+	private static int cut(byte[] bytes, int start, int available) {
+		if(available<=MIN_CHUNK_LENGTH) return available;
+		int end = Math.min(available, MAX_CHUNK_LENGTH);
+		int normal = Math.min(end, AVERAGE_CHUNK_LENGTH);
+		long hash = 0;
+		int i = MIN_CHUNK_LENGTH;
+		for(;i<normal;i++) {
+			hash = (hash<<1)+GEAR[bytes[start+i]&0xff];
+			if((hash&MASK_SMALL)==0) return i+1;
+		}
+		for(;i<end;i++) {
+			hash = (hash<<1)+GEAR[bytes[start+i]&0xff];
+			if((hash&MASK_LARGE)==0) return i+1;
+		}
+		return end;
+	}
+
+	/**
+	 * Add the chunks of a file, replacing any it had.
+	 */
+	public void putFile(String pathName, ArrayList<Chunk> chunks) {
+		removeFile(pathName);
+		files.put(pathName, chunks);
+		for(Chunk chunk : chunks) {
+			ArrayList<Location> list = locations.get(chunk.md5);
+			if(list==null) {
+				list = new ArrayList<Location>(1);
+				locations.put(chunk.md5, list);
+			}
+			list.add(new Location(pathName, chunk.offset, chunk.length));
+		}
+	}
+
+	public void removeFile(String pathName) {
+		ArrayList<Chunk> chunks = files.remove(pathName);
+		if(chunks==null) return;
+		for(Chunk chunk : chunks) {
+			ArrayList<Location> list = locations.get(chunk.md5);
+			if(list==null) continue;
+			Iterator<Location> it = list.iterator();
+			while(it.hasNext()) {
+				if(it.next().pathName.equals(pathName)) it.remove();
+			}
+			if(list.isEmpty()) locations.remove(chunk.md5);
+		}
+	}
+
+	/**
+	 * Where a chunk can be found.
+	 * @return The locations, possibly none.
+	 */
+	public ArrayList<Location> locate(String md5) {
+		ArrayList<Location> list = locations.get(md5);
+		return list==null ? new ArrayList<Location>() : new ArrayList<Location>(list);
+	}
+
+	/**
+	 * The number of distinct chunks indexed.
+	 */
+	public int size() {
+		return locations.size();
+	}
+}
@@ -51,6 +51,11 @@ public class Configuration {
         return properties.getProperty(key);
     }
 
+    // same as above, but falls back to the given value for optional settings
+    public static String getConfigurationValue(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
     // private constructor to prevent initialization
     private Configuration() {
     }
@@ -0,0 +1,191 @@
+package unimelb.bitbox.util;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hash tree over the directories of the share, so that two peers can find where
+ * their shares differ by comparing digests from the top down instead of listing
+ * every file.
+ * <br/>
+ * The digest of a directory is the MD5 of its entries in name order, each entry
+ * being its name and either the MD5 of the file or the digest of the directory.
+ * Two directories with the same digest hold the same files with the same contents,
+ * all the way down. Digests are computed when asked for and kept until something
+ * under the directory changes.
+ * <br/>
+ * Path names are relative to the share directory, the share directory itself
+ * being the empty path name. The tree is not thread safe, the
+ * {@link FileSystemManager} only uses it while holding its own lock.
+ */
+public class DigestTree {
+
+	/**
+	 * An entry of a directory, as compared with a peer.
+	 */
+	public static class Entry {
+		public String name;
+		public boolean directory;
+		public String digest;
+
+		public Entry(String name, boolean directory, String digest) {
+			this.name=name;
+			this.directory=directory;
+			this.digest=digest;
+		}
+
+		public Entry(Document doc) {
+			this(doc.getString("name"), doc.getBoolean("directory"), doc.getString("digest"));
+		}
+
+		public Document toDoc() {
+			Document doc = new Document();
+			doc.append("name", name);
+			doc.append("directory", directory);
+			doc.append("digest", digest);
+			return doc;
+		}
+	}
+
+	// the MD5 of each file, or null for a directory, by name, for each directory
+	private HashMap<String,TreeMap<String,String>> directories = new HashMap<String,TreeMap<String,String>>();
+	// digests computed since the directory last changed
+	private HashMap<String,String> digests = new HashMap<String,String>();
+
+	public DigestTree() {
+		directories.put("", new TreeMap<String,String>());
+	}
+
+	/**
+	 * Add a file, or record its new MD5.
+	 */
+	public void putFile(String pathName, String md5) {
+		putEntry(pathName, md5);
+	}
+
+	public void removeFile(String pathName) {
+		removeEntry(pathName);
+	}
+
+	/**
+	 * Add a directory, along with any of its parents not added yet.
+	 */
+	public void putDirectory(String pathName) {
+		if(directories.containsKey(pathName)) return;
+		directories.put(pathName, new TreeMap<String,String>());
+		putEntry(pathName, null);
+	}
+
+	/**
+	 * Remove a directory and everything still recorded under it.
+	 */
+	public void removeDirectory(String pathName) {
+		if(pathName.isEmpty() || directories.remove(pathName)==null) return;
+		String prefix = pathName+File.separator;
+		directories.keySet().removeIf(name -> name.startsWith(prefix));
+		digests.keySet().removeIf(name -> name.startsWith(prefix));
+		removeEntry(pathName);
+	}
+
+	public boolean isDirectory(String pathName) {
+		return directories.containsKey(pathName);
+	}
+
+	/**
+	 * The digest of a directory.
+	 * @return The digest, or null if there is no such directory.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 */
+	public String digest(String pathName) throws NoSuchAlgorithmException {
+		TreeMap<String,String> entries = directories.get(pathName);
+		if(entries==null) return null;
+		String digest = digests.get(pathName);
+		if(digest!=null) return digest;
+		// the directories below first, so that the digest being computed is not reset under it
+		ArrayList<String> childDigests = new ArrayList<String>();
+		for(Map.Entry<String,String> entry : entries.entrySet()) {
+			if(entry.getValue()==null) {
+				childDigests.add(digest(child(pathName, entry.getKey())));
+			}
+		}
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		int next = 0;
+		for(Map.Entry<String,String> entry : entries.entrySet()) {
+			boolean directory = entry.getValue()==null;
+			md.update((directory ? "d" : "f").getBytes(StandardCharsets.UTF_8));
+			md.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+			md.update((directory ? childDigests.get(next++) : entry.getValue()).getBytes(StandardCharsets.UTF_8));
+			md.update((byte) '\n');
+		}
+		digest = ChecksumEngine.toHex(md.digest());
+		digests.put(pathName, digest);
+		return digest;
+	}
+
+	/**
+	 * The entries of a directory with their digests, in name order.
+	 * @return The entries, or null if there is no such directory.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 */
+	public ArrayList<Entry> entries(String pathName) throws NoSuchAlgorithmException {
+		TreeMap<String,String> entries = directories.get(pathName);
+		if(entries==null) return null;
+		ArrayList<Entry> list = new ArrayList<Entry>();
+		for(Map.Entry<String,String> entry : entries.entrySet()) {
+			if(entry.getValue()==null) {
+				list.add(new Entry(entry.getKey(), true, digest(child(pathName, entry.getKey()))));
+			} else {
+				list.add(new Entry(entry.getKey(), false, entry.getValue()));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * The path name of an entry of a directory.
+	 */
+	public static String child(String pathName, String name) {
+		return pathName.isEmpty() ? name : pathName+File.separator+name;
+	}
+
+	private void putEntry(String pathName, String md5) {
+		String parent = parent(pathName);
+		putDirectory(parent);
+		directories.get(parent).put(name(pathName), md5);
+		changed(parent);
+	}
+
+	private void removeEntry(String pathName) {
+		String parent = parent(pathName);
+		TreeMap<String,String> entries = directories.get(parent);
+		if(entries!=null && entries.containsKey(name(pathName))) {
+			entries.remove(name(pathName));
+			changed(parent);
+		}
+	}
+
+	// forget the digests of a directory and the directories above it
+	private void changed(String pathName) {
+		while(true) {
+			digests.remove(pathName);
+			if(pathName.isEmpty()) return;
+			pathName = parent(pathName);
+		}
+	}
+
+	private static String parent(String pathName) {
+		int last = pathName.lastIndexOf(File.separatorChar);
+		return last<0 ? "" : pathName.substring(0, last);
+	}
+
+	private static String name(String pathName) {
+		return pathName.substring(pathName.lastIndexOf(File.separatorChar)+1);
+	}
+}
@@ -0,0 +1,298 @@
+package unimelb.bitbox.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import unimelb.bitbox.util.FileSystemManager.EVENT;
+import unimelb.bitbox.util.FileSystemManager.FileSystemEvent;
+
+/**
+ * Append-only file of the events queued for one peer, so that a queue can keep
+ * only its head in memory and still be replayed after a restart.
+ * <br/>
+ * Every event queued is appended as it is queued. Appends are buffered and written
+ * together, once enough have been buffered or a second after the last write, and
+ * before anything is read back, so a crash loses at most the last second of them.
+ * The queue reads events back in order as it needs them, and resets the journal
+ * once it has sent everything, or rewrites it without the events sent once they
+ * outnumber those waiting. Events sent since then are still in the file, so after
+ * a crash some of them are sent again, which peers treat as changes already made.
+ * <br/>
+ * The file is a header followed by length-prefixed records. A record cut short
+ * by a crash is dropped on opening.
+ */
+public class EventJournal {
+	private static Logger log = Logger.getLogger(EventJournal.class.getName());
+
+	private static final int MAGIC = 0x42424551; // "BBEQ"
+	private static final int VERSION = 1;
+	private static final int HEADER = 8;
+	// most bytes of appends buffered, and longest time they are buffered for
+	private static final int BUFFER_BYTES = 64*1024;
+	private static final long BUFFER_MILLIS = 1000;
+
+	/**
+	 * An event read back from the journal.
+	 */
+	public static class Record {
+		public FileSystemEvent event;
+		public boolean sync;
+
+		public Record(FileSystemEvent event, boolean sync) {
+			this.event=event;
+			this.sync=sync;
+		}
+	}
+
+	private FileSystemManager fileSystemManager;
+	private File file;
+	private RandomAccessFile raf;
+	// the length of the file, without the appends still buffered
+	private long length;
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private long lastWrite = System.currentTimeMillis();
+	// records in the journal, and where the next one to read starts
+	private int records;
+	private int recordsRead;
+	private long readOffset;
+	// the lengths of the records not read yet, so they can be skipped without reading
+	private ArrayDeque<Integer> unreadLengths = new ArrayDeque<Integer>();
+
+	/**
+	 * Open the journal, keeping the events already in the file, all of them unread.
+	 * @param file The journal file.
+	 * @param fileSystemManager Used to rebuild the events read back.
+	 * @throws IOException If the file cannot be opened.
+	 */
+	public EventJournal(File file, FileSystemManager fileSystemManager) throws IOException {
+		this.file=file;
+		this.fileSystemManager=fileSystemManager;
+		raf = new RandomAccessFile(file, "rw");
+		if(raf.length()<HEADER || raf.readInt()!=MAGIC || raf.readInt()!=VERSION) {
+			if(raf.length()>0) log.warning("ignoring unrecognised event journal "+file);
+			reset();
+			return;
+		}
+		// count the records, dropping any cut short
+		long offset = HEADER;
+		long fileLength = raf.length();
+		while(offset+4<=fileLength) {
+			raf.seek(offset);
+			int size = raf.readInt();
+			if(size<0 || offset+4+size>fileLength) break;
+			offset += 4+size;
+			records++;
+			unreadLengths.add(size);
+		}
+		raf.setLength(offset);
+		length = offset;
+		readOffset = HEADER;
+	}
+
+	/**
+	 * The number of records in the file, read or not.
+	 */
+	public int records() {
+		return records;
+	}
+
+	/**
+	 * The number of records not read yet.
+	 */
+	public int unread() {
+		return records-recordsRead;
+	}
+
+	/**
+	 * Append an event.
+	 * @param sync Whether the event came from a sync.
+	 */
+	public void append(FileSystemEvent event, boolean sync) throws IOException {
+		byte[] record = encode(event, sync);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(record.length);
+		out.write(record);
+		records++;
+		unreadLengths.add(record.length);
+		if(buffer.size()>=BUFFER_BYTES) {
+			flush();
+		} else {
+			flushDue();
+		}
+	}
+
+	/**
+	 * Write the appends buffered if they have waited long enough.
+	 */
+	public void flushDue() throws IOException {
+		if(System.currentTimeMillis()-lastWrite>=BUFFER_MILLIS) flush();
+	}
+
+	/**
+	 * Write the appends buffered to the file.
+	 */
+	public void flush() throws IOException {
+		lastWrite = System.currentTimeMillis();
+		if(buffer.size()==0) return;
+		raf.seek(length);
+		raf.write(buffer.toByteArray());
+		length += buffer.size();
+		buffer.reset();
+	}
+
+	/**
+	 * Pass over the next event without reading it, e.g. one just appended that the
+	 * queue keeps in memory.
+	 */
+	public void skip() {
+		Integer size = unreadLengths.poll();
+		if(size==null) return;
+		readOffset += 4+size;
+		recordsRead++;
+	}
+
+	/**
+	 * Read the next events, oldest first.
+	 * @param max The most events to read.
+	 */
+	public ArrayList<Record> read(int max) throws IOException {
+		flush();
+		ArrayList<Record> read = new ArrayList<Record>();
+		int count = 0;
+		long bytes = 0;
+		for(int size : unreadLengths) {
+			if(count>=max) break;
+			bytes += 4+size;
+			count++;
+		}
+		// all the records to read in one go
+		byte[] block = new byte[(int) bytes];
+		raf.seek(readOffset);
+		raf.readFully(block);
+		int offset = 0;
+		for(int i=0;i<count;i++) {
+			int size = unreadLengths.poll();
+			byte[] record = new byte[size];
+			System.arraycopy(block, offset+4, record, 0, size);
+			offset += 4+size;
+			read.add(decode(record));
+		}
+		readOffset += bytes;
+		recordsRead += count;
+		return read;
+	}
+
+	/**
+	 * Empty the journal.
+	 */
+	public void reset() throws IOException {
+		buffer.reset();
+		raf.setLength(0);
+		raf.seek(0);
+		raf.writeInt(MAGIC);
+		raf.writeInt(VERSION);
+		length = HEADER;
+		records = 0;
+		recordsRead = 0;
+		readOffset = HEADER;
+		unreadLengths.clear();
+	}
+
+	/**
+	 * Replace the events already read with the given ones, the events the queue
+	 * still holds in memory, which count as read.
+	 */
+	public void rewrite(ArrayList<Record> head) throws IOException {
+		flush();
+		File tempFile = new File(file.getParentFile(), ".tmp"+file.getName());
+		int unread = unread();
+		long headLength;
+		try (RandomAccessFile tmp = new RandomAccessFile(tempFile, "rw")) {
+			tmp.setLength(0);
+			tmp.writeInt(MAGIC);
+			tmp.writeInt(VERSION);
+			for(Record record : head) {
+				byte[] bytes = encode(record.event, record.sync);
+				tmp.writeInt(bytes.length);
+				tmp.write(bytes);
+			}
+			headLength = tmp.length();
+			byte[] buffer = new byte[64*1024];
+			raf.seek(readOffset);
+			int n;
+			while((n = raf.read(buffer))>0) {
+				tmp.write(buffer, 0, n);
+			}
+		}
+		raf.close();
+		if(!tempFile.renameTo(file)) {
+			file.delete();
+			if(!tempFile.renameTo(file)) throw new IOException("could not replace "+file);
+		}
+		raf = new RandomAccessFile(file, "rw");
+		length = raf.length();
+		records = head.size()+unread;
+		recordsRead = head.size();
+		readOffset = headLength;
+	}
+
+	public void close() {
+		try {
+			flush();
+		} catch (IOException e) {
+			log.warning("could not write event journal "+file+": "+e.getMessage());
+		}
+		try {
+			raf.close();
+		} catch (IOException e) {
+			log.warning("could not close event journal "+file+": "+e.getMessage());
+		}
+	}
+
+	private static byte[] encode(FileSystemEvent event, boolean sync) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeBoolean(sync);
+		out.writeLong(event.sequence);
+		out.writeByte(event.event.ordinal());
+		out.writeUTF(event.pathName);
+		if(event.fileDescriptor!=null) {
+			out.writeBoolean(true);
+			out.writeUTF(event.fileDescriptor.md5);
+			out.writeLong(event.fileDescriptor.lastModified);
+			out.writeLong(event.fileDescriptor.fileSize);
+		} else {
+			out.writeBoolean(false);
+		}
+		return bytes.toByteArray();
+	}
+
+	private Record decode(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		try {
+			boolean sync = in.readBoolean();
+			long sequence = in.readLong();
+			EVENT type = EVENT.values()[in.readByte()];
+			String pathName = in.readUTF();
+			FileSystemManager.FileDescriptor fileDescriptor = null;
+			if(in.readBoolean()) {
+				String md5 = in.readUTF();
+				fileDescriptor = fileSystemManager.new FileDescriptor(in.readLong(), md5, in.readLong());
+			}
+			FileSystemEvent event = fileSystemManager.pathEvent(type, pathName, fileDescriptor);
+			event.sequence = sequence;
+			return new Record(event, sync);
+		} catch (EOFException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("damaged record in event journal "+file);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package unimelb.bitbox.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Read only file channels kept open between requests, so that serving a file block
+ * by block does not open and close the file for every block.
+ * <br/>
+ * A channel is only handed out while the file still has the size and last modified
+ * time it was indexed with, and it is read with positional reads, which many threads
+ * can do at once without locking. The least recently used channels are closed once
+ * more than the maximum are open, and any channel not used for a while is closed too.
+ * A channel still being read when it is evicted is closed by its last user.
+ */
+public class FileHandleCache {
+	private static Logger log = Logger.getLogger(FileHandleCache.class.getName());
+
+	/**
+	 * A file channel on loan from the cache, to be released once read.
+	 */
+	public class Handle {
+		private final String pathName;
+		private final FileChannel channel;
+		private final long lastModified;
+		private final long size;
+		private int users = 0;
+		private long lastUsed;
+		private boolean evicted = false;
+
+		private Handle(String pathName, FileChannel channel, long lastModified, long size) {
+			this.pathName=pathName;
+			this.channel=channel;
+			this.lastModified=lastModified;
+			this.size=size;
+		}
+
+		public FileChannel channel() {
+			return channel;
+		}
+
+		/**
+		 * Give the channel back, it must not be used afterwards.
+		 */
+		public void release() {
+			synchronized(FileHandleCache.this) {
+				users--;
+				if(evicted && users==0) close(this);
+			}
+		}
+	}
+
+	private int maxOpen;
+	private long idleMillis;
+	// least recently used first
+	private LinkedHashMap<String,Handle> handles = new LinkedHashMap<String,Handle>(16, 0.75f, true);
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param maxOpen The most channels to keep open, lowered if the process may only open
+	 * a few files.
+	 * @param idleMillis How long a channel not used is kept open.
+	 */
+	public FileHandleCache(int maxOpen, long idleMillis) {
+		long limit = fileDescriptorLimit();
+		if(limit>0 && maxOpen>limit/4) {
+			log.info("keeping at most "+limit/4+" files open, a quarter of the file descriptor limit");
+			maxOpen = (int) (limit/4);
+		}
+		this.maxOpen=Math.max(1, maxOpen);
+		this.idleMillis=idleMillis;
+	}
+
+	/**
+	 * Borrow a channel on a file, opening it if need be.
+	 * @param pathName The full path name of the file.
+	 * @param lastModified The last modified time the file must still have.
+	 * @param size The size the file must still have.
+	 * @return The handle, which must be released, or null if the file has changed.
+	 * @throws IOException If the file could not be opened.
+	 */
+	public Handle acquire(String pathName, long lastModified, long size) throws IOException {
+		File file = new File(pathName);
+		if(file.lastModified()!=lastModified || file.length()!=size) return null;
+		synchronized(this) {
+			long now = System.currentTimeMillis();
+			closeIdle(now);
+			Handle handle = handles.get(pathName);
+			if(handle!=null && (handle.lastModified!=lastModified || handle.size!=size)) {
+				evict(handle);
+				handle = null;
+			}
+			if(handle==null) {
+				misses++;
+				handle = new Handle(pathName, FileChannel.open(file.toPath(), StandardOpenOption.READ),
+						lastModified, size);
+				handles.put(pathName, handle);
+				while(handles.size()>maxOpen) {
+					evict(handles.values().iterator().next());
+				}
+			} else {
+				hits++;
+			}
+			handle.users++;
+			handle.lastUsed = now;
+			return handle;
+		}
+	}
+
+	/**
+	 * Close the channel on a file, if any, e.g. because the file changed or is gone.
+	 */
+	public synchronized void invalidate(String pathName) {
+		Handle handle = handles.get(pathName);
+		if(handle!=null) evict(handle);
+	}
+
+	/**
+	 * Close the channels not used for longer than the idle time.
+	 */
+	public synchronized void closeIdle() {
+		closeIdle(System.currentTimeMillis());
+	}
+
+	/**
+	 * Figures for monitoring.
+	 */
+	public synchronized Document metrics() {
+		Document doc = new Document();
+		doc.append("open", handles.size());
+		doc.append("hits", hits);
+		doc.append("misses", misses);
+		doc.append("hitPercent", hits+misses==0 ? 0 : 100*hits/(hits+misses));
+		doc.append("evictions", evictions);
+		return doc;
+	}
+
+	private void closeIdle(long now) {
+		Iterator<Handle> it = handles.values().iterator();
+		while(it.hasNext()) {
+			Handle handle = it.next();
+			if(now-handle.lastUsed<idleMillis) return;
+			if(handle.users>0) continue;
+			it.remove();
+			close(handle);
+		}
+	}
+
+	private void evict(Handle handle) {
+		handles.remove(handle.pathName);
+		evictions++;
+		handle.evicted = true;
+		if(handle.users==0) close(handle);
+	}
+
+	private void close(Handle handle) {
+		try {
+			handle.channel.close();
+		} catch (IOException e) {
+			log.warning("could not close "+handle.pathName+": "+e.getMessage());
+		}
+	}
+
+	// the most files the process may have open, or 0 if not known
+	private static long fileDescriptorLimit() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+			return ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+		}
+		return 0;
+	}
+}
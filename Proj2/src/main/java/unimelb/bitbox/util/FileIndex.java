@@ -0,0 +1,158 @@
+package unimelb.bitbox.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * On-disk snapshot of the directories and files known to the {@link FileSystemManager},
+ * so that a restart only needs to rehash files that changed while the peer was down.
+ * <br/>
+ * The index is a small binary file protected by a CRC32 trailer. It is always written
+ * to a temporary file first and then moved over the previous index, so a crash while
+ * saving leaves either the old or the new index in place, never a partial one. A
+ * missing or damaged index is simply ignored and the share is hashed from scratch.
+ */
+public class FileIndex {
+	private static Logger log = Logger.getLogger(FileIndex.class.getName());
+
+	private static final int MAGIC = 0x42424958; // "BBIX"
+	private static final int VERSION = 1;
+
+	/**
+	 * One indexed file, with its path name relative to the share directory.
+	 */
+	public static class Entry {
+		public String pathName;
+		public long lastModified;
+		public long fileSize;
+		public String md5;
+
+		public Entry(String pathName, long lastModified, long fileSize, String md5) {
+			this.pathName=pathName;
+			this.lastModified=lastModified;
+			this.fileSize=fileSize;
+			this.md5=md5;
+		}
+	}
+
+	private File file;
+	private File tempFile;
+
+	/**
+	 * @param file The index file. A sibling temporary file is used while saving.
+	 */
+	public FileIndex(File file) {
+		this.file=file;
+		this.tempFile=new File(file.getParentFile(), ".tmp"+file.getName());
+	}
+
+	/**
+	 * Read the index.
+	 * @param directories Receives the relative path names of the indexed directories.
+	 * @param files Receives the indexed files.
+	 * @return True if the index existed and was intact, false otherwise, in which case
+	 * nothing is added to the supplied lists.
+	 */
+	public boolean load(ArrayList<String> directories, ArrayList<Entry> files) {
+		if(!file.isFile()) return false;
+		ArrayList<String> dirs = new ArrayList<String>();
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file)), crc))) {
+			if(in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+				log.warning("ignoring unrecognised index "+file);
+				return false;
+			}
+			int numDirs = in.readInt();
+			for(int i=0;i<numDirs;i++) {
+				dirs.add(in.readUTF());
+			}
+			int numFiles = in.readInt();
+			for(int i=0;i<numFiles;i++) {
+				String pathName = in.readUTF();
+				long lastModified = in.readLong();
+				long fileSize = in.readLong();
+				String md5 = in.readUTF();
+				entries.add(new Entry(pathName,lastModified,fileSize,md5));
+			}
+			long expected = crc.getValue();
+			// the trailer itself is not part of the checksum
+			byte[] trailer = new byte[8];
+			in.readFully(trailer);
+			long stored = 0;
+			for(int i=0;i<8;i++) stored = (stored<<8) | (trailer[i] & 0xff);
+			if(stored!=expected) {
+				log.warning("ignoring damaged index "+file);
+				return false;
+			}
+		} catch (EOFException e) {
+			log.warning("ignoring truncated index "+file);
+			return false;
+		} catch (IOException e) {
+			log.warning("could not read index "+file+": "+e.getMessage());
+			return false;
+		}
+		directories.addAll(dirs);
+		files.addAll(entries);
+		return true;
+	}
+
+	/**
+	 * Replace the index with the given contents.
+	 * @throws IOException If the index could not be written, the previous index is left in place.
+	 */
+	public void save(Collection<String> directories, Collection<Entry> files) throws IOException {
+		CRC32 crc = new CRC32();
+		FileOutputStream fos = new FileOutputStream(tempFile);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(directories.size());
+			for(String dir : directories) {
+				out.writeUTF(dir);
+			}
+			out.writeInt(files.size());
+			for(Entry entry : files) {
+				out.writeUTF(entry.pathName);
+				out.writeLong(entry.lastModified);
+				out.writeLong(entry.fileSize);
+				out.writeUTF(entry.md5);
+			}
+			out.flush();
+			long value = crc.getValue();
+			byte[] trailer = new byte[8];
+			for(int i=7;i>=0;i--) {
+				trailer[i] = (byte) value;
+				value >>>= 8;
+			}
+			fos.write(trailer);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		try {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -1,5 +1,9 @@
 package unimelb.bitbox.util;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -9,6 +13,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
@@ -16,12 +22,29 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -46,9 +69,36 @@ import java.util.logging.Logger;
  * <li>{@link #generateSyncEvents()}</li>
  * <li>{@link #isSafePathName(String)}</li>
  * <li>{@link #readFile(String, long, long)}</li>
+ * <li>{@link #openFile(String)}</li>
+ * <li>{@link #openFileMetrics()}</li>
+ * <li>{@link #blockCacheMetrics()}</li>
  * <li>{@link #makeDirectory(String)}</li>
  * <li>{@link #modifyFileLoader(String, String, long)}</li>
+ * <li>{@link #modifyFileLoader(String, String, long, long)}</li>
  * <li>{@link #writeFile(String, ByteBuffer, long)}</li>
+ * <li>{@link #allBytesWritten(String)}</li>
+ * <li>{@link #missingRanges(String)}</li>
+ * <li>{@link #blockSignature(String, int)}</li>
+ * <li>{@link #computeDelta(String, BlockDelta.Signature)}</li>
+ * <li>{@link #writeFileFromExisting(String, BlockDelta.Delta)}</li>
+ * <li>{@link #fileChunks(String)}</li>
+ * <li>{@link #writeFileFromChunks(String, ArrayList)}</li>
+ * <li>{@link #directoryDigest(String)}</li>
+ * <li>{@link #directoryEntries(String)}</li>
+ * <li>{@link #generateSyncEvents(String)}</li>
+ * <li>{@link #changeLogId()}</li>
+ * <li>{@link #changesSince(long)}</li>
+ * <li>{@link #pathEvent(EVENT, String, FileDescriptor)}</li>
+ * <br/>
+ * Changes are detected either by rescanning the whole share directory every second, or,
+ * when the configuration value <code>fileSystemMonitor</code> is <code>watch</code>, by a
+ * {@link java.nio.file.WatchService} registered on every directory of the share, in which
+ * case only the paths reported as changed are re-examined.
+ * <br/>
+ * The index is held in concurrent maps, which are read without locking. Changes to the
+ * entry of a path, and to its file loader, are made holding that path's lock from a
+ * {@link StripedLock}, so transfers of different files, and the monitor thread, do not
+ * wait on each other. Files are hashed and read without holding any lock.
  * @author Aaron Harwood
  * @author Andrew Linxi Wang (contributions to Windows compatibility)
  */
@@ -62,6 +112,56 @@ public class FileSystemManager extends Thread {
 	 */
 	public final String loadingSuffix = "(bitbox)";
 	
+	/**
+	 * How long to wait for further watch events after the first one arrives, so
+	 * that a burst of changes (e.g. a file being written) is handled in one pass.
+	 */
+	private static final long WATCH_SETTLE_MILLIS = 100;
+	
+	/**
+	 * Name of the file index, kept in the configured <code>stateDirectory</code> (the
+	 * share directory by default). It carries the loading suffix so that it is never synced.
+	 */
+	private final String indexName = ".bitbox.index"+loadingSuffix;
+	
+	/**
+	 * Name of the change log, kept alongside the file index.
+	 */
+	private final String changeLogName = ".bitbox.changes"+loadingSuffix;
+	
+	/**
+	 * Prefix of the names of the state files, the index, the change log, and those kept by
+	 * the peer, and of the temporary files they are saved through after a <code>.tmp</code>.
+	 * No peer may name a file with it in the state directory, as the loader file would be one.
+	 */
+	private static final String STATE_PREFIX = ".bitbox.";
+	
+	/**
+	 * Minimum time between saves of the file index while files are changing.
+	 */
+	private static final long INDEX_SAVE_MILLIS = 30000;
+	
+	/**
+	 * Number of locks the path names are shared out among, see {@link StripedLock}.
+	 */
+	private static final int LOCK_STRIPES = 256;
+	
+	/**
+	 * Most bytes a file loader reads back to bring its running digest up to date when
+	 * bytes missing before them arrive. Beyond this they are read when the file is
+	 * complete, rather than holding up the write that filled the gap.
+	 */
+	private static final long CATCH_UP_LENGTH = 4L*1024*1024;
+	
+	private static final int CATCH_UP_BUFFER = 256*1024;
+	
+	/**
+	 * Minimum time between saves of a file loader's state while bytes are being written.
+	 */
+	private static final long LOADER_SAVE_MILLIS = 1000;
+	
+	private static final int LOADER_MAGIC = 0x42424c44; // "BBLD"
+	
 	/**
 	 * Possible file system events.
 	 * <li>{@link #FILE_CREATE}</li>
@@ -129,6 +229,11 @@ public class FileSystemManager extends Thread {
 		 * Additional information for the file/directory.
 		 */
 		public FileDescriptor fileDescriptor;
+		/**
+		 * The sequence number of this event in the change log, 0 for events
+		 * that are not logged, such as those of a sync.
+		 */
+		public long sequence;
 		
 		/**
 		 * Constructor for file events.
@@ -160,6 +265,18 @@ public class FileSystemManager extends Thread {
 			this.event=event;
 		}
 		
+		/**
+		 * The same file event with another type, e.g. a create of the file
+		 * as it is at this event.
+		 * @param event The type of the new event.
+		 * @return A new event for the same file and file descriptor.
+		 */
+		public FileSystemEvent withEvent(EVENT event) {
+			FileSystemEvent copy = new FileSystemEvent(path, name, event, fileDescriptor);
+			copy.sequence = sequence;
+			return copy;
+		}
+		
 		public String toString() {
 			return event.name()+" " +pathName;
 		}
@@ -217,10 +334,10 @@ public class FileSystemManager extends Thread {
 	public FileSystemManager(String root, FileSystemObserver fileSystemObserver) throws IOException, NoSuchAlgorithmException{
 		this.fileSystemObserver=fileSystemObserver;
 		this.root=root;
-		watchedFiles=new HashMap<String,FileDescriptor>();
-		loadingFiles=new HashMap<String,FileLoader>();
-		watchedDirectories=new HashSet<String>();
-		hashMap=new HashMap<String,HashSet<String>>();
+		watchedFiles=new ConcurrentHashMap<String,FileDescriptor>();
+		loadingFiles=new ConcurrentHashMap<String,FileLoader>();
+		watchedDirectories=ConcurrentHashMap.newKeySet();
+		hashMap=new ConcurrentHashMap<String,Set<String>>();
 		File file = new File(root);
 		if(!file.exists() || !file.isDirectory()) {
 			log.severe("incorrect root given: "+root);
@@ -228,7 +345,31 @@ public class FileSystemManager extends Thread {
 		}
 		cannonicalRoot = file.getCanonicalPath();
 		log.info("monitoring "+cannonicalRoot);
-		scanDirectoryTree(root);
+		hashingPool = createHashingPool();
+		String stateDirectory = Configuration.getConfigurationValue("stateDirectory",root);
+		cannonicalStateDirectory = new File(stateDirectory).getCanonicalPath();
+		fileIndex = new FileIndex(new File(stateDirectory,indexName));
+		changeLog = new ChangeLog(new File(stateDirectory,changeLogName),
+				Integer.parseInt(Configuration.getConfigurationValue("changeLogSize","10000")));
+		fileHandles = new FileHandleCache(Integer.parseInt(Configuration.getConfigurationValue("openFiles","64")),
+				1000*Long.parseLong(Configuration.getConfigurationValue("openFileIdle","30")));
+		blockCache = new BlockCache(1024*1024*Long.parseLong(Configuration.getConfigurationValue("blockCacheMB","64")),
+				Integer.parseInt(Configuration.getConfigurationValue("readAhead","4")));
+		loaderIdleMillis = 1000*Long.parseLong(Configuration.getConfigurationValue("loaderIdle","60"));
+		long startTime = System.currentTimeMillis();
+		int indexed = loadIndex();
+		rehashCount = 0;
+		// what changed while we were not running goes into the change log, for the peers to catch up on
+		logEvents(scanDirectoryTree(root));
+		// forget anything that was removed while we were not running
+		logEvents(sortDeletions(scanDeletions(root)));
+		log.info("initial scan of "+watchedFiles.size()+" files took "+(System.currentTimeMillis()-startTime)+
+				" ms, rehashed "+rehashCount+" files ("+indexed+" taken from the index)");
+		saveIndex();
+		if(Configuration.getConfigurationValue("fileSystemMonitor","scan").equals("watch")) {
+			startWatching();
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> saveLoaderStates()));
 		log.info("starting file system monitor thread");
 		start();
 	}
@@ -245,6 +386,8 @@ public class FileSystemManager extends Thread {
 	   * data outside of the share directory.
 	   * @param pathName The path name to test for safeness, relative
 	   * to the share directory.
+	   * Names of loader files, and of the state files in the state directory, are
+	   * not safe either, as the file loaders for them would overwrite those files.
 	   * @return boolean True if the path name is safe to use, false otherwise
 	   * including if
 	   * there was an IO error accessing the file system.
@@ -261,7 +404,24 @@ public class FileSystemManager extends Thread {
 		}
 		//log.info(cannonicalName + " " + cannonicalRoot);
 		return cannonicalName.startsWith(cannonicalRoot+FileSystems.getDefault().getSeparator()) &&
-				cannonicalName.length()>cannonicalRoot.length()+1;
+				cannonicalName.length()>cannonicalRoot.length()+1 &&
+				!isReserved(cannonicalName);
+	}
+	
+	// whether a file of the full path name would be, or be loaded into, a loader file or a state file
+	private boolean isReserved(String fullPathName) {
+		File file;
+		try {
+			file = new File(fullPathName).getCanonicalFile();
+		} catch (IOException e) {
+			return true;
+		}
+		for(File part = file; part!=null && part.getPath().length()>cannonicalRoot.length(); part = part.getParentFile()) {
+			if(part.getName().endsWith(loadingSuffix)) return true;
+		}
+		String name = file.getName();
+		return (name.startsWith(STATE_PREFIX) || name.startsWith(".tmp"+STATE_PREFIX))
+				&& cannonicalStateDirectory.equals(file.getParent());
 	}
 	
 	// directories
@@ -274,9 +434,7 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean dirNameExists(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			return watchedDirectories.contains(root+FileSystems.getDefault().getSeparator()+pathName);
-		}
+		return watchedDirectories.contains(root+FileSystems.getDefault().getSeparator()+pathName);
 	}
 	
 
@@ -289,10 +447,8 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean makeDirectory(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
-			return file.mkdir();
-		}
+		File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
+		return file.mkdir();
 	}
 	
 	/**
@@ -304,12 +460,10 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean deleteDirectory(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
-			if(file.isDirectory()) {
-				return file.delete();
-			} else return false;
-		}
+		File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
+		if(file.isDirectory()) {
+			return file.delete();
+		} else return false;
 	}
 	
 	// files
@@ -325,9 +479,7 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean fileNameExists(String pathName) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			return watchedFiles.containsKey(root+FileSystems.getDefault().getSeparator()+pathName);
-		}
+		return watchedFiles.containsKey(root+FileSystems.getDefault().getSeparator()+pathName);
 	}
 	
 	/**
@@ -342,11 +494,8 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean fileNameExists(String pathName, String md5) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			return watchedFiles.containsKey(fullPathName) &&
-					watchedFiles.get(fullPathName).md5.equals(md5);
-		}
+		FileDescriptor fd = watchedFiles.get(root+FileSystems.getDefault().getSeparator()+pathName);
+		return fd!=null && fd.md5.equals(md5);
 	}
 	
 	/**
@@ -360,8 +509,8 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean deleteFile(String pathName, long lastModified, String md5) {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
 			if(watchedFiles.containsKey(fullPathName) && (watchedFiles.get(fullPathName).lastModified<=lastModified||
 					watchedFiles.get(fullPathName).md5.equals(md5))) {
 				log.info("deleting "+fullPathName);
@@ -380,6 +529,14 @@ public class FileSystemManager extends Thread {
 	   * on its filename, called a <i>loader file</i>. Such files never generate file system events. The file loader
 	   * can be subsequently accessed via the given name using {@link #writeFile(String, ByteBuffer, long)},
 	   * {@link #checkWriteComplete(String)} and {@link #checkShortcut(String)}.
+	   * <br/>
+	   * The ranges written are saved next to the loader file. A loader for the same content
+	   * left by a transfer that stopped, in this run or an earlier one, is resumed rather than
+	   * started again, see {@link #missingRanges(String)}. One still in use, by a peer that has
+	   * not gone, see {@link #releaseLoaders(String)}, and written to within the loaderIdle
+	   * seconds of the configuration, is left alone, and this returns false. A file with the
+	   * loader file's name that has no state saved next to it, e.g. left by an older version,
+	   * is loaded again from the start.
 	   * @param pathName The name of the file to create, when loading is complete, relative to
 	   * the share directory.
 	   * @param md5 The MD5 hash of the content that the file contents <i>must</i> match
@@ -392,13 +549,11 @@ public class FileSystemManager extends Thread {
 	   */
 	public boolean createFileLoader(String pathName, String md5, long length, long lastModified) throws NoSuchAlgorithmException, IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
 			if(watchedFiles.containsKey(fullPathName)) return false;
-			if(loadingFiles.containsKey(fullPathName)) return false;
-			loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,length,lastModified));
+			return openLoader(fullPathName,md5,length,lastModified);
 		}
-		return true;
 	}
 	
 	/**
@@ -413,8 +568,8 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean writeFile(String pathName, ByteBuffer src, long position) throws IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
 			if(!loadingFiles.containsKey(fullPathName)) return false;
 			loadingFiles.get(fullPathName).writeFile(src, position);
 		}
@@ -422,7 +577,87 @@ public class FileSystemManager extends Thread {
 	}
 	
 	/**
-	 * Read bytes from any file containing the matching specific content.
+	 * Note the peer the file loader for the associated file name is loading the file from,
+	 * see {@link #releaseLoaders(String)}.
+	 * @param pathName The name of the file to which the file loader is associated (no special prefix).
+	 * @param owner The peer.
+	 */
+	public void setLoaderOwner(String pathName, String owner) {
+		pathName=separatorsToSystem(pathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
+			FileLoader loader = loadingFiles.get(fullPathName);
+			if(loader!=null) loader.owner=owner;
+		}
+	}
+	
+	/**
+	 * The peer has gone, so the file loaders loading files from it are no longer in use, and
+	 * the next request to load one of those files resumes it straight away rather than waiting
+	 * for it to be idle.
+	 * @param owner The peer.
+	 */
+	public void releaseLoaders(String owner) {
+		for(Map.Entry<String,FileLoader> entry : loadingFiles.entrySet()) {
+			synchronized(pathLocks.of(entry.getKey())) {
+				if(owner.equals(entry.getValue().owner)) entry.getValue().released=true;
+			}
+		}
+	}
+	
+	/**
+	 * Whether there is a file loader for the associated file name loading the given content.
+	 * @param pathName The name of the file to which the file loader is associated (no special prefix).
+	 * @param md5 The MD5 hash of the content being loaded.
+	 * @return True if there is such a file loader, false if there is none or it loads other content.
+	 */
+	public boolean isLoading(String pathName, String md5) {
+		pathName=separatorsToSystem(pathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
+			FileLoader loader = loadingFiles.get(fullPathName);
+			return loader!=null && loader.md5.equals(md5);
+		}
+	}
+	
+	/**
+	 * Requests the file loader for the associated file name to check whether every byte up to
+	 * the expected length has been written, in whatever order the bytes arrived. This is cheap,
+	 * and {@link #checkWriteComplete(String)} should be called once this returns true.
+	 * @param pathName The name of the file to which the file loader is associated (no special prefix).
+	 * @return True if all of the bytes have been written, false if not or if there was no associated
+	 * file loader for the given name.
+	 */
+	public boolean allBytesWritten(String pathName) {
+		pathName=separatorsToSystem(pathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
+			if(!loadingFiles.containsKey(fullPathName)) return false;
+			return loadingFiles.get(fullPathName).allBytesWritten();
+		}
+	}
+	
+	/**
+	 * The ranges of the file that the file loader for the associated file name has not had
+	 * written yet, all of the file unless the loader was resumed.
+	 * @param pathName The name of the file to which the file loader is associated (no special prefix).
+	 * @return The ranges, as (position, length) pairs, or null if there was no associated file loader
+	 * for the given name.
+	 */
+	public ArrayList<long[]> missingRanges(String pathName) {
+		pathName=separatorsToSystem(pathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
+			if(!loadingFiles.containsKey(fullPathName)) return null;
+			return loadingFiles.get(fullPathName).missing();
+		}
+	}
+	
+	/**
+	 * Read bytes from any file containing the matching specific content. The file is
+	 * read through a channel kept open between calls, see {@link FileHandleCache}, and
+	 * only while it still has the last modified time and size it was hashed with. Bytes
+	 * recently read for another peer are taken from memory, see {@link BlockCache}.
 	 * @param md5 The MD5 hash of the content of the file to read from.
 	 * @param position The position in the file to start reading from.
 	 * @param length The number of bytes to read.
@@ -432,43 +667,73 @@ public class FileSystemManager extends Thread {
 	 * @throws NoSuchAlgorithmException  If the MD5 hash algorithm is unavailable.
 	 */
 	public ByteBuffer readFile(String md5, long position, long length) throws IOException, NoSuchAlgorithmException {
-		synchronized(this) {
-			if(hashMap.containsKey(md5)) {
-				for(String attempt: hashMap.get(md5)) {
-					try {
-						File file = new File(attempt);
-						log.info("reading file "+file);
-						RandomAccessFile raf = new RandomAccessFile(file, "rw");
-						FileChannel channel = raf.getChannel();
-						FileLock lock = channel.lock();
-						String currentMd5 = hashFile(file,attempt,watchedFiles.get(attempt).lastModified);
-						if(currentMd5.equals(md5)) {
-							ByteBuffer bb = ByteBuffer.allocate((int) length);
-							channel.position(position);
-							int read = channel.read(bb);
-							lock.release();
-							channel.close();
-							raf.close();
-							if(read<length) throw new IOException("did not read everything expected");
-							return bb;
+		for(Map.Entry<String,FileDescriptor> attempt : readAttempts(md5).entrySet()) {
+			FileHandleCache.Handle handle = openAttempt(attempt.getKey(), attempt.getValue());
+			if(handle==null) continue;
+			try {
+				if(position<0 || position+length>attempt.getValue().fileSize) {
+					throw new IOException("did not read everything expected");
+				}
+				ByteBuffer bb = ByteBuffer.allocate((int) length);
+				FileChannel channel = handle.channel();
+				blockCache.read(md5, attempt.getValue().fileSize, position, bb, (dst, from) -> {
+					while(dst.hasRemaining()) {
+						if(channel.read(dst, from+dst.position())<0) {
+							throw new IOException("did not read everything expected");
 						}
-						lock.release();
-						channel.close();
-						raf.close();
-					} catch (IOException e) {
-						// try another one
 					}
-				}
+				});
+				return bb;
+			} catch (IOException e) {
+				// try another one
+			} finally {
+				handle.release();
 			}
-			return null;
 		}
+		return null;
+	}
+	
+	/**
+	 * Open any file containing the matching specific content for reading, so that its bytes
+	 * can be sent without copying them through a buffer, e.g. with
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+	 * As with {@link #readFile(String, long, long)}, the file is checked when its channel is
+	 * handed out, the transfer itself happens without holding any lock.
+	 * @param md5 The MD5 hash of the content of the file to open.
+	 * @return A handle on a read only {@link java.nio.channels.FileChannel}, which the caller
+	 * must release, or null if there was no such file with that content.
+	 * @throws IOException If there were any problems accessing the file system.
+	 * @throws NoSuchAlgorithmException  If the MD5 hash algorithm is unavailable.
+	 */
+	public FileHandleCache.Handle openFile(String md5) throws IOException, NoSuchAlgorithmException {
+		for(Map.Entry<String,FileDescriptor> attempt : readAttempts(md5).entrySet()) {
+			FileHandleCache.Handle handle = openAttempt(attempt.getKey(), attempt.getValue());
+			if(handle!=null) return handle;
+		}
+		return null;
+	}
+	
+	/**
+	 * How often the files opened for reading were already open, see {@link FileHandleCache}.
+	 */
+	public Document openFileMetrics() {
+		return fileHandles.metrics();
+	}
+	
+	/**
+	 * How many bytes were read from disk for the bytes read, see {@link BlockCache}.
+	 */
+	public Document blockCacheMetrics() {
+		return blockCache.metrics();
 	}
 	
 	/**
 	 * Requests the file loader for the associated file name to check if all of the content for the file
 	 * has been written. It does this by checking the MD5 hash of the written bytes to see if
-	 * they match the MD5 hash of the intended file. <b>NOTE:</b> Hashing the file contents is
-	 * time consuming and so this check should not be done often. If the check succeeds then
+	 * they match the MD5 hash of the intended file. The loader hashes the bytes as they are
+	 * written, so this usually only compares hashes, but it reads back the bytes that arrived
+	 * too far out of order, and the whole file if bytes already hashed were written again with
+	 * different content, so this check should still not be done often. If the check succeeds then
 	 * the loader file is renamed to the name the file it should be (i.e. without the prefix),
 	 *  and the loader is no longer accessible. If a file exists in its intended place at this point
 	 *  in time then the file is deleted.
@@ -479,8 +744,8 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean checkWriteComplete(String pathName) throws NoSuchAlgorithmException, IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
 			if(!loadingFiles.containsKey(fullPathName)) return false;
 			boolean check=false;
 			try {
@@ -512,8 +777,8 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean checkShortcut(String pathName) throws NoSuchAlgorithmException, IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
 			if(!loadingFiles.containsKey(fullPathName)) return false;
 			boolean check=false;
 			try {
@@ -544,19 +809,224 @@ public class FileSystemManager extends Thread {
 	 * @throws IOException If there were any errors accessing the file system. 
 	 */
 	public boolean modifyFileLoader(String pathName, String md5, long lastModified) throws IOException {
+		return modifyFileLoader(pathName, md5, -1, lastModified);
+	}
+	
+	/**
+	 * As {@link #modifyFileLoader(String, String, long)}, for when the length of the
+	 * modified file is known, which may differ from the length of the existing file.
+	 * @param pathName The name of the file to modify.
+	 * @param md5 The MD5 hash of the content that the loaded file <i>must</i> have in order
+	 * for the loading to complete.
+	 * @param length The expected length of the file when completed, or -1 to assume the
+	 * length of the existing file.
+	 * @param lastModified The existing file's timestamp must be less than this time stamp
+	 * for the loader to be successfully created.
+	 * @return True if the loader was successfully created.
+	 * @throws IOException If there were any errors accessing the file system. 
+	 */
+	public boolean modifyFileLoader(String pathName, String md5, long length, long lastModified) throws IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
-			if(loadingFiles.containsKey(fullPathName)) return false;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
 			if(watchedFiles.containsKey(fullPathName) && watchedFiles.get(fullPathName).lastModified<=lastModified) {
-				loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,
-													watchedFiles.get(fullPathName).fileSize,
-													lastModified));
+				return openLoader(fullPathName,md5,
+								length<0 ? watchedFiles.get(fullPathName).fileSize : length,
+								lastModified);
 			} else return false;
 		}
+	}
+	
+	/**
+	 * Compute the block signature of an existing file, so that the file can be modified
+	 * by transferring only the blocks that changed. See {@link BlockDelta}.
+	 * @param pathName The name of the file, relative to the share directory.
+	 * @param blockLength The length of the blocks to checksum.
+	 * @return The signature, or null if there is no such file.
+	 * @throws IOException If there were any errors reading the file.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public BlockDelta.Signature blockSignature(String pathName, int blockLength) throws IOException, NoSuchAlgorithmException {
+		pathName=separatorsToSystem(pathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		FileDescriptor fd = watchedFiles.get(fullPathName);
+		if(fd==null) return null;
+		long fileSize=fd.fileSize;
+		try (FileChannel channel = FileChannel.open(Paths.get(fullPathName), StandardOpenOption.READ)) {
+			return BlockDelta.signature(channel, Math.min(fileSize, channel.size()), blockLength);
+		}
+	}
+	
+	/**
+	 * Compute the delta from a remote file, given by its block signature, to any file
+	 * containing the matching specific content. See {@link BlockDelta}.
+	 * @param md5 The MD5 hash of the content the delta should produce.
+	 * @param signature The block signature of the remote file.
+	 * @return The delta, or null if there was no such file with that content.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public BlockDelta.Delta computeDelta(String md5, BlockDelta.Signature signature) throws NoSuchAlgorithmException {
+		Set<String> names = hashMap.get(md5);
+		if(names==null) return null;
+		ArrayList<String> attempts = new ArrayList<String>(names);
+		for(String attempt: attempts) {
+			File file = new File(attempt);
+			FileDescriptor fd = watchedFiles.get(attempt);
+			if(fd==null || !fd.md5.equals(md5)) continue;
+			long lastModified=fd.lastModified;
+			long fileSize=fd.fileSize;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				BlockDelta.Delta delta = BlockDelta.delta(channel, fileSize, signature);
+				// the content may have changed while computing the delta
+				if(file.lastModified()!=lastModified || channel.size()!=fileSize) continue;
+				return delta;
+			} catch (IOException e) {
+				// try another one
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Requests the file loader for the associated file name to copy the blocks of the
+	 * existing file that a delta reuses into the loader file. The literal ranges of the
+	 * delta still have to be written with {@link #writeFile(String, ByteBuffer, long)}.
+	 * @param pathName The name of the file to which the file loader is associated (no special prefix).
+	 * @param delta The delta computed against the existing file's block signature.
+	 * @return True if the blocks were copied, false if there was no associated file loader for the
+	 * given name.
+	 * @throws IOException If there was an error reading or writing the blocks, or the delta
+	 * has an invalid block length or blocks outside either file.
+	 */
+	public boolean writeFileFromExisting(String pathName, BlockDelta.Delta delta) throws IOException {
+		pathName=separatorsToSystem(pathName);
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
+			if(!loadingFiles.containsKey(fullPathName)) return false;
+			FileLoader loader = loadingFiles.get(fullPathName);
+			if(!BlockDelta.isValidBlockLength(delta.blockLength)) {
+				throw new IOException("invalid block length "+delta.blockLength);
+			}
+			try (FileChannel source = FileChannel.open(Paths.get(fullPathName), StandardOpenOption.READ)) {
+				ByteBuffer block = ByteBuffer.allocate(delta.blockLength);
+				long blocks = source.size()/delta.blockLength;
+				for(long[] copy : delta.copies) {
+					if(copy[0]<0 || copy[0]>=blocks || copy[1]<0 || copy[1]>loader.length-delta.blockLength) {
+						throw new IOException("block "+copy[0]+" at "+copy[1]+" is out of range");
+					}
+					block.clear();
+					long sourcePosition = copy[0]*delta.blockLength;
+					while(block.hasRemaining()) {
+						if(source.read(block, sourcePosition+block.position())<0) {
+							throw new IOException("existing file is shorter than expected");
+						}
+					}
+					block.flip();
+					loader.writeFile(block, copy[1]);
+				}
+			}
+		}
 		return true;
 	}
 	
+	/**
+	 * Cut any file containing the matching specific content into chunks, so that a peer
+	 * can build the file from the chunks it has anywhere in its share. See {@link ChunkIndex}.
+	 * @param md5 The MD5 hash of the content to cut into chunks.
+	 * @return The chunks, or null if there was no such file with that content.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public ArrayList<ChunkIndex.Chunk> fileChunks(String md5) throws NoSuchAlgorithmException {
+		Set<String> names = hashMap.get(md5);
+		if(names==null) return null;
+		ArrayList<String> attempts = new ArrayList<String>(names);
+		for(String attempt: attempts) {
+			File file = new File(attempt);
+			FileDescriptor fd = watchedFiles.get(attempt);
+			if(fd==null || !fd.md5.equals(md5)) continue;
+			long lastModified=fd.lastModified;
+			long fileSize=fd.fileSize;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				ArrayList<ChunkIndex.Chunk> chunks = ChunkIndex.chunk(channel, fileSize);
+				// the content may have changed while cutting it
+				if(file.lastModified()!=lastModified || channel.size()!=fileSize) continue;
+				return chunks;
+			} catch (IOException e) {
+				// try another one
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Requests the file loader for the associated file name to copy in the chunks that
+	 * can be found in any file of the share, checking each one against its MD5 hash. The
+	 * chunks not found still have to be written with {@link #writeFile(String, ByteBuffer, long)}.
+	 * The first call indexes the chunks of every file in the share, which takes a while
+	 * on a big share, later calls only those of the files that changed.
+	 * @param pathName The name of the file to which the file loader is associated (no special prefix).
+	 * @param chunks The chunks of the file being loaded, in order.
+	 * @return The ranges, as (position, length) pairs, of the chunks not found, or null if there
+	 * was no associated file loader for the given name.
+	 * @throws IOException If there was an error writing the chunks.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is unavailable.
+	 */
+	public ArrayList<long[]> writeFileFromChunks(String pathName, ArrayList<ChunkIndex.Chunk> chunks) throws IOException, NoSuchAlgorithmException {
+		ArrayList<long[]> missing = new ArrayList<long[]>();
+		HashMap<String,FileChannel> sources = new HashMap<String,FileChannel>();
+		synchronized(chunkLock) {
+			updateChunkIndex();
+		}
+		try {
+			for(ChunkIndex.Chunk chunk : chunks) {
+				ArrayList<ChunkIndex.Location> locations;
+				synchronized(chunkLock) {
+					locations = chunkIndex.locate(chunk.md5);
+				}
+				ByteBuffer bytes = null;
+				for(ChunkIndex.Location location : locations) {
+					bytes = readChunk(sources, location, chunk);
+					if(bytes!=null) break;
+				}
+				if(bytes==null) {
+					long[] last = missing.isEmpty() ? null : missing.get(missing.size()-1);
+					if(last!=null && last[0]+last[1]==chunk.offset) {
+						last[1]+=chunk.length;
+					} else {
+						missing.add(new long[] {chunk.offset, chunk.length});
+					}
+				} else if(!writeFile(pathName, bytes, chunk.offset)) {
+					return null;
+				}
+			}
+		} finally {
+			for(FileChannel channel : sources.values()) channel.close();
+		}
+		return missing;
+	}
+	
+	// read a chunk from where it was indexed, null if it is no longer there
+	private ByteBuffer readChunk(HashMap<String,FileChannel> sources, ChunkIndex.Location location,
+			ChunkIndex.Chunk chunk) throws NoSuchAlgorithmException {
+		if(location.length!=chunk.length) return null;
+		try {
+			FileChannel channel = sources.get(location.pathName);
+			if(channel==null) {
+				channel = FileChannel.open(Paths.get(root, location.pathName), StandardOpenOption.READ);
+				sources.put(location.pathName, channel);
+			}
+			ByteBuffer bytes = ByteBuffer.allocate(chunk.length);
+			while(bytes.hasRemaining()) {
+				if(channel.read(bytes, location.offset+bytes.position())<0) return null;
+			}
+			bytes.flip();
+			if(!ChecksumEngine.md5(bytes).equals(chunk.md5)) return null;
+			return bytes;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
 	/**
 	 * Cancel a file loader. Removes the file loader if present, including the loader file.
 	 * No other actions are taken.
@@ -566,8 +1036,8 @@ public class FileSystemManager extends Thread {
 	 */
 	public boolean cancelFileLoader(String pathName) throws IOException {
 		pathName=separatorsToSystem(pathName);
-		synchronized(this) {
-			String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		String fullPathName=root+FileSystems.getDefault().getSeparator()+pathName;
+		synchronized(pathLocks.of(fullPathName)) {
 			if(loadingFiles.containsKey(fullPathName)) {
 				boolean success = false;
 				try {
@@ -594,25 +1064,134 @@ public class FileSystemManager extends Thread {
 	 * share directory.
 	 */
 	public ArrayList<FileSystemEvent> generateSyncEvents() {
-		synchronized(this) {
-			ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
-			ArrayList<String> keys = new ArrayList<String>(watchedDirectories);
-			for(String pathname : keys) {
-				File file = new File(pathname);
+		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		ArrayList<String> keys = new ArrayList<String>(watchedDirectories);
+		for(String pathname : keys) {
+			File file = new File(pathname);
+			pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+		}
+		Collections.sort(pathevents,(arg0,arg1) ->
+			{
+				return arg0.path.length()-arg1.path.length();	
+			}
+		);
+		for(Map.Entry<String,FileDescriptor> entry : watchedFiles.entrySet()) {
+			File file = new File(entry.getKey());
+			pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE, entry.getValue()));
+		}
+		return pathevents;
+	}
+	
+	/**
+	 * The digest of a directory over everything in it, see {@link DigestTree}.
+	 * @param pathName The name of the directory, relative to the share directory,
+	 * the empty string for the share directory itself.
+	 * @return The digest, or null if there is no such directory.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 */
+	public String directoryDigest(String pathName) throws NoSuchAlgorithmException {
+		pathName=separatorsToSystem(pathName);
+		synchronized(digestLock) {
+			return digestTree().digest(pathName);
+		}
+	}
+	
+	/**
+	 * The entries of a directory with their digests, see {@link DigestTree}.
+	 * @param pathName The name of the directory, relative to the share directory,
+	 * the empty string for the share directory itself.
+	 * @return The entries, or null if there is no such directory.
+	 * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+	 */
+	public ArrayList<DigestTree.Entry> directoryEntries(String pathName) throws NoSuchAlgorithmException {
+		pathName=separatorsToSystem(pathName);
+		synchronized(digestLock) {
+			return digestTree().entries(pathName);
+		}
+	}
+	
+	/**
+	 * As {@link #generateSyncEvents()}, for a part of the share directory only.
+	 * @param pathName The name of a file or directory, relative to the share directory.
+	 * @return A list of file system events that create the file, or the directory
+	 * and its entire contents, or an empty list if there is no such file or directory.
+	 */
+	public ArrayList<FileSystemEvent> generateSyncEvents(String pathName) {
+		pathName=separatorsToSystem(pathName);
+		String separator = FileSystems.getDefault().getSeparator();
+		String fullPathName = root+separator+pathName;
+		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		FileDescriptor fd = watchedFiles.get(fullPathName);
+		if(fd!=null) {
+			File file = new File(fullPathName);
+			pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE, fd));
+			return pathevents;
+		}
+		if(!watchedDirectories.contains(fullPathName)) return pathevents;
+		String prefix = fullPathName+separator;
+		for(String dirname : watchedDirectories) {
+			if(dirname.equals(fullPathName) || dirname.startsWith(prefix)) {
+				File file = new File(dirname);
 				pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
 			}
-			Collections.sort(pathevents,(arg0,arg1) ->
-				{
-					return arg0.path.length()-arg1.path.length();	
-				}
-			);
-			keys = new ArrayList<String>(watchedFiles.keySet());
-			for(String pathname : keys) {
-				File file = new File(pathname);
-				pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE, watchedFiles.get(pathname)));
+		}
+		Collections.sort(pathevents,(arg0,arg1) ->
+			{
+				return arg0.path.length()-arg1.path.length();	
 			}
-			return pathevents;
+		);
+		for(Map.Entry<String,FileDescriptor> entry : watchedFiles.entrySet()) {
+			if(entry.getKey().startsWith(prefix)) {
+				File file = new File(entry.getKey());
+				pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE, entry.getValue()));
+			}
+		}
+		return pathevents;
+	}
+	
+	/**
+	 * The id of the change log, which peers quote with the last sequence number they received.
+	 */
+	public String changeLogId() {
+		return changeLog.getLogId();
+	}
+	
+	/**
+	 * The events emitted after a given one, for a peer catching up after being disconnected.
+	 * @param sequence The sequence number of the last event the peer received.
+	 * @return The events, oldest first, or null if the change log no longer goes back
+	 * that far, in which case the peer needs a full sync.
+	 */
+	public ArrayList<FileSystemEvent> changesSince(long sequence) {
+		ArrayList<ChangeLog.Entry> entries = changeLog.since(sequence);
+		if(entries==null) return null;
+		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		for(ChangeLog.Entry entry : entries) {
+			FileSystemEvent pathevent;
+			if(entry.event==EVENT.DIRECTORY_CREATE || entry.event==EVENT.DIRECTORY_DELETE) {
+				pathevent = pathEvent(entry.event,entry.pathName,null);
+			} else {
+				pathevent = pathEvent(entry.event,entry.pathName,
+						new FileDescriptor(entry.lastModified,entry.md5,entry.fileSize));
+			}
+			pathevent.sequence = entry.sequence;
+			pathevents.add(pathevent);
 		}
+		return pathevents;
+	}
+	
+	/**
+	 * An event for a path name, e.g. one saved to disk and read back.
+	 * @param event The type of event.
+	 * @param pathName The path name of the file or directory, relative to the share directory.
+	 * @param fileDescriptor The file descriptor of a file event, null for a directory event.
+	 */
+	public FileSystemEvent pathEvent(EVENT event, String pathName, FileDescriptor fileDescriptor) {
+		File file = new File(root+FileSystems.getDefault().getSeparator()+pathName);
+		if(fileDescriptor==null) {
+			return new FileSystemEvent(file.getParent(),file.getName(),event);
+		}
+		return new FileSystemEvent(file.getParent(),file.getName(),event,fileDescriptor);
 	}
 	
 	////////////////////
@@ -628,32 +1207,167 @@ public class FileSystemManager extends Thread {
 		private FileLock lock; 
 		private File file;
 		private RandomAccessFile raf;
+		// the ranges written, saved so that the load can be resumed
+		private File state;
+		private long stateSaved;
+		private boolean stateDirty = false;
+		private long lastWrite;
+		// the peer loading the file, and whether it has gone so the loader is no longer in use
+		private String owner;
+		private boolean released = false;
+		// (start, end) of the ranges written so far, merged where they meet
+		private TreeMap<Long,Long> written = new TreeMap<Long,Long>();
+		// running MD5 of the bytes from the start up to digested, null if the whole file has to be hashed
+		private MessageDigest digest;
+		private long digested = 0;
 		public FileLoader(String pathName, String md5, long length, long lastModified) throws IOException {
 			this.pathName=pathName;
 			this.md5=md5;
 			this.length=length;
 			this.lastModified=lastModified;
 			file = new File(pathName+loadingSuffix);
-			if(file.exists()) throw new IOException("file loader already in progress");
-			log.info("creating file "+file.getPath());
-			file.createNewFile();
+			state = new File(pathName+loadingSuffix+loadingSuffix);
+			boolean created = false;
+			if(Files.isSymbolicLink(file.toPath())) {
+				// whatever it points to was not made by a loader, only the link is removed
+				log.warning("removing link "+file.getPath()+" in the place of a loader file");
+				Files.delete(file.toPath());
+			}
+			if(!file.exists()) {
+				log.info("creating file "+file.getPath());
+				created = file.createNewFile();
+			}
+			if(!file.isFile()) throw new IOException("cannot load into "+file.getPath()+", it is not a file");
 			raf = new RandomAccessFile(file, "rw");
-			channel = raf.getChannel();
-			lock = channel.lock();
+			boolean opened = false;
+			try {
+				channel = raf.getChannel();
+				try {
+					lock = channel.tryLock();
+				} catch (OverlappingFileLockException e) {
+					// held by another loader in this process
+					lock = null;
+				}
+				if(lock==null) {
+					throw new IOException("file loader already in progress");
+				}
+				if(loadState()) {
+					log.info("resuming file "+file.getPath()+", "+(length-missingLength())+" of "+length+" bytes already written");
+				} else {
+					// left by a load of other content, or one that never saved what it wrote, such as
+					// those of older versions: the name is a loader's, which no peer can give a file,
+					// but what it holds is unknown, so it is loaded again from the start
+					if(!created) log.info("taking over "+file.getPath()+", loading it again from the start");
+					channel.truncate(0);
+					saveState();
+				}
+				opened = true;
+			} finally {
+				if(!opened) {
+					// closing the file releases the lock
+					raf.close();
+					if(created) file.delete();
+				}
+			}
+			try {
+				digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				digest = null;
+			}
+			stateSaved = System.currentTimeMillis();
+			lastWrite = stateSaved;
 		}
 		
 		public boolean cancel() throws IOException {
 			lock.release();
 			channel.close();
 			raf.close();
+			state.delete();
 			return file.delete();
 		}
 		
+		public boolean isIdle(long now) {
+			return released || now-lastWrite>=loaderIdleMillis;
+		}
+		
+		public ArrayList<long[]> missing() {
+			ArrayList<long[]> missing = new ArrayList<long[]>();
+			long position = 0;
+			for(Map.Entry<Long,Long> range : written.entrySet()) {
+				if(position>=length) break;
+				long end = Math.min(range.getKey(), length);
+				if(end>position) missing.add(new long[] {position, end-position});
+				position = Math.max(position, range.getValue());
+			}
+			if(position<length) missing.add(new long[] {position, length-position});
+			return missing;
+		}
+		
+		private long missingLength() {
+			long total = 0;
+			for(long[] range : missing()) total+=range[1];
+			return total;
+		}
+		
+		// take over the ranges written by an earlier loader of the same content, false if there are none
+		private boolean loadState() {
+			if(!state.exists()) return false;
+			ArrayList<long[]> ranges = new ArrayList<long[]>();
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(state)))) {
+				if(in.readInt()!=LOADER_MAGIC) return false;
+				String stateMd5 = in.readUTF();
+				long stateLength = in.readLong();
+				int count = in.readInt();
+				for(int i=0;i<count;i++) {
+					ranges.add(new long[] {in.readLong(), in.readLong()});
+				}
+				// a state cut short is of no use
+				if(in.readInt()!=LOADER_MAGIC) return false;
+				if(!stateMd5.equals(md5) || stateLength!=length) return false;
+				long size = channel.size();
+				for(long[] range : ranges) {
+					addWritten(range[0], Math.min(range[1], size));
+				}
+				return true;
+			} catch (IOException e) {
+				written.clear();
+				return false;
+			}
+		}
+		
+		public void saveState() {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				out.writeInt(LOADER_MAGIC);
+				out.writeUTF(md5);
+				out.writeLong(length);
+				out.writeInt(written.size());
+				for(Map.Entry<Long,Long> range : written.entrySet()) {
+					out.writeLong(range.getKey());
+					out.writeLong(range.getValue());
+				}
+				out.writeInt(LOADER_MAGIC);
+				Files.write(state.toPath(), bytes.toByteArray());
+			} catch (IOException e) {
+				log.warning("could not save the state of "+file.getPath()+": "+e.getMessage());
+			}
+			stateSaved = System.currentTimeMillis();
+			stateDirty = false;
+		}
+		
+		public void checkSaveState() {
+			if(stateDirty) saveState();
+		}
+		
 		public boolean checkShortcut() throws NoSuchAlgorithmException, IOException {
 			// check for a shortcut
 			boolean success=false;
-			if(hashMap.containsKey(md5)) {
-				for(String attempt: hashMap.get(md5)) {
+			Set<String> attempts = hashMap.get(md5);
+			if(attempts!=null) {
+				for(String attempt: attempts) {
+					FileDescriptor fd = watchedFiles.get(attempt);
+					if(fd==null) continue;
 					RandomAccessFile raf2 = null;
 					FileChannel channel2 = null;
 					FileLock lock2 = null;
@@ -662,7 +1376,7 @@ public class FileSystemManager extends Thread {
 						raf2 = new RandomAccessFile(file, "rw");
 						channel2 = raf2.getChannel();
 						lock2 = channel2.lock();
-						String currentMd5 = hashFile(file,attempt,watchedFiles.get(attempt).lastModified);
+						String currentMd5 = hashFile(file,attempt,fd.lastModified);
 						if(currentMd5.equals(md5)) {
 							Path dest = Paths.get(pathName);
 							CopyOption[] options = new CopyOption[]{
@@ -689,15 +1403,103 @@ public class FileSystemManager extends Thread {
 				channel.close();
 				raf.close();
 				file.delete();
+				state.delete();
 			}
 			return success;
 		}
 		public void writeFile(ByteBuffer src, long position) throws IOException {
 			if(position>length) throw new IOException("trying to write bytes beyond what is expected");
-			channel.write(src, position);
+			long start=position;
+			if(digest!=null && start<digested) checkRewrite(src, start);
+			ByteBuffer bytes = src.duplicate();
+			while(src.hasRemaining()) {
+				position+=channel.write(src, position);
+			}
+			addWritten(start,position);
+			lastWrite = System.currentTimeMillis();
+			stateDirty = true;
+			if(lastWrite-stateSaved>=LOADER_SAVE_MILLIS) saveState();
+			// bytes carrying on from the digest go straight into it
+			if(digest!=null && start<=digested && position>digested) {
+				bytes.position(bytes.position()+(int) (digested-start));
+				digest.update(bytes);
+				digested=position;
+			}
+			catchUp(CATCH_UP_LENGTH);
+		}
+		
+		// bytes already digested may only be written again unchanged, else the whole file is hashed at the end
+		private void checkRewrite(ByteBuffer src, long start) throws IOException {
+			int overlap = (int) Math.min(src.remaining(), digested-start);
+			ByteBuffer old = ByteBuffer.allocate(overlap);
+			while(old.hasRemaining()) {
+				if(channel.read(old, start+old.position())<0) break;
+			}
+			old.flip();
+			ByteBuffer now = src.duplicate();
+			now.limit(now.position()+overlap);
+			if(!old.equals(now)) {
+				log.info("bytes already hashed of "+pathName+" were changed, hashing the whole file when complete");
+				digest=null;
+			}
+		}
+		
+		// digest the bytes written ahead of the digest that it now reaches, reading back at most max of them
+		private void catchUp(long max) throws IOException {
+			if(digest==null) return;
+			Map.Entry<Long,Long> first = written.firstEntry();
+			if(first==null || first.getKey()!=0) return;
+			long end = first.getValue();
+			if(end<=digested || end-digested>max) return;
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(end-digested, CATCH_UP_BUFFER));
+			while(digested<end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), end-digested));
+				int n = channel.read(buffer, digested);
+				if(n<0) throw new IOException("loader file is shorter than the bytes written");
+				buffer.flip();
+				digest.update(buffer);
+				digested+=n;
+			}
+		}
+		
+		// the MD5 of the loader file, from the running digest when it covers the whole file
+		private String currentMd5() throws NoSuchAlgorithmException, IOException {
+			if(digest!=null) {
+				catchUp(Long.MAX_VALUE);
+				if(digested==channel.size()) {
+					try {
+						return ChecksumEngine.toHex(((MessageDigest) digest.clone()).digest());
+					} catch (CloneNotSupportedException e) {
+						// hash the file instead
+					}
+				}
+			}
+			return hashFile(file,pathName,0,raf);
+		}
+		private void addWritten(long start, long end) {
+			if(end<=start) return;
+			// merge with any range that overlaps or touches the new one
+			Map.Entry<Long,Long> before = written.floorEntry(start);
+			if(before!=null && before.getValue()>=start) {
+				start=before.getKey();
+				end=Math.max(end, before.getValue());
+			}
+			Map.Entry<Long,Long> after = written.ceilingEntry(start);
+			while(after!=null && after.getKey()<=end) {
+				end=Math.max(end, after.getValue());
+				written.remove(after.getKey());
+				after = written.ceilingEntry(start);
+			}
+			written.put(start, end);
+		}
+		public boolean allBytesWritten() {
+			if(length==0) return true;
+			Map.Entry<Long,Long> first = written.firstEntry();
+			return first!=null && first.getKey()==0 && first.getValue()>=length;
 		}
 		public boolean checkWriteComplete() throws NoSuchAlgorithmException, IOException {
-			String currentMd5 = hashFile(file,pathName,0,raf);
+			String currentMd5 = currentMd5();
 			if(currentMd5.equals(md5)) {
 				lock.release();
 				channel.close();
@@ -706,226 +1508,662 @@ public class FileSystemManager extends Thread {
 				if(dest.exists()) dest.delete();
 				file.renameTo(dest);
 				dest.setLastModified(lastModified);
+				state.delete();
 				return true;
 			}
 			return false;
 		}
 	}
 
-	private HashSet<String> watchedDirectories;
-	private HashMap<String,HashSet<String>> hashMap;
+	private Set<String> watchedDirectories;
+	// the full path names of the files with each content
+	private ConcurrentHashMap<String,Set<String>> hashMap;
 	private FileSystemObserver fileSystemObserver;
-	private HashMap<String,FileDescriptor> watchedFiles;
+	private ConcurrentHashMap<String,FileDescriptor> watchedFiles;
 	private String root;
 	private String cannonicalRoot;
-	private HashMap<String,FileLoader> loadingFiles;
+	private String cannonicalStateDirectory;
+	private ConcurrentHashMap<String,FileLoader> loadingFiles;
+	// held to change the entry of a full path name or its file loader
+	private final StripedLock pathLocks = new StripedLock(LOCK_STRIPES);
+	private WatchService watchService;
+	private HashMap<WatchKey,Path> watchKeys;
+	private FileIndex fileIndex;
+	private ChangeLog changeLog;
+	private volatile boolean indexDirty;
+	private long indexSaveTime;
+	private int rehashCount;
+	private ThreadPoolExecutor hashingPool;
+	// built when first asked for a digest, and kept up to date from then on
+	private DigestTree digestTree;
+	private final Object digestLock = new Object();
+	// built when first asked for chunks, files that changed since are re-chunked on the next request
+	private ChunkIndex chunkIndex;
+	// read only channels kept open for serving file bytes
+	private FileHandleCache fileHandles;
+	// file content recently read, shared by the peers being sent the same file
+	private BlockCache blockCache;
+	// a file loader not written to for this long, loaderIdle in the configuration, is taken to belong
+	// to a transfer that stopped, e.g. because the connection dropped, and is resumed by the next
+	// request to load the file; a slow transfer still going on must not be taken over
+	private long loaderIdleMillis;
+	private volatile Set<String> unchunked;
+	private final Object chunkLock = new Object();
 	
 	
 	
 	
 	public void run() {
-		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
-		while (!isInterrupted()) {
-			
-			pathevents.clear();
-			// check for new/modified files
-			try {
-				synchronized(this) {
-					pathevents.addAll(scanDirectoryTree(root));
+		if(watchService!=null) {
+			// one full pass picks up anything that changed before the directories were registered
+			scanPass(root);
+			while (!isInterrupted()) {
+				watchPass();
+				checkSaveIndex();
+				saveLoaderStates();
+				fileHandles.closeIdle();
+			}
+		} else {
+			while (!isInterrupted()) {
+				scanPass(root);
+				checkSaveIndex();
+				saveLoaderStates();
+				fileHandles.closeIdle();
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					log.warning(e.getMessage());
 				}
-			} catch (NoSuchAlgorithmException e1) {
-				log.severe(e1.getMessage());
-				interrupt();
-				continue;
-			} catch (IOException e1) {
-				log.severe(e1.getMessage());
-			}
-			for(FileSystemEvent pathevent : pathevents) {
-				log.info(pathevent.toString());
-				fileSystemObserver.processFileSystemEvent(pathevent);
-			}
-			
-			// check for deleted files
-			pathevents.clear();
-			synchronized(this) {
-				ArrayList<String> keys = new ArrayList<String>(watchedFiles.keySet());
-				for(String pathname : keys) {
-					File file = new File(pathname);
-					if(!file.exists()) {
-						FileDescriptor fdes = watchedFiles.get(pathname);
-						dropFile(pathname);
-						pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_DELETE,fdes));
+			}
+		}
+	}
+	
+	/**
+	 * Rescan the given file or directory (recursively), emitting events for
+	 * anything that was created, modified or deleted underneath it.
+	 */
+	private void scanPass(String name) {
+		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		// check for new/modified files
+		try {
+			pathevents.addAll(scanDirectoryTree(name));
+		} catch (NoSuchAlgorithmException e1) {
+			log.severe(e1.getMessage());
+			interrupt();
+			return;
+		} catch (IOException e1) {
+			log.severe(e1.getMessage());
+		}
+		emitEvents(pathevents);
+		
+		// check for deleted files and directories
+		pathevents.clear();
+		pathevents.addAll(scanDeletions(name));
+		emitDeletions(pathevents);
+	}
+	
+	/**
+	 * Wait for the watch service to report changes and re-examine only the
+	 * reported paths. If the event queue of a directory overflowed then the
+	 * whole subtree of that directory is rescanned instead.
+	 */
+	private void watchPass() {
+		LinkedHashSet<String> changed = new LinkedHashSet<String>();
+		LinkedHashSet<String> overflowed = new LinkedHashSet<String>();
+		try {
+			// wake up now and then even when idle, so that the index still gets saved
+			WatchKey key = watchService.poll(INDEX_SAVE_MILLIS, TimeUnit.MILLISECONDS);
+			while(key!=null) {
+				Path dir = watchKeys.get(key);
+				if(dir!=null) {
+					for(WatchEvent<?> event : key.pollEvents()) {
+						if(event.kind()==StandardWatchEventKinds.OVERFLOW) {
+							log.warning("watch events lost for "+dir+", rescanning it");
+							overflowed.add(dir.toString());
+							continue;
+						}
+						Path child = dir.resolve((Path) event.context());
+						// a modified directory only means its entries changed, and those report themselves
+						if(event.kind()==StandardWatchEventKinds.ENTRY_MODIFY && Files.isDirectory(child)) continue;
+						changed.add(child.toString());
 					}
 				}
-				
-				// check for deleted directories
-				keys = new ArrayList<String>(watchedDirectories);
-				for(String pathname : keys) {
-					File file = new File(pathname);
-					if(!file.exists()) {
-						dropDir(pathname);
-						pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_DELETE));
-					}
+				if(!key.reset()) {
+					// the directory is gone
+					watchKeys.remove(key);
 				}
+				key = watchService.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			interrupt();
+			return;
+		}
+		
+		for(String name : overflowed) {
+			scanPass(name);
+		}
+		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		ArrayList<FileSystemEvent> deletions=new ArrayList<FileSystemEvent>();
+		for(String name : changed) {
+			if(isWithinAny(name, overflowed)) continue;
+			try {
+				pathevents.addAll(scanDirectoryTree(name));
+			} catch (NoSuchAlgorithmException e) {
+				log.severe(e.getMessage());
+				interrupt();
+				return;
+			} catch (IOException e) {
+				log.severe(e.getMessage());
+			}
+			deletions.addAll(scanDeletions(name));
+		}
+		emitEvents(pathevents);
+		emitDeletions(deletions);
+	}
+	
+	private void emitEvents(ArrayList<FileSystemEvent> pathevents) {
+		logEvents(pathevents);
+		for(FileSystemEvent pathevent : pathevents) {
+			log.info(pathevent.toString());
+			fileSystemObserver.processFileSystemEvent(pathevent);
+		}
+	}
+	
+	private void logEvents(ArrayList<FileSystemEvent> pathevents) {
+		for(FileSystemEvent pathevent : pathevents) {
+			pathevent.sequence = changeLog.append(pathevent.event, pathevent.pathName, pathevent.fileDescriptor);
+		}
+	}
+	
+	private void emitDeletions(ArrayList<FileSystemEvent> pathevents) {
+		emitEvents(sortDeletions(pathevents));
+	}
+	
+	private ArrayList<FileSystemEvent> sortDeletions(ArrayList<FileSystemEvent> pathevents) {
+		// sort all of the events so they make sense
+		Collections.sort(pathevents,(arg0,arg1) ->
+			{
+				return arg1.path.length()-arg0.path.length();	
 			}
-			// sort all of the events so they make sense
-			Collections.sort(pathevents,(arg0,arg1) ->
-				{
-					return arg1.path.length()-arg0.path.length();	
+		);
+		return pathevents;
+	}
+	
+	/**
+	 * Drop every watched file and directory at or below the given name that
+	 * no longer exists.
+	 */
+	private ArrayList<FileSystemEvent> scanDeletions(String name) {
+		ArrayList<FileSystemEvent> pathevents=new ArrayList<FileSystemEvent>();
+		ArrayList<String> keys;
+		if(watchedFiles.containsKey(name)) {
+			keys = new ArrayList<String>();
+			keys.add(name);
+		} else if(name.equals(root) || watchedDirectories.contains(name)) {
+			keys = new ArrayList<String>(watchedFiles.keySet());
+		} else {
+			return pathevents;
+		}
+		for(String pathname : keys) {
+			if(!isWithin(pathname, name)) continue;
+			File file = new File(pathname);
+			synchronized(pathLocks.of(pathname)) {
+				FileDescriptor fdes = watchedFiles.get(pathname);
+				if(fdes!=null && !file.exists()) {
+					dropFile(pathname);
+					pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_DELETE,fdes));
 				}
-			);
-			
-			for(FileSystemEvent pathevent : pathevents) {
-				log.info(pathevent.toString());
-				fileSystemObserver.processFileSystemEvent(pathevent);
 			}
-			
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				log.warning(e.getMessage());
+		}
+		if(name.equals(root) || watchedDirectories.contains(name)) {
+			keys = new ArrayList<String>(watchedDirectories);
+			for(String pathname : keys) {
+				if(!isWithin(pathname, name)) continue;
+				File file = new File(pathname);
+				if(!file.exists()) {
+					dropDir(pathname);
+					pathevents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_DELETE));
+				}
 			}
-			
 		}
-		
+		return pathevents;
+	}
+	
+	private boolean isWithin(String pathname, String name) {
+		return name.equals(root) || pathname.equals(name) ||
+				pathname.startsWith(name+FileSystems.getDefault().getSeparator());
+	}
+	
+	private boolean isWithinAny(String pathname, Iterable<String> names) {
+		for(String name : names) {
+			if(isWithin(pathname, name)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Populate the watched files and directories from the file index.
+	 * @return The number of files taken from the index.
+	 */
+	private int loadIndex() {
+		ArrayList<String> dirs = new ArrayList<String>();
+		ArrayList<FileIndex.Entry> files = new ArrayList<FileIndex.Entry>();
+		if(!fileIndex.load(dirs, files)) {
+			log.info("no usable file index, hashing the whole share");
+			return 0;
+		}
+		String separator = FileSystems.getDefault().getSeparator();
+		for(String dir : dirs) {
+			watchedDirectories.add(root+separator+separatorsToSystem(dir));
+		}
+		for(FileIndex.Entry entry : files) {
+			String name = root+separator+separatorsToSystem(entry.pathName);
+			addHash(entry.md5,name);
+			watchedFiles.put(name,new FileDescriptor(entry.lastModified,entry.md5,entry.fileSize));
+		}
+		return files.size();
+	}
+	
+	/**
+	 * Write the file index if anything changed since it was last saved and
+	 * it has not been saved recently.
+	 */
+	private void checkSaveIndex() {
+		if(indexDirty && System.currentTimeMillis()-indexSaveTime>=INDEX_SAVE_MILLIS) {
+			saveIndex();
+		}
+	}
+	
+	private void saveIndex() {
+		ArrayList<String> dirs = new ArrayList<String>();
+		ArrayList<FileIndex.Entry> files = new ArrayList<FileIndex.Entry>();
+		// cleared first, so that a change made while copying is saved next time
+		indexDirty = false;
+		indexSaveTime = System.currentTimeMillis();
+		int prefix = root.length()+1;
+		for(String dir : watchedDirectories) {
+			dirs.add(dir.substring(prefix));
+		}
+		for(Map.Entry<String,FileDescriptor> entry : watchedFiles.entrySet()) {
+			FileDescriptor fd = entry.getValue();
+			files.add(new FileIndex.Entry(entry.getKey().substring(prefix),fd.lastModified,fd.fileSize,fd.md5));
+		}
+		try {
+			fileIndex.save(dirs, files);
+		} catch (IOException e) {
+			log.warning("could not save file index: "+e.getMessage());
+			indexDirty = true;
+		}
+	}
+	
+	/**
+	 * Switch to event driven change detection. Falls back to periodic
+	 * rescanning if the platform has no usable watch service.
+	 */
+	private void startWatching() {
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			watchKeys = new HashMap<WatchKey,Path>();
+			watchDirectory(root);
+			for(String dir : watchedDirectories) {
+				watchDirectory(dir);
+			}
+			log.info("watching "+watchKeys.size()+" directories for changes");
+		} catch (IOException e) {
+			log.warning("watch service unavailable, falling back to periodic scans: "+e.getMessage());
+			watchService = null;
+			watchKeys = null;
+		}
+	}
+	
+	private void watchDirectory(String name) throws IOException {
+		Path path = Paths.get(name);
+		WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+		watchKeys.put(key, path);
 	}
 	
 	private String hashFile(File file,String name,long lastModified) throws NoSuchAlgorithmException, IOException {
 		log.info("hashing file "+name);
-		if(lastModified!=0 && lastModified==file.lastModified()) {
-			return watchedFiles.get(name).md5;
+		FileDescriptor fd = watchedFiles.get(name);
+		if(lastModified!=0 && fd!=null && fd.lastModified==lastModified && lastModified==file.lastModified()) {
+			return fd.md5;
 		}
-		MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-		String checksum = getFileChecksum(md5Digest, file);
-		return checksum;
+		return ChecksumEngine.md5(file);
 	}
 	
 	private String hashFile(File file,String name,long lastModified, RandomAccessFile raf) throws NoSuchAlgorithmException, IOException {
 		log.info("hashing file "+name);
-		if(lastModified!=0 && lastModified==file.lastModified()) {
-			return watchedFiles.get(name).md5;
+		FileDescriptor fd = watchedFiles.get(name);
+		if(lastModified!=0 && fd!=null && fd.lastModified==lastModified && lastModified==file.lastModified()) {
+			return fd.md5;
 		}
-		MessageDigest md5Digest = MessageDigest.getInstance("MD5");
-		String checksum = getFileChecksum(md5Digest, raf);
-		return checksum;
+		return ChecksumEngine.md5(raf.getChannel());
 	}
 	
+	/**
+	 * Scan the given file or directory (recursively) for new and modified entries. The
+	 * tree is walked first, handing every file that needs hashing to the hashing workers,
+	 * and the results are then merged in walk order, so directories still come before the
+	 * files inside them.
+	 */
 	private ArrayList<FileSystemEvent> scanDirectoryTree(String name) throws IOException, NoSuchAlgorithmException {
+		ArrayList<ScanEntry> entries = new ArrayList<ScanEntry>();
 		ArrayList<FileSystemEvent> pathEvents = new ArrayList<FileSystemEvent>();
-		if(name.endsWith(loadingSuffix)) return pathEvents;
+		try {
+			walkDirectoryTree(name, entries);
+			for(ScanEntry entry : entries) {
+				File file = entry.file;
+				if(entry.hash==null) {
+					addDir(entry.name);
+					pathEvents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+					continue;
+				}
+				String newHash = entry.getHash();
+				rehashCount++;
+				// only the one path is locked, and only once its hash is known
+				synchronized(pathLocks.of(entry.name)) {
+					if(watchedFiles.containsKey(entry.name)) {
+						modifyFile(entry.name,newHash,entry.lastModified,entry.fileSize);
+						FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_MODIFY,watchedFiles.get(entry.name));
+						pathEvents.add(pe);
+					} else {
+						addFile(entry.name,new FileDescriptor(entry.lastModified,newHash,entry.fileSize));
+						FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,watchedFiles.get(entry.name));
+						pathEvents.add(pe);
+					}
+				}
+			}
+		} finally {
+			// stop any hashing that is no longer needed because the scan failed
+			for(ScanEntry entry : entries) {
+				if(entry.hash!=null) entry.hash.cancel(false);
+			}
+		}
+		return pathEvents;
+	}
+	
+	private void walkDirectoryTree(String name, ArrayList<ScanEntry> entries) throws IOException {
+		if(name.endsWith(loadingSuffix)) return;
 		File file = new File(name);
 		if(file.isFile()) {
 			long lastModified = file.lastModified();
 			long fileSize = file.length();
-			if(watchedFiles.containsKey(name)) {
-				if(lastModified!=watchedFiles.get(name).lastModified) {
-					String newHash = hashFile(file,name,0);
-					modifyFile(name,newHash,lastModified,fileSize);
-					FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_MODIFY,watchedFiles.get(name));
-					pathEvents.add(pe);
+			FileDescriptor fd = watchedFiles.get(name);
+			if(fd!=null) {
+				if(lastModified!=fd.lastModified || fileSize!=fd.fileSize) {
+					entries.add(new ScanEntry(name,file,lastModified,fileSize,hashLater(file,name)));
 				} else {
 					// do nothing
 				}
 			} else {
-				String newHash = hashFile(file,name,0);
-				addFile(name,new FileDescriptor(lastModified,newHash,fileSize));
-				FileSystemEvent pe = new FileSystemEvent(file.getParent(),file.getName(),EVENT.FILE_CREATE,watchedFiles.get(name));
-				pathEvents.add(pe);
+				entries.add(new ScanEntry(name,file,lastModified,fileSize,hashLater(file,name)));
 			}
 		} else if(file.isDirectory()) {
 			Path path = Paths.get(name);
 			if(watchedDirectories.contains(name) || name.equals(root)) {
 				// do nothing
 			} else {
-				addDir(name);
-				pathEvents.add(new FileSystemEvent(file.getParent(),file.getName(),EVENT.DIRECTORY_CREATE));
+				entries.add(new ScanEntry(name,file,0,0,null));
 			}
 			DirectoryStream<Path> stream = Files.newDirectoryStream(path);
 		    for (Path subpath: stream) {
-		    	pathEvents.addAll(scanDirectoryTree(subpath.toString()));
+		    	walkDirectoryTree(subpath.toString(), entries);
 		    }
 		    stream.close();
 		}
-		return pathEvents;
 	}
 	
+	private Future<String> hashLater(File file, String name) {
+		FutureTask<String> task = new FutureTask<String>(() -> hashFile(file,name,0));
+		if(hashingPool==null) {
+			task.run();
+		} else {
+			// when the workers are busy the walking thread hashes the file itself
+			hashingPool.execute(task);
+		}
+		return task;
+	}
+	
+	/**
+	 * A new directory or a new/modified file found while walking the tree,
+	 * with the pending hash of its content in the case of a file.
+	 */
+	private class ScanEntry {
+		public String name;
+		public File file;
+		public long lastModified;
+		public long fileSize;
+		public Future<String> hash;
+		
+		public ScanEntry(String name, File file, long lastModified, long fileSize, Future<String> hash) {
+			this.name=name;
+			this.file=file;
+			this.lastModified=lastModified;
+			this.fileSize=fileSize;
+			this.hash=hash;
+		}
+		
+		public String getHash() throws IOException, NoSuchAlgorithmException {
+			try {
+				return hash.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while hashing "+name);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				if(e.getCause() instanceof NoSuchAlgorithmException) throw (NoSuchAlgorithmException) e.getCause();
+				throw new IOException(e.getCause());
+			}
+		}
+	}
+	
+	/**
+	 * Bounded pool of hashing workers, sized by the configuration value
+	 * <code>hashingThreads</code> (the number of cores by default). Fewer threads
+	 * suit spinning disks, where concurrent reads mostly cause seeking.
+	 */
+	private ThreadPoolExecutor createHashingPool() {
+		int threads = Integer.parseInt(Configuration.getConfigurationValue("hashingThreads",
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		if(threads<=1) return null;
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(threads*16), runnable -> {
+					Thread thread = new Thread(runnable, "bitbox-hasher-"+count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		log.info("hashing with "+threads+" threads");
+		return pool;
+	}
+	
+	// the bucket of a content is changed atomically, dropped once empty
 	private void removeHash(String name) {
-		HashSet<String> hs = hashMap.get(watchedFiles.get(name).md5);
-		hs.remove(name);
-		if(hs.size()==0) hs.remove(watchedFiles.get(name).md5);
+		FileDescriptor fd = watchedFiles.get(name);
+		if(fd==null) return;
+		hashMap.computeIfPresent(fd.md5, (md5, names) -> {
+			names.remove(name);
+			return names.isEmpty() ? null : names;
+		});
 	}
 	
 	private void addHash(String md5, String name) {
-		if(!hashMap.containsKey(md5)) {
-			hashMap.put(md5, new HashSet<String>());
-		}
-		hashMap.get(md5).add(name);
+		hashMap.compute(md5, (key, names) -> {
+			if(names==null) names = ConcurrentHashMap.newKeySet();
+			names.add(name);
+			return names;
+		});
 	}
 	
 	private void modifyFile(String name, String md5, long lastModified, long fileSize) {
 		log.info("modified file "+name);
+		indexDirty=true;
 		removeHash(name);
-		watchedFiles.get(name).md5=md5;
-		watchedFiles.get(name).lastModified=lastModified;
-		watchedFiles.get(name).fileSize=fileSize;
+		// replaced rather than changed, as readers hold on to descriptors without locking
+		watchedFiles.put(name,new FileDescriptor(lastModified,md5,fileSize));
 		addHash(md5,name);
+		fileHandles.invalidate(name);
+		synchronized(digestLock) {
+			if(digestTree!=null) digestTree.putFile(relativeName(name), md5);
+		}
+		if(unchunked!=null) unchunked.add(name);
 	}
 	
 	private void dropFile(String name) {
 		log.info("dropping file "+name);
+		indexDirty=true;
 		removeHash(name);
 		watchedFiles.remove(name);
+		fileHandles.invalidate(name);
+		synchronized(digestLock) {
+			if(digestTree!=null) digestTree.removeFile(relativeName(name));
+		}
+		if(unchunked!=null) unchunked.add(name);
 	}
 	
 	private void addFile(String name, FileDescriptor fileDescriptor) {
 		log.info("adding file "+name);
+		indexDirty=true;
 		addHash(fileDescriptor.md5,name);
 		watchedFiles.put(name,fileDescriptor);
+		synchronized(digestLock) {
+			if(digestTree!=null) digestTree.putFile(relativeName(name), fileDescriptor.md5);
+		}
+		if(unchunked!=null) unchunked.add(name);
 	}
 	
 	private void dropDir(String name) {
 		log.info("dropping directory "+name);
+		indexDirty=true;
 		watchedDirectories.remove(name);
+		synchronized(digestLock) {
+			if(digestTree!=null) digestTree.removeDirectory(relativeName(name));
+		}
 	}
 	
 	private void addDir(String name) {
 		log.info("adding new directory "+name);
+		indexDirty=true;
 		watchedDirectories.add(name);
+		synchronized(digestLock) {
+			if(digestTree!=null) digestTree.putDirectory(relativeName(name));
+		}
+		if(watchService!=null) {
+			try {
+				watchDirectory(name);
+			} catch (IOException e) {
+				log.warning("could not watch directory "+name+": "+e.getMessage());
+			}
+		}
 	}
 	
-	private static String getFileChecksum(MessageDigest digest, RandomAccessFile fis) throws IOException
-	{
-	    byte[] byteArray = new byte[1024];
-	    int bytesCount = 0;
-	    fis.seek(0);
-	    while ((bytesCount = fis.read(byteArray)) != -1) {
-	        digest.update(byteArray, 0, bytesCount);
-	    };
-	    byte[] bytes = digest.digest();
-	    StringBuilder sb = new StringBuilder();
-	    for(int i=0; i< bytes.length ;i++)
-	    {
-	        sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-	    }
-	   return sb.toString();
-	}
-	
-	private static String getFileChecksum(MessageDigest digest, File file) throws IOException
-	{
-		FileInputStream fis = new FileInputStream(file);
-	    byte[] byteArray = new byte[1024];
-	    int bytesCount = 0;
-	    while ((bytesCount = fis.read(byteArray)) != -1) {
-	        digest.update(byteArray, 0, bytesCount);
-	    };
-	    fis.close();
-	    byte[] bytes = digest.digest();
-	    StringBuilder sb = new StringBuilder();
-	    for(int i=0; i< bytes.length ;i++)
-	    {
-	        sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-	    }
-	   return sb.toString();
+	// call holding digestLock
+	private DigestTree digestTree() {
+		if(digestTree==null) {
+			digestTree = new DigestTree();
+			for(String dirname : watchedDirectories) {
+				digestTree.putDirectory(relativeName(dirname));
+			}
+			for(Map.Entry<String,FileDescriptor> file : watchedFiles.entrySet()) {
+				digestTree.putFile(relativeName(file.getKey()), file.getValue().md5);
+			}
+		}
+		return digestTree;
+	}
+	
+	// a loader for the file, resuming one left by a transfer that stopped, false if one is still in use; call holding the path's lock
+	private boolean openLoader(String fullPathName, String md5, long length, long lastModified) throws IOException {
+		if(isReserved(fullPathName)) throw new IOException("not loading "+fullPathName+", the name is reserved");
+		FileLoader loader = loadingFiles.get(fullPathName);
+		if(loader!=null) {
+			if(!loader.isIdle(System.currentTimeMillis())) return false;
+			if(loader.md5.equals(md5) && loader.length==length) {
+				log.info("resuming file loader for "+fullPathName);
+				loader.lastModified=lastModified;
+				// in use again, by whoever asked
+				loader.owner=null;
+				loader.released=false;
+				loader.lastWrite=System.currentTimeMillis();
+				return true;
+			}
+			log.info("replacing file loader for "+fullPathName+", the content to load changed");
+			loadingFiles.remove(fullPathName);
+			loader.cancel();
+		}
+		loadingFiles.put(fullPathName, new FileLoader(fullPathName,md5,length,lastModified));
+		return true;
+	}
+	
+	// save what every loader has written since it last saved, so that a restart can resume them
+	private void saveLoaderStates() {
+		for(Map.Entry<String,FileLoader> entry : loadingFiles.entrySet()) {
+			synchronized(pathLocks.of(entry.getKey())) {
+				if(loadingFiles.get(entry.getKey())==entry.getValue()) entry.getValue().checkSaveState();
+			}
+		}
+	}
+	
+	// the files with the given content, with the last modified time and size they were hashed with
+	private LinkedHashMap<String,FileDescriptor> readAttempts(String md5) {
+		LinkedHashMap<String,FileDescriptor> attempts = new LinkedHashMap<String,FileDescriptor>();
+		Set<String> names = hashMap.get(md5);
+		if(names==null) return attempts;
+		for(String attempt: names) {
+			FileDescriptor fd = watchedFiles.get(attempt);
+			if(fd==null || !fd.md5.equals(md5)) continue;
+			attempts.put(attempt, new FileDescriptor(fd.lastModified,fd.md5,fd.fileSize));
+		}
+		return attempts;
+	}
+	
+	// a channel on one of the files from readAttempts, null if it has changed since it was hashed
+	private FileHandleCache.Handle openAttempt(String name, FileDescriptor fd) {
+		try {
+			return fileHandles.acquire(name, fd.lastModified, fd.fileSize);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	// bring the chunk index up to date, reading the files outside of the lock, call holding chunkLock
+	private void updateChunkIndex() throws NoSuchAlgorithmException {
+		if(chunkIndex==null) {
+			chunkIndex = new ChunkIndex();
+			// noting changes before taking every file, so that none is missed
+			unchunked = ConcurrentHashMap.newKeySet();
+			unchunked.addAll(watchedFiles.keySet());
+		}
+		ArrayList<String> names = new ArrayList<String>();
+		for(String name : unchunked) {
+			// a file changing again once taken is noted again
+			if(unchunked.remove(name)) names.add(name);
+		}
+		for(String name : names) {
+			FileDescriptor fd = watchedFiles.get(name);
+			if(fd==null) {
+				chunkIndex.removeFile(relativeName(name));
+				continue;
+			}
+			File file = new File(name);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				ArrayList<ChunkIndex.Chunk> chunks = ChunkIndex.chunk(channel, fd.fileSize);
+				if(file.lastModified()!=fd.lastModified || channel.size()!=fd.fileSize) {
+					// changed while reading, the file system monitor reports it soon
+					chunkIndex.removeFile(relativeName(name));
+					continue;
+				}
+				chunkIndex.putFile(relativeName(name), chunks);
+			} catch (IOException e) {
+				chunkIndex.removeFile(relativeName(name));
+			}
+		}
+		if(!names.isEmpty()) log.info("chunk index updated for "+names.size()+" files, "+chunkIndex.size()+" chunks");
+	}
+	
+	private String relativeName(String name) {
+		return name.substring(root.length()+1);
 	}
 	
 	private static String separatorsToSystem(String res) {
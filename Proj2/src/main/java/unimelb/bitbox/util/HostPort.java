@@ -42,4 +42,9 @@ public class HostPort {
         HostPort c = (HostPort) o;   
         return host.equals(c.host) && port==c.port; 
     } 
+	
+	@Override
+	public int hashCode() {
+		return 31 * host.hashCode() + port;
+	}
 }
@@ -0,0 +1,32 @@
+package unimelb.bitbox.util;
+
+/**
+ * A fixed set of locks shared out among keys by their hash, so that work on
+ * different keys rarely contends while a key always maps to the same lock.
+ * <br/>
+ * Use as <code>synchronized(locks.of(key)) { ... }</code>. Two keys may share a
+ * lock, so code holding one must not wait for another key's lock.
+ */
+public class StripedLock {
+
+	private final Object[] stripes;
+
+	/**
+	 * @param stripes The number of locks, rounded up to a power of two.
+	 */
+	public StripedLock(int stripes) {
+		int n = 1;
+		while(n<stripes) n<<=1;
+		this.stripes = new Object[n];
+		for(int i=0;i<n;i++) this.stripes[i] = new Object();
+	}
+
+	/**
+	 * The lock for a key.
+	 */
+	public Object of(String key) {
+		int h = key.hashCode();
+		h ^= (h>>>16);
+		return stripes[h & (stripes.length-1)];
+	}
+}
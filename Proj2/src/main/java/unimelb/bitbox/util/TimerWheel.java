@@ -0,0 +1,126 @@
+package unimelb.bitbox.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timer wheel, for scheduling many short timeouts that are mostly cancelled
+ * before they expire, such as retransmission deadlines.
+ * <br/>
+ * Time is cut into ticks and a timeout is put in the slot of the tick it expires in,
+ * the slots being reused round after round. Scheduling and cancelling take constant
+ * time, and each tick only looks at the timeouts of its own slot, so the cost of
+ * keeping time does not grow with the number of timeouts pending. A timeout expires
+ * within a tick after its deadline. Cancelled timeouts are dropped when their slot
+ * comes round.
+ * <br/>
+ * Expired tasks run one after another on the wheel's thread, so they must be quick.
+ */
+public class TimerWheel {
+	private static Logger log = Logger.getLogger(TimerWheel.class.getName());
+
+	/**
+	 * A scheduled task.
+	 */
+	public static class Timeout {
+		private final long tick;
+		private final Runnable task;
+		private volatile boolean cancelled = false;
+
+		private Timeout(long tick, Runnable task) {
+			this.tick=tick;
+			this.task=task;
+		}
+
+		/**
+		 * Stop the task from running, if it has not already.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final long tickMillis;
+	private final List<List<Timeout>> slots;
+	private final long start = System.nanoTime();
+	// the last tick whose slot has been processed
+	private long processed = 0;
+
+	/**
+	 * @param tickMillis The length of a tick.
+	 * @param slots The number of slots, rounded up to a power of two, ideally enough
+	 * for the usual timeouts to expire within a round.
+	 */
+	public TimerWheel(long tickMillis, int slots) {
+		int n = 1;
+		while(n<slots) n<<=1;
+		this.tickMillis=Math.max(1, tickMillis);
+		this.slots = new ArrayList<List<Timeout>>(n);
+		for(int i=0;i<n;i++) this.slots.add(new ArrayList<Timeout>());
+	}
+
+	/**
+	 * Start the thread running the expired tasks.
+	 */
+	public void start(String name) {
+		Thread thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Run a task once the delay has passed.
+	 * @return The timeout, to cancel the task with.
+	 */
+	public Timeout schedule(long delayMillis, Runnable task) {
+		long ticks = Math.max(1, (delayMillis+tickMillis-1)/tickMillis);
+		synchronized(this) {
+			Timeout timeout = new Timeout(Math.max(processed, currentTick())+ticks, task);
+			slots.get((int) (timeout.tick & (slots.size()-1))).add(timeout);
+			return timeout;
+		}
+	}
+
+	private long currentTick() {
+		return (System.nanoTime()-start)/1000000/tickMillis;
+	}
+
+	private void run() {
+		ArrayList<Timeout> expired = new ArrayList<Timeout>();
+		while(true) {
+			try {
+				Thread.sleep(tickMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized(this) {
+				long now = currentTick();
+				// catch up on any ticks missed while the thread was not running
+				for(long tick = processed+1; tick<=now && tick<=processed+slots.size(); tick++) {
+					Iterator<Timeout> it = slots.get((int) (tick & (slots.size()-1))).iterator();
+					while(it.hasNext()) {
+						Timeout timeout = it.next();
+						if(timeout.cancelled) {
+							it.remove();
+						} else if(timeout.tick<=now) {
+							it.remove();
+							expired.add(timeout);
+						}
+					}
+				}
+				processed = Math.max(processed, now);
+			}
+			for(Timeout timeout : expired) {
+				if(timeout.cancelled) continue;
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					log.warning("timer task failed: " + e);
+				}
+			}
+			expired.clear();
+		}
+	}
+}